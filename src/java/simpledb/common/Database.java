@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.storage.BufferPool;
+import simpledb.storage.FileHandleCache;
 import simpledb.storage.LogFile;
 
 import java.io.*;
@@ -24,6 +25,9 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    // open files outlive resets, like the files themselves
+    private static final FileHandleCache _filehandles = new FileHandleCache(FileHandleCache.DEFAULT_CAPACITY);
+
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
@@ -48,6 +52,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the cache of open table files */
+    public static FileHandleCache getFileHandleCache() {
+        return _filehandles;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
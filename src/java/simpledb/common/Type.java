@@ -6,6 +6,7 @@ import simpledb.storage.IntField;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -28,6 +29,15 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) throws ParseException {
+            try {
+                return new IntField(buf.getInt(offset));
+            } catch (IndexOutOfBoundsException e) {
+                throw new ParseException("couldn't parse", offset);
+            }
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +56,21 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) throws ParseException {
+            try {
+                int strLen = buf.getInt(offset);
+                if (strLen < 0 || strLen > STRING_LEN)
+                    throw new ParseException("bad string length " + strLen, offset);
+                byte[] bs = new byte[strLen];
+                for (int i = 0; i < strLen; i++)
+                    bs[i] = buf.get(offset + 4 + i);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (IndexOutOfBoundsException e) {
+                throw new ParseException("couldn't parse", offset);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +89,16 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer at the given index.  The buffer's
+   *   position is not used or changed, so threads may parse one buffer at
+   *   once.
+   * @param buf The buffer to read from
+   * @param offset The index of the field's first byte in buf
+   * @throws ParseException if the data read from the buffer is not
+   *   of the appropriate type.
+   */
+    public abstract Field parse(ByteBuffer buf, int offset) throws ParseException;
+
 }
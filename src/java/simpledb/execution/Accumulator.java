@@ -0,0 +1,178 @@
+package simpledb.execution;
+
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Accumulator keeps the running state of one aggregate for every group of
+ * a {@link GroupTable}, in arrays indexed by group number: a count for
+ * each, and the sum, as a long, the minimum or the maximum when the
+ * aggregate needs it.  Adding a value updates the state in place, so the
+ * memory an aggregate takes grows with its groups, not its input.
+ */
+class Accumulator implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Aggregator.Op op;
+    private final int field;
+    private long[] counts;
+    private long[] sums;
+    private int[] mins, maxes;
+
+    /**
+     * @param op the aggregate; COUNT reads no field, so counts fields of any type
+     * @param field the field aggregated
+     */
+    Accumulator(Aggregator.Op op, int field) {
+        if (op == Aggregator.Op.SUM_COUNT || op == Aggregator.Op.SC_AVG)
+            throw new IllegalArgumentException(op + " is not supported");
+        this.op = op;
+        this.field = field;
+        counts = new long[16];
+        if (op == Aggregator.Op.SUM || op == Aggregator.Op.AVG)
+            sums = new long[16];
+        if (op == Aggregator.Op.MIN) {
+            mins = new int[16];
+            Arrays.fill(mins, Integer.MAX_VALUE);
+        }
+        if (op == Aggregator.Op.MAX) {
+            maxes = new int[16];
+            Arrays.fill(maxes, Integer.MIN_VALUE);
+        }
+    }
+
+    Aggregator.Op op() {
+        return op;
+    }
+
+    int field() {
+        return field;
+    }
+
+    /** Make room for groups up to and including a group */
+    private void ensure(int group) {
+        int old = counts.length, n = old;
+        if (group < n)
+            return;
+        while (n <= group)
+            n *= 2;
+        counts = Arrays.copyOf(counts, n);
+        if (sums != null)
+            sums = Arrays.copyOf(sums, n);
+        if (mins != null) {
+            mins = Arrays.copyOf(mins, n);
+            Arrays.fill(mins, old, n, Integer.MAX_VALUE);
+        }
+        if (maxes != null) {
+            maxes = Arrays.copyOf(maxes, n);
+            Arrays.fill(maxes, old, n, Integer.MIN_VALUE);
+        }
+    }
+
+    /** Add the field of a tuple to the aggregate of a group */
+    void add(int group, Tuple t) {
+        if (op == Aggregator.Op.COUNT) {
+            ensure(group);
+            counts[group]++;
+            return;
+        }
+        add(group, ((IntField) t.getField(field)).getValue());
+    }
+
+    /** Add a value to the aggregate of a group */
+    void add(int group, int v) {
+        ensure(group);
+        counts[group]++;
+        if (sums != null)
+            sums[group] += v;
+        if (mins != null && v < mins[group])
+            mins[group] = v;
+        if (maxes != null && v > maxes[group])
+            maxes[group] = v;
+    }
+
+    /** Add the state of a group of another accumulator of the same aggregate to a group */
+    void merge(int group, Accumulator other, int otherGroup) {
+        if (otherGroup >= other.counts.length)
+            return;
+        ensure(group);
+        counts[group] += other.counts[otherGroup];
+        if (sums != null)
+            sums[group] += other.sums[otherGroup];
+        if (mins != null)
+            mins[group] = Math.min(mins[group], other.mins[otherGroup]);
+        if (maxes != null)
+            maxes[group] = Math.max(maxes[group], other.maxes[otherGroup]);
+    }
+
+    /**
+     * @return the number of int fields {@link #getState} writes: the count
+     *         and the sum as two halves of a long, then the minimum or maximum
+     */
+    int stateFields() {
+        return 2 + (sums != null ? 2 : 0) + (mins != null || maxes != null ? 1 : 0);
+    }
+
+    /** Write the state of a group to the fields of a tuple from a field on */
+    void getState(int group, Tuple t, int at) {
+        ensure(group);
+        at = putLong(t, at, counts[group]);
+        if (sums != null)
+            at = putLong(t, at, sums[group]);
+        if (mins != null)
+            t.setField(at, new IntField(mins[group]));
+        if (maxes != null)
+            t.setField(at, new IntField(maxes[group]));
+    }
+
+    /** Add a state written by {@link #getState} to the state of a group */
+    void mergeState(int group, Tuple t, int at) {
+        ensure(group);
+        counts[group] += getLong(t, at);
+        at += 2;
+        if (sums != null) {
+            sums[group] += getLong(t, at);
+            at += 2;
+        }
+        if (mins != null)
+            mins[group] = Math.min(mins[group], ((IntField) t.getField(at)).getValue());
+        if (maxes != null)
+            maxes[group] = Math.max(maxes[group], ((IntField) t.getField(at)).getValue());
+    }
+
+    private static int putLong(Tuple t, int at, long v) {
+        t.setField(at, new IntField((int) (v >>> 32)));
+        t.setField(at + 1, new IntField((int) v));
+        return at + 2;
+    }
+
+    private static long getLong(Tuple t, int at) {
+        long hi = ((IntField) t.getField(at)).getValue();
+        long lo = ((IntField) t.getField(at + 1)).getValue() & 0xFFFFFFFFL;
+        return (hi << 32) | lo;
+    }
+
+    /** Return the aggregate of a group; 0 for a group with no values */
+    int result(int group) {
+        if (group >= counts.length || counts[group] == 0)
+            return 0;
+        switch (op) {
+            case COUNT:
+                return (int) counts[group];
+            case SUM:
+                return (int) sums[group];
+            case AVG:
+                return (int) (sums[group] / counts[group]);
+            case MIN:
+                return mins[group];
+            case MAX:
+                return maxes[group];
+            default:
+                throw new IllegalStateException("impossible to reach here");
+        }
+    }
+}
@@ -7,21 +7,23 @@ import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a column, grouped by any number
+ * of columns, are computed in a single pass over the input.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;//
-    private int afield;//the aggrator operator target variable position in tuple
-    private int gfield;//the groupby target variable position in tuple
-    private Aggregator.Op aop;//
+    private OpIterator[] partitions;//fragments aggregated in parallel, or null
+    private int[] afields;//the aggrator operator target variable position in tuple, one per aggregate
+    private int[] gfields;//the groupby target variable positions in tuple, none without grouping
+    private Aggregator.Op[] aops;//one per aggregate
     private Aggregator agg;//
     private OpIterator it;
     /**
@@ -39,21 +41,99 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
         // some code goes here
+        this(child,new int[]{afield},groupFields(gfield),new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group-by key,
+     * computed together in one pass over the child.  The output tuples hold
+     * the group-by fields in order, then the aggregates in order.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The column of each aggregate.
+     * @param gfields The columns over which we are grouping the result, none
+     *                if there is no grouping
+     * @param aops    The aggregation operator of each aggregate
+     * @throws IllegalArgumentException if there is not one column per operator,
+     *         or an operator other than COUNT is over a column that is not an int
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if(afields.length==0||afields.length!=aops.length)
+        {
+            throw new IllegalArgumentException("each aggregate needs one field and one operator");
+        }
         this.child=child;
-        this.afield=afield;
-        this.gfield=gfield;
-        this.aop=aop;
+        this.afields=afields.clone();
+        this.gfields=gfields.clone();
+        this.aops=aops.clone();
         this.agg=null;
+        TupleDesc td=child.getTupleDesc();
+        for(int i=0;i<afields.length;i++)
+        {//只有COUNT能作用于字符串
+            if(aops[i]!=Aggregator.Op.COUNT&&td.getFieldType(afields[i])!=Type.INT_TYPE)
+            {
+                throw new IllegalArgumentException(aops[i]+" is not supported over "+td.getFieldType(afields[i]));
+            }
+        }
+    }
+
+    /**
+     * Constructor for an aggregate computed in parallel.  Each partition
+     * is aggregated on its own worker thread into a partial aggregate, and
+     * the partial aggregates are merged when all are done.  The partitions
+     * may be any split of the input, such as the fragments of a
+     * {@link MorselScan} or the readers of an {@link Exchange}.
+     *
+     * @param partitions the fragments of the input, all with the same TupleDesc
+     * @param afield     The column over which we are computing an aggregate.
+     * @param gfield     The column over which we are grouping the result, or -1 if
+     *                   there is no grouping
+     * @param aop        The aggregation operator to use
+     */
+    public Aggregate(OpIterator[] partitions, int afield, int gfield, Aggregator.Op aop) {
+        this(partitions,new int[]{afield},groupFields(gfield),new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group-by key,
+     * computed in parallel over the partitions.
+     *
+     * @param partitions the fragments of the input, all with the same TupleDesc
+     * @param afields    The column of each aggregate.
+     * @param gfields    The columns over which we are grouping the result, none
+     *                   if there is no grouping
+     * @param aops       The aggregation operator of each aggregate
+     */
+    public Aggregate(OpIterator[] partitions, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(partitions[0],afields,gfields,aops);
+        if(partitions.length>1)
+        {
+            this.partitions=partitions;
+        }
+    }
+
+    private static int[] groupFields(int gfield)
+    {
+        return gfield==Aggregator.NO_GROUPING?new int[0]:new int[]{gfield};
     }
 
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      * field index in the <b>INPUT</b> tuples. If not, return
-     * {@link Aggregator#NO_GROUPING}
+     * {@link Aggregator#NO_GROUPING}.  With several groupby fields, return
+     * the first.
      */
     public int groupField() {
         // some code goes here
-        return this.gfield;
+        return gfields.length==0?Aggregator.NO_GROUPING:gfields[0];
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, none if
+     * there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
@@ -63,15 +143,24 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(gfield);
+        if(gfields.length==0)
+            return null;
+        return child.getTupleDesc().getFieldName(gfields[0]);
     }
 
     /**
-     * @return the aggregate field
+     * @return the aggregate field; with several aggregates, that of the first
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
+    }
+
+    /**
+     * @return the field of each aggregate
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -80,15 +169,23 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(afield);
+        return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator; with several aggregates, that of
+     * the first
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -99,37 +196,77 @@ public class Aggregate extends Operator {
             TransactionAbortedException {
         //在open的时候就全部做了
         // some code goes here
-        this.child.open();
-        Type groupByType =null;
-        if(gfield!=Aggregator.NO_GROUPING)
-        {
-            groupByType=child.getTupleDesc().getFieldType(gfield);
-        }
-        if(child.getTupleDesc().getFieldType(afield)==Type.INT_TYPE)
+        it=groups();
+        super.open();
+        it.open();
+
+    }
+
+    /**
+     * Aggregate the input, returning an iterator over the groups.  A
+     * subclass may override this to aggregate the input some other way.
+     */
+    protected OpIterator groups() throws DbException, TransactionAbortedException
+    {
+        if(partitions==null)
         {
-            agg=new IntegerAggregator(gfield,groupByType,afield,aop);
+            this.child.open();
+            agg=aggregate(child);
+            this.child.close();
         }else
         {
-            agg=new StringAggregator(gfield,groupByType,afield,aop);
+            //每个分区在自己的线程上部分聚合, 然后合并
+            List<Aggregator> partial=Exchange.runFragments(partitions,this::aggregate);
+            agg=partial.get(0);
+            for(int i=1;i<partial.size();i++)
+                agg.merge(partial.get(i));
         }
-        while (child.hasNext())
-        {//逐个添加
-            agg.mergeTupleIntoGroup(child.next());
-        }
-        this.child.close();
+        return agg.iterator();
+    }
 
-        super.open();
-        it=agg.iterator();
-        it.open();
+    private Aggregator aggregate(OpIterator in) throws DbException, TransactionAbortedException
+    {
+        Aggregator a=newAggregator(in.getTupleDesc());
+        TupleBatch batch=new TupleBatch();
+        while (in.nextBatch(batch))
+        {//逐批添加
+            for(int i=0;i<batch.size();i++)
+                a.mergeTupleIntoGroup(batch.get(i));
+        }
+        return a;
+    }
 
+    /**
+     * Create an empty aggregator for tuples of the child
+     */
+    protected HashAggregator newAggregator(TupleDesc td)
+    {
+        Type[] groupByTypes=new Type[gfields.length];
+        for(int i=0;i<gfields.length;i++)
+        {
+            groupByTypes[i]=td.getFieldType(gfields[i]);
+        }
+        if(afields.length>1||gfields.length>1)
+        {//多个聚合或组合分组键, 一遍算完
+            return new HashAggregator(gfields,groupByTypes,afields,aops);
+        }
+        int gfield=groupField();
+        Type groupByType=gfields.length==0?null:groupByTypes[0];
+        if(td.getFieldType(afields[0])==Type.INT_TYPE)
+        {
+            return new IntegerAggregator(gfield,groupByType,afields[0],aops[0]);
+        }else
+        {
+            return new StringAggregator(gfield,groupByType,afields[0],aops[0]);
+        }
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. If there are group by fields, then the first
+     * fields are the fields by which we are grouping, and the fields after
+     * them are the results of computing the aggregates. If there is no group
+     * by field, then the result tuple should contain one field per aggregate.
+     * Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -139,6 +276,10 @@ public class Aggregate extends Operator {
         return null;
     }
 
+    protected void fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        it.nextBatch(batch);
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         close();
@@ -147,9 +288,9 @@ public class Aggregate extends Operator {
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * this will have one field per aggregate - the aggregate columns. If there
+     * are group by fields, the first fields will be the group by fields, and
+     * the aggregate value columns will follow them.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -159,26 +300,35 @@ public class Aggregate extends Operator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc tupleDesc=child.getTupleDesc();
-        if(gfield==Aggregator.NO_GROUPING)
+        int n=gfields.length+afields.length;
+        Type[] types=new Type[n];
+        String[] names=new String[n];
+        for(int i=0;i<gfields.length;i++)
         {
-            return new TupleDesc(new Type[]{Type.INT_TYPE},new String[]{aop.toString()+"("+tupleDesc.getFieldName(afield)+")"});
-        }else
+            types[i]=tupleDesc.getFieldType(gfields[i]);
+            names[i]=tupleDesc.getFieldName(gfields[i]);
+        }
+        for(int i=0;i<afields.length;i++)
         {
-            return new TupleDesc(new Type[]{tupleDesc.getFieldType(gfield),Type.INT_TYPE},new String[]{
-                    tupleDesc.getFieldName(gfield),aop.toString()+"("+tupleDesc.getFieldName(afield)+")"});
+            types[gfields.length+i]=Type.INT_TYPE;
+            names[gfields.length+i]=aops[i].toString()+"("+tupleDesc.getFieldName(afields[i])+")";
         }
-//        return null;
+        return new TupleDesc(types,names);
     }
 
     public void close() {
         // some code goes here
         super.close();
-        it.close();
+        if(it!=null)
+            it.close();
+        it=null;
     }
 
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
+        if(partitions!=null)
+            return partitions;
         return new OpIterator[]{child};
     }
 
@@ -186,6 +336,8 @@ public class Aggregate extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         this.child=children[0];
+        if(partitions!=null)
+            this.partitions=children;
     }
 
 }
@@ -79,6 +79,15 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the groups of another aggregator into this one.  The other
+     * aggregator computes the same aggregate over another part of the input,
+     * as the fragments of a parallel aggregate do.
+     *
+     * @param other an aggregator built with the same arguments as this one
+     */
+    void merge(Aggregator other);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
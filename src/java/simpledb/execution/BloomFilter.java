@@ -0,0 +1,50 @@
+package simpledb.execution;
+
+/**
+ * A BloomFilter answers whether a hash code may be one of those added to
+ * it: never no for one that was, and yes for one that was not with a
+ * probability that grows as more are added than the filter was sized for.
+ * At eight bits per hash code, the false positive rate is about 2%.  A
+ * hash join keeps one of its build keys to drop most probe tuples without
+ * a match before looking them up, or before spilling them.
+ */
+class BloomFilter {
+    private static final int HASHES = 3;
+
+    private final long[] bits;
+    private final int mask;
+
+    /**
+     * @param expected the number of distinct hash codes expected
+     */
+    BloomFilter(int expected) {
+        int n = 64;
+        while (n < expected * 8L && n < 1 << 30)
+            n <<= 1;
+        bits = new long[n / 64];
+        mask = n - 1;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B1;
+        return h ^ (h >>> 15);
+    }
+
+    void add(int hash) {
+        int h1 = mix(hash), h2 = mix(h1) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            bits[b >>> 6] |= 1L << b;
+        }
+    }
+
+    boolean mightContain(int hash) {
+        int h1 = mix(hash), h2 = mix(h1) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            if ((bits[b >>> 6] & (1L << b)) == 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,427 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An Exchange moves tuples between the fragments of a parallel plan, the
+ * copies of a subplan that each run on their own worker thread.  It reads
+ * its inputs to the end, on the worker threads, and keeps what they return
+ * cut into partitions read by the consumers of the exchange:
+ * <ul>
+ * <li>a hash exchange puts each tuple in the partition given by the hash of
+ * a key field, so the tuples of one key all reach the same consumer, as
+ * the two inputs of a partitioned join or the groups of an aggregate
+ * need;</li>
+ * <li>a broadcast gives every consumer all the tuples of one input, the
+ * small side of a join every fragment of the large side needs whole.</li>
+ * </ul>
+ * The tuples are kept in memory up to a budget of pages, shared by the
+ * inputs; an input with more than its share writes the tuples it holds to
+ * {@link SpillFile}s and starts over, so an exchange holds about its budget
+ * whatever the size of its inputs.
+ * <p>
+ * Each consumer gets a {@link Reader}.  The exchange reads its inputs when
+ * the first reader opens and drops the tuples when the last one closes, so
+ * readers opened on several threads at once share one pass over the
+ * inputs.  {@link Gather} and the other operators that start fragments
+ * fill the exchanges below them before starting any, from the thread
+ * opening them, so the inputs are read by all the workers.
+ *
+ * @Threadsafe
+ */
+public class Exchange {
+
+    /**
+     * The work one fragment does in {@link #runFragments}, between opening
+     * the fragment and closing it
+     */
+    public interface Fragment<T> {
+        T run(OpIterator fragment) throws DbException, TransactionAbortedException;
+    }
+
+    /** Pages of tuples an exchange holds in memory unless told otherwise */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+
+    private final OpIterator[] inputs;
+    /** the field to partition on, or -1 to broadcast */
+    private final int keyField;
+    private final int partitions;
+    private final int memoryPages;
+    private final TupleDesc td;
+
+    /** per partition, what each input put in it */
+    private List<Piece[]> parts;
+    /** the spill files of the pieces, deleted with them */
+    private final List<SpillFile> spills = new ArrayList<>();
+    private int active;
+
+    /**
+     * The tuples one input put in one partition: those it spilled, then
+     * those still in memory
+     */
+    private static final class Piece {
+        final List<Tuple> tuples = new ArrayList<>();
+        SpillFile spilled;
+    }
+
+    private Exchange(OpIterator[] inputs, int keyField, int partitions, int memoryPages) {
+        if (inputs.length == 0 || partitions < 1)
+            throw new IllegalArgumentException("an exchange needs inputs and consumers");
+        if (memoryPages < 1)
+            throw new IllegalArgumentException("an exchange needs at least one page");
+        this.inputs = inputs;
+        this.keyField = keyField;
+        this.partitions = partitions;
+        this.memoryPages = memoryPages;
+        this.td = inputs[0].getTupleDesc();
+    }
+
+    /**
+     * Give every one of several consumers all the tuples of an input.
+     *
+     * @param input the input to read once
+     * @param consumers the number of readers to return
+     */
+    public static Reader[] broadcast(OpIterator input, int consumers) {
+        return broadcast(input, consumers, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Give every one of several consumers all the tuples of an input,
+     * spilling those beyond a budget.
+     *
+     * @param input the input to read once
+     * @param consumers the number of readers to return
+     * @param memoryPages the pages of tuples to hold in memory
+     */
+    public static Reader[] broadcast(OpIterator input, int consumers, int memoryPages) {
+        return new Exchange(new OpIterator[]{input}, -1, 1, memoryPages).readers(consumers);
+    }
+
+    /**
+     * Repartition the tuples of several inputs by the hash of a key.  Two
+     * exchanges with the same number of partitions put equal keys of the
+     * same type in partitions with the same index.
+     *
+     * @param inputs the fragments of the input, all with the same TupleDesc
+     * @param keyField the index of the field to partition on
+     * @param partitions the number of partitions, and of readers returned
+     */
+    public static Reader[] hashPartition(OpIterator[] inputs, int keyField, int partitions) {
+        return hashPartition(inputs, keyField, partitions, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Repartition the tuples of several inputs by the hash of a key,
+     * spilling those beyond a budget.
+     *
+     * @param inputs the fragments of the input, all with the same TupleDesc
+     * @param keyField the index of the field to partition on
+     * @param partitions the number of partitions, and of readers returned
+     * @param memoryPages the pages of tuples to hold in memory
+     */
+    public static Reader[] hashPartition(OpIterator[] inputs, int keyField, int partitions, int memoryPages) {
+        return new Exchange(inputs, keyField, partitions, memoryPages).readers(partitions);
+    }
+
+    /** Return the partition a key belongs in */
+    public static int partitionOf(Field key, int partitions) {
+        // spread the low bits, which for integer keys are often all alike
+        int h = key.hashCode() * 0x9E3779B1;
+        return Math.floorMod(h ^ (h >>> 16), partitions);
+    }
+
+    private Reader[] readers(int n) {
+        Reader[] readers = new Reader[n];
+        for (int i = 0; i < n; i++)
+            readers[i] = new Reader(keyField < 0 ? 0 : i);
+        return readers;
+    }
+
+    /** Read the inputs unless a reader already has, and count one more user */
+    synchronized void acquire() throws DbException, TransactionAbortedException {
+        if (active == 0) {
+            try {
+                parts = fill();
+            } catch (DbException | TransactionAbortedException | RuntimeException e) {
+                deleteSpills();
+                throw e;
+            }
+        }
+        active++;
+    }
+
+    /** Count one user less, dropping the tuples after the last */
+    synchronized void release() {
+        if (--active == 0) {
+            parts = null;
+            deleteSpills();
+        }
+    }
+
+    private synchronized Piece[] partition(int i) {
+        return parts.get(i);
+    }
+
+    private void deleteSpills() {
+        synchronized (spills) {
+            for (SpillFile f : spills)
+                f.close();
+            spills.clear();
+        }
+    }
+
+    private List<Piece[]> fill() throws DbException, TransactionAbortedException {
+        // each input holds its share of the budget
+        long budget = (long) memoryPages * BufferPool.getPageSize() / td.getSize();
+        long maxHeld = Math.max(1, budget / inputs.length);
+        List<Piece[]> pieces = runFragments(inputs, in -> {
+            Piece[] out = new Piece[partitions];
+            for (int i = 0; i < partitions; i++)
+                out[i] = new Piece();
+            long held = 0;
+            TupleBatch batch = new TupleBatch();
+            while (in.nextBatch(batch)) {
+                for (int i = 0; i < batch.size(); i++) {
+                    Tuple t = batch.get(i);
+                    int p = keyField < 0 ? 0 : partitionOf(t.getField(keyField), partitions);
+                    out[p].tuples.add(t);
+                    if (++held > maxHeld) {
+                        spill(out);
+                        held = 0;
+                    }
+                }
+            }
+            try {
+                for (Piece piece : out) {
+                    if (piece.spilled != null)
+                        piece.spilled.flush();
+                }
+            } catch (IOException e) {
+                throw new DbException("could not spill exchange partition: " + e);
+            }
+            return out;
+        });
+        List<Piece[]> filled = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            Piece[] part = new Piece[pieces.size()];
+            for (int j = 0; j < part.length; j++)
+                part[j] = pieces.get(j)[i];
+            filled.add(part);
+        }
+        return filled;
+    }
+
+    /** Write the tuples an input holds in memory to the spill files of their partitions */
+    private void spill(Piece[] out) throws DbException {
+        try {
+            for (Piece piece : out) {
+                if (piece.tuples.isEmpty())
+                    continue;
+                if (piece.spilled == null) {
+                    piece.spilled = new SpillFile(td);
+                    synchronized (spills) {
+                        spills.add(piece.spilled);
+                    }
+                }
+                for (Tuple t : piece.tuples)
+                    piece.spilled.add(t);
+                piece.tuples.clear();
+            }
+        } catch (IOException e) {
+            throw new DbException("could not spill exchange partition: " + e);
+        }
+    }
+
+    /**
+     * Open fragments, run some work on each on the worker threads, and
+     * close them all once every one is done.  Exchanges below the fragments
+     * are filled first, from this thread.
+     *
+     * @return the result of the work on each fragment, in order
+     */
+    public static <T> List<T> runFragments(OpIterator[] fragments, Fragment<T> work)
+            throws DbException, TransactionAbortedException {
+        List<Exchange> exchanges = below(fragments);
+        acquireAll(exchanges);
+        boolean[] opened = new boolean[fragments.length];
+        try {
+            List<java.util.concurrent.Callable<T>> tasks = new ArrayList<>(fragments.length);
+            for (int i = 0; i < fragments.length; i++) {
+                int f = i;
+                tasks.add(() -> {
+                    opened[f] = true;
+                    fragments[f].open();
+                    return work.run(fragments[f]);
+                });
+            }
+            return WorkerPool.invokeAll(tasks);
+        } finally {
+            closeOpened(fragments, opened);
+            releaseAll(exchanges);
+        }
+    }
+
+    /** Close the fragments that were opened, all or in part */
+    static void closeOpened(OpIterator[] fragments, boolean[] opened) {
+        for (int i = 0; i < fragments.length; i++) {
+            if (opened[i])
+                fragments[i].close();
+        }
+    }
+
+    /**
+     * Return the exchanges read by the given plans, not counting those
+     * below other exchanges or gathers, which fill their own.
+     */
+    static List<Exchange> below(OpIterator[] roots) {
+        Set<Exchange> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Exchange> exchanges = new ArrayList<>();
+        for (OpIterator root : roots)
+            collect(root, found, exchanges);
+        return exchanges;
+    }
+
+    private static void collect(OpIterator op, Set<Exchange> found, List<Exchange> exchanges) {
+        if (op instanceof Reader) {
+            Exchange e = ((Reader) op).exchange();
+            if (found.add(e))
+                exchanges.add(e);
+        } else if (op instanceof Operator && !(op instanceof Gather)) {
+            OpIterator[] children = ((Operator) op).getChildren();
+            if (children != null) {
+                for (OpIterator child : children)
+                    collect(child, found, exchanges);
+            }
+        }
+    }
+
+    static void acquireAll(List<Exchange> exchanges) throws DbException, TransactionAbortedException {
+        for (int i = 0; i < exchanges.size(); i++) {
+            try {
+                exchanges.get(i).acquire();
+            } catch (DbException | TransactionAbortedException | RuntimeException e) {
+                releaseAll(exchanges.subList(0, i));
+                throw e;
+            }
+        }
+    }
+
+    static void releaseAll(List<Exchange> exchanges) {
+        for (Exchange e : exchanges)
+            e.release();
+    }
+
+    /** One consumer's view of an exchange */
+    public final class Reader extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int partition;
+        private transient Piece[] pieces;
+        /** the piece being read, and where in it: its spill file, then its tuples */
+        private transient int piece;
+        private transient OpIterator spilled;
+        private transient int pos;
+
+        private Reader(int partition) {
+            this.partition = partition;
+        }
+
+        Exchange exchange() {
+            return Exchange.this;
+        }
+
+        /** @return a short description of the exchange, for query plans */
+        public String getName() {
+            if (keyField < 0)
+                return "broadcast";
+            return "hash(" + td.getFieldName(keyField) + ")[" + partition + "/" + partitions + "]";
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            acquire();
+            pieces = partition(partition);
+            start(0);
+            super.open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (pieces != null) {
+                if (spilled != null)
+                    spilled.close();
+                spilled = null;
+                pieces = null;
+                release();
+            }
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            if (spilled != null)
+                spilled.close();
+            start(0);
+        }
+
+        /** Start reading a piece */
+        private void start(int i) throws DbException, TransactionAbortedException {
+            piece = i;
+            pos = 0;
+            spilled = null;
+            if (piece < pieces.length && pieces[piece].spilled != null) {
+                spilled = pieces[piece].spilled.iterator();
+                spilled.open();
+            }
+        }
+
+        @Override
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (piece < pieces.length) {
+                if (spilled != null) {
+                    if (spilled.hasNext())
+                        return spilled.next();
+                    spilled.close();
+                    spilled = null;
+                }
+                List<Tuple> tuples = pieces[piece].tuples;
+                if (pos < tuples.size())
+                    return tuples.get(pos++);
+                start(piece + 1);
+            }
+            return null;
+        }
+
+        /** @return the inputs of the exchange */
+        @Override
+        public OpIterator[] getChildren() {
+            return inputs.clone();
+        }
+
+        /** The inputs of an exchange are shared by its readers and fixed */
+        @Override
+        public void setChildren(OpIterator[] children) {
+            throw new UnsupportedOperationException("exchange inputs cannot be replaced");
+        }
+    }
+}
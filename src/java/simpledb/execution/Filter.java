@@ -83,6 +83,19 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Filters whole batches of the child in place, deselecting the tuples
+     * that fail the predicate.
+     */
+    protected void fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        while (child.nextBatch(batch))
+        {
+            batch.filter(p);
+            if(!batch.isEmpty())
+                return;
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,229 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gather runs the fragments of a parallel plan, one {@link WorkerPool}
+ * task each, and returns the tuples of all of them, in no particular order,
+ * to the thread pulling from it.  The fragments hand their batches over
+ * through a short queue, so a consumer slower than the fragments holds them
+ * up rather than letting their output pile up in memory.
+ * <p>
+ * A gather pulled from a worker thread, as when it is part of another
+ * fragment, runs its fragments one after the other on that thread instead,
+ * since waiting for tasks that cannot start until the pool has a free
+ * thread could wait forever.
+ * <p>
+ * The fragments are opened on the workers and closed together when the
+ * gather closes, as fragments sharing a {@link MorselScan} source need.
+ */
+public class Gather extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Batches queued per fragment before a fragment has to wait */
+    private static final int QUEUED_BATCHES = 2;
+    /** Marks the end of the output of one fragment in the queue */
+    private static final TupleBatch END = new TupleBatch(1);
+
+    private OpIterator[] fragments;
+
+    private transient List<Exchange> exchanges;
+    private transient boolean[] opened;
+    private transient BlockingQueue<TupleBatch> queue;
+    private transient List<WorkerTask<Void>> tasks;
+    /** fragments that have not reached their end */
+    private transient int running;
+    /** the fragment being read when running them on this thread, else -1 */
+    private transient int serial;
+    private transient volatile boolean stopped;
+    private transient volatile Throwable failure;
+    private transient TupleBatch current;
+    private transient int pos;
+
+    /**
+     * @param fragments the fragments to run, all with the same TupleDesc
+     */
+    public Gather(OpIterator[] fragments) {
+        if (fragments.length == 0)
+            throw new IllegalArgumentException("nothing to gather");
+        this.fragments = Arrays.copyOf(fragments, fragments.length, OpIterator[].class);
+    }
+
+    /** @return the fragments this gather runs */
+    public OpIterator[] getFragments() {
+        return fragments.clone();
+    }
+
+    /** @return a short description of the gather, for query plans */
+    public String getName() {
+        return "gather(" + fragments.length + ")";
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return fragments[0].getTupleDesc();
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        exchanges = Exchange.below(fragments);
+        Exchange.acquireAll(exchanges);
+        opened = new boolean[fragments.length];
+        stopped = false;
+        failure = null;
+        current = null;
+        pos = 0;
+        if (WorkerPool.isWorker()) {
+            serial = 0;
+        } else {
+            serial = -1;
+            queue = new ArrayBlockingQueue<>(QUEUED_BATCHES * fragments.length + fragments.length);
+            running = fragments.length;
+            tasks = new ArrayList<>(fragments.length);
+            for (int i = 0; i < fragments.length; i++) {
+                int f = i;
+                WorkerTask<Void> task = new WorkerTask<>(() -> produce(f));
+                tasks.add(task);
+                WorkerPool.execute(task);
+            }
+        }
+        super.open();
+    }
+
+    /** Run one fragment on a worker, queueing what it returns */
+    private Void produce(int f) {
+        try {
+            opened[f] = true;
+            fragments[f].open();
+            while (!stopped) {
+                TupleBatch batch = new TupleBatch();
+                if (!fragments[f].nextBatch(batch))
+                    break;
+                put(batch);
+            }
+        } catch (Throwable t) {
+            if (failure == null)
+                failure = t;
+        } finally {
+            put(END);
+        }
+        return null;
+    }
+
+    private void put(TupleBatch batch) {
+        try {
+            while (!stopped) {
+                if (queue.offer(batch, 10, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        stopped = true;
+        if (tasks != null) {
+            for (WorkerTask<Void> task : tasks)
+                task.stopQuietly();
+            tasks = null;
+        }
+        if (opened != null) {
+            Exchange.closeOpened(fragments, opened);
+            opened = null;
+        }
+        if (exchanges != null) {
+            Exchange.releaseAll(exchanges);
+            exchanges = null;
+        }
+        queue = null;
+        current = null;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /** Return the next batch of any fragment, or null once all are done */
+    private TupleBatch nextGathered() throws DbException, TransactionAbortedException {
+        if (serial >= 0) {
+            while (serial < fragments.length) {
+                OpIterator f = fragments[serial];
+                if (!opened[serial]) {
+                    opened[serial] = true;
+                    f.open();
+                }
+                TupleBatch batch = new TupleBatch();
+                if (f.nextBatch(batch))
+                    return batch;
+                serial++;
+            }
+            return null;
+        }
+        while (running > 0) {
+            TupleBatch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted gathering tuples");
+            }
+            if (batch != END)
+                return batch;
+            running--;
+            if (failure != null)
+                throw WorkerTask.rethrow(failure);
+        }
+        return null;
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || pos >= current.size()) {
+            current = nextGathered();
+            pos = 0;
+            if (current == null)
+                return null;
+        }
+        return current.get(pos++);
+    }
+
+    @Override
+    protected void fetchNextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+        while (!batch.isFull()) {
+            if (current == null || pos >= current.size()) {
+                current = nextGathered();
+                pos = 0;
+                if (current == null)
+                    return;
+                continue;
+            }
+            batch.add(current.get(pos++));
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return fragments;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.fragments = children;
+    }
+}
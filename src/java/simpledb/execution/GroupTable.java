@@ -0,0 +1,192 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * GroupTable numbers the groups of a hash aggregate: it maps the group-by
+ * values of each tuple to a dense group number, 0 for the first group seen,
+ * 1 for the next, and so on, which the running aggregates of the group are
+ * kept under in arrays of their own.  It is an open-addressing table probed
+ * linearly.  A single int group-by value is kept in the table itself, so
+ * finding its group allocates nothing; any other key, including one of
+ * several fields, is kept as its fields, with their combined hash in the
+ * table.  Without group-by fields every tuple is in group 0, which exists
+ * from the start.
+ */
+class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int EMPTY = -1;
+
+    /** the group-by fields of the tuples, and of the partial aggregates */
+    private final int[] fields, leading;
+    private final int width;
+    private final boolean intKeys;
+
+    /** per slot: the group there, or EMPTY, and its int value or hash */
+    private int[] slots, slotKeys;
+    private int mask;
+
+    /** per group: its value as an int, or as width fields from group * width */
+    private int[] intValues;
+    private Field[] values;
+    private int size;
+
+    /**
+     * @param fields the group-by fields, none without grouping
+     * @param types the types of the group-by fields
+     */
+    GroupTable(int[] fields, Type[] types) {
+        this.fields = fields;
+        this.width = fields.length;
+        this.leading = new int[width];
+        for (int i = 0; i < width; i++)
+            leading[i] = i;
+        this.intKeys = width == 1 && types[0] == Type.INT_TYPE;
+        slots = new int[16];
+        slotKeys = new int[16];
+        Arrays.fill(slots, EMPTY);
+        mask = 15;
+        intValues = new int[16];
+        values = new Field[16 * width];
+        if (width == 0)
+            size = 1;
+    }
+
+    /** @return the number of groups */
+    int size() {
+        return size;
+    }
+
+    /** Return a group-by value of a group */
+    Field value(int group, int i) {
+        return intKeys ? new IntField(intValues[group]) : values[group * width + i];
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+
+    /** Return the group of a tuple, adding a new group if it is the first in it */
+    int groupOf(Tuple t) {
+        return groupOf(t, fields);
+    }
+
+    /**
+     * Return the group of a partial aggregate, whose group-by values are its
+     * leading fields, adding it if it is new
+     */
+    int groupOfPartial(Tuple t) {
+        return groupOf(t, leading);
+    }
+
+    /** Return the group of the values of some fields of a tuple, adding it if it is new */
+    private int groupOf(Tuple t, int[] at) {
+        if (width == 0)
+            return 0;
+        if (intKeys)
+            return groupOf(((IntField) t.getField(at[0])).getValue());
+        int h = 1;
+        for (int f : at)
+            h = 31 * h + t.getField(f).hashCode();
+        int s = mix(h) & mask;
+        while (slots[s] != EMPTY) {
+            if (slotKeys[s] == h && matches(slots[s], t, at))
+                return slots[s];
+            s = (s + 1) & mask;
+        }
+        int g = add(s, h);
+        for (int i = 0; i < width; i++)
+            values[g * width + i] = t.getField(at[i]);
+        return g;
+    }
+
+    private boolean matches(int group, Tuple t, int[] at) {
+        for (int i = 0; i < width; i++) {
+            if (!values[group * width + i].equals(t.getField(at[i])))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean matches(int group, Field[] key, int from) {
+        for (int i = 0; i < width; i++) {
+            if (!values[group * width + i].equals(key[from + i]))
+                return false;
+        }
+        return true;
+    }
+
+    /** Return the group of an int group-by value, adding it if it is new */
+    int groupOf(int v) {
+        int s = mix(v) & mask;
+        while (slots[s] != EMPTY) {
+            if (slotKeys[s] == v)
+                return slots[s];
+            s = (s + 1) & mask;
+        }
+        int g = add(s, v);
+        intValues[g] = v;
+        return g;
+    }
+
+    /** Return the group here of a group of another table on the same fields, adding it if it is new */
+    int groupOf(GroupTable other, int group) {
+        if (width == 0)
+            return 0;
+        if (intKeys)
+            return groupOf(other.intValues[group]);
+        int from = group * width;
+        int h = 1;
+        for (int i = 0; i < width; i++)
+            h = 31 * h + other.values[from + i].hashCode();
+        int s = mix(h) & mask;
+        while (slots[s] != EMPTY) {
+            if (slotKeys[s] == h && matches(slots[s], other.values, from))
+                return slots[s];
+            s = (s + 1) & mask;
+        }
+        int g = add(s, h);
+        System.arraycopy(other.values, from, values, g * width, width);
+        return g;
+    }
+
+    /** Put a new group in an empty slot, returning its number */
+    private int add(int slot, int key) {
+        int g = size++;
+        if (g == intValues.length) {
+            intValues = Arrays.copyOf(intValues, 2 * g);
+            values = Arrays.copyOf(values, 2 * g * width);
+        }
+        slots[slot] = g;
+        slotKeys[slot] = key;
+        // keep probe runs short: at most half the slots in use
+        if (2 * size > slots.length)
+            grow();
+        return g;
+    }
+
+    private void grow() {
+        int[] oldSlots = slots, oldKeys = slotKeys;
+        slots = new int[2 * oldSlots.length];
+        slotKeys = new int[2 * oldSlots.length];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == EMPTY)
+                continue;
+            int s = mix(oldKeys[i]) & mask;
+            while (slots[s] != EMPTY)
+                s = (s + 1) & mask;
+            slots[s] = oldSlots[i];
+            slotKeys[s] = oldKeys[i];
+        }
+    }
+}
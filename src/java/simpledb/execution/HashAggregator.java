@@ -0,0 +1,183 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * HashAggregator computes aggregates by hashing: a {@link GroupTable}
+ * finds the group of each tuple and an {@link Accumulator} per aggregate
+ * folds the tuple's value into the running state of that group, so each
+ * tuple takes constant time and the aggregate keeps nothing per tuple.
+ * Any number of aggregates over any number of group-by fields are computed
+ * in the one pass.  Groups are returned in the order they were first seen,
+ * as their group-by values followed by their aggregates.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Type[] gbfieldtypes;
+    private final GroupTable groups;
+    private final Accumulator[] accs;
+
+    /**
+     * @param gbfield the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field, or null if there is
+     *            no grouping
+     * @param afield the 0-based index of the aggregate field in the tuple
+     * @param what the aggregation operator; only COUNT reads a field other
+     *            than an int
+     */
+    public HashAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield == NO_GROUPING ? new int[0] : new int[]{gbfield},
+             gbfield == NO_GROUPING ? new Type[0] : new Type[]{gbfieldtype},
+             new int[]{afield}, new Op[]{what});
+    }
+
+    /**
+     * @param gbfields the 0-based indexes of the group-by fields in the
+     *            tuple, none if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param afields the 0-based index of the field of each aggregate
+     * @param whats the operator of each aggregate; only COUNT reads a field
+     *            other than an int
+     */
+    public HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Op[] whats) {
+        if (afields.length != whats.length || afields.length == 0)
+            throw new IllegalArgumentException("each aggregate needs one field and one operator");
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.groups = new GroupTable(gbfields.clone(), this.gbfieldtypes);
+        this.accs = new Accumulator[afields.length];
+        for (int i = 0; i < accs.length; i++)
+            accs[i] = new Accumulator(whats[i], afields[i]);
+    }
+
+    @Override
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int g = groups.groupOf(tup);
+        for (Accumulator acc : accs)
+            acc.add(g, tup);
+    }
+
+    @Override
+    public void merge(Aggregator other) {
+        HashAggregator theirs = (HashAggregator) other;
+        for (int g = 0; g < theirs.groups.size(); g++) {
+            int mine = groups.groupOf(theirs.groups, g);
+            for (int i = 0; i < accs.length; i++)
+                accs[i].merge(mine, theirs.accs[i], g);
+        }
+    }
+
+    /** @return the number of groups seen so far */
+    public int numGroups() {
+        return groups.size();
+    }
+
+    /**
+     * @return the TupleDesc of the partial aggregates of {@link #partial}:
+     *         the group-by values, then the running state of each aggregate
+     */
+    TupleDesc partialDesc() {
+        int n = gbfieldtypes.length;
+        for (Accumulator acc : accs)
+            n += acc.stateFields();
+        Type[] types = new Type[n];
+        Arrays.fill(types, Type.INT_TYPE);
+        System.arraycopy(gbfieldtypes, 0, types, 0, gbfieldtypes.length);
+        return new TupleDesc(types);
+    }
+
+    /**
+     * Return the partial aggregate of a group: a tuple another aggregator
+     * built with the same arguments can take up with {@link #mergePartial}
+     *
+     * @param td the TupleDesc returned by {@link #partialDesc}
+     */
+    Tuple partial(int group, TupleDesc td) {
+        Tuple t = new Tuple(td);
+        int at = 0;
+        for (; at < gbfieldtypes.length; at++)
+            t.setField(at, groups.value(group, at));
+        for (Accumulator acc : accs) {
+            acc.getState(group, t, at);
+            at += acc.stateFields();
+        }
+        return t;
+    }
+
+    /** Merge a partial aggregate into the group of its group-by values */
+    void mergePartial(Tuple t) {
+        int g = groups.groupOfPartial(t);
+        int at = gbfieldtypes.length;
+        for (Accumulator acc : accs) {
+            acc.mergeState(g, t, at);
+            at += acc.stateFields();
+        }
+    }
+
+    @Override
+    public OpIterator iterator() {
+        return new Iter();
+    }
+
+    private TupleDesc resultDesc() {
+        Type[] types = new Type[gbfieldtypes.length + accs.length];
+        Arrays.fill(types, Type.INT_TYPE);
+        System.arraycopy(gbfieldtypes, 0, types, 0, gbfieldtypes.length);
+        return new TupleDesc(types);
+    }
+
+    /** Returns one tuple per group, made as it is asked for */
+    private class Iter implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td = resultDesc();
+        private int next = -1;
+
+        @Override
+        public void open() {
+            next = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0 && next < groups.size();
+        }
+
+        @Override
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            int g = next++;
+            Tuple t = new Tuple(td);
+            int f = 0;
+            for (; f < gbfieldtypes.length; f++)
+                t.setField(f, groups.value(g, f));
+            for (Accumulator acc : accs)
+                t.setField(f++, new IntField(acc.result(g)));
+            return t;
+        }
+
+        @Override
+        public void rewind() {
+            open();
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public void close() {
+            next = -1;
+        }
+    }
+}
@@ -2,13 +2,32 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin builds a hash table of child1 and probes it with child2.
+ * When child1 does not fit in the memory budget, the join becomes a hybrid
+ * hash join: both inputs are split into partitions by the hash of the join
+ * key, partition 0 of child1 stays in memory and is joined as child2 is
+ * partitioned, and the other partitions go to spill files and are joined a
+ * pair at a time afterwards, each pair being split again if it still does
+ * not fit.
+ * <p>
+ * When both join keys are ints the hash table is an {@link IntHashTable}
+ * rather than a map of lists, and either way a {@link BloomFilter} of the
+ * build keys drops most probe tuples without a match before they are
+ * looked up or spilled.
  */
 public class HashEquiJoin extends Operator {
 
@@ -16,6 +35,8 @@ public class HashEquiJoin extends Operator {
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
+    private int memoryPages;
+    private final int depth;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
@@ -31,12 +52,39 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES, 0);
+    }
+
+    /**
+     * Constructor for the join of one pair of partitions of a larger join
+     *
+     * @param depth how many times the inputs have been partitioned
+     */
+    private HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages, int depth) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryPages = memoryPages;
+        this.depth = depth;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /** @return the pages of build tuples this join holds in memory */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * Set the memory budget of this join, in pages of build tuples.  A build
+     * side larger than that is partitioned to spill files along with the
+     * probe side, and the partitions are joined a pair at a time.
+     */
+    public void setMemoryPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("a join needs at least one page");
+        this.memoryPages = pages;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return pred;
     }
@@ -55,44 +103,302 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
+    /** Pages of build tuples a join holds in memory unless told otherwise */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    /** The most partitions the inputs are split into at a time */
+    static final int MAX_FANOUT = 64;
+    /**
+     * The most times a partition is split again; a partition still too
+     * large after that, the tuples of a few very common keys, is joined a
+     * memoryful of build tuples at a time, rescanning its probe side
+     */
+    static final int MAX_DEPTH = 4;
+
+    private enum Phase { MEMORY, PARTITION, PAIRS, CHUNKED, DONE }
+
     final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    /** the build tuples, instead of map, when both join keys are ints */
+    transient private IntHashTable intMap;
+    transient private int mapTuples;
+    /** the keys of every build tuple, in memory or spilled */
+    transient private BloomFilter bloom;
+    /** the next build tuple in intMap matching t2, or -1 */
+    transient private int matchRow = -1;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    // both children are read a batch at a time; these hold what has been
+    // read but not yet used
+    transient private TupleBatch build, probe;
+    transient private int buildPos, probePos;
+    transient private boolean buildDone;
+
+    transient private Phase phase;
+    /** partitions of each input; the build partition 0 is kept in memory while resident */
+    transient private SpillFile[] buildSpills, probeSpills;
+    transient private boolean resident;
+    /** the join of the spilled partition pair being read, and the next pair */
+    transient private HashEquiJoin pair;
+    transient private int nextPair;
+    transient private long spilledTuples;
+
+    private Tuple nextBuild() throws DbException, TransactionAbortedException {
+        if (buildPos == build.size()) {
+            buildPos = 0;
+            if (buildDone || !child1.nextBatch(build)) {
+                buildDone = true;
+                return null;
+            }
+        }
+        return build.get(buildPos++);
+    }
+
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (probePos == probe.size()) {
+            probePos = 0;
+            if (!child2.nextBatch(probe))
+                return null;
+        }
+        return probe.get(probePos++);
+    }
+
+    private void rewindProbe() throws DbException, TransactionAbortedException {
+        child2.rewind();
+        probe.clear();
+        probePos = 0;
+    }
+
+    /** Return the number of build tuples the memory budget holds */
+    private int maxMapTuples() {
+        long budget = (long) memoryPages * BufferPool.getPageSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / child1.getTupleDesc().getSize()));
+    }
+
+    /** Return the hash of a join key the bloom filter is kept on */
+    private int hash(Field key) {
+        return intMap != null ? ((IntField) key).getValue() : key.hashCode();
+    }
+
+    private void addToMap(Tuple t) {
+        Field key = t.getField(pred.getField1());
+        if (intMap != null)
+            intMap.add(((IntField) key).getValue(), t);
+        else
+            map.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+        mapTuples++;
+    }
+
+    private void clearMap() {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+        if (intMap != null)
+            intMap.clear();
+        mapTuples = 0;
+    }
+
+    /** Return the build tuples in the map */
+    private List<Tuple> mapped() {
+        List<Tuple> tuples = new ArrayList<>(mapTuples);
+        if (intMap != null) {
+            for (int i = 0; i < intMap.size(); i++)
+                tuples.add(intMap.row(i));
+        } else {
+            for (List<Tuple> list : map.values())
+                tuples.addAll(list);
+        }
+        return tuples;
+    }
+
+    /** Make the bloom filter hold the keys in the map */
+    private void bloomMap() {
+        bloom = new BloomFilter(mapTuples);
+        if (intMap != null) {
+            for (int k : intMap.keys())
+                bloom.add(k);
+        } else {
+            for (Object k : map.keySet())
+                bloom.add(k.hashCode());
+        }
+    }
+
+    /**
+     * Fill the map from the build side until the side is done or the map
+     * holds as many tuples as the memory budget allows.
+     *
+     * @return true if the map filled up
+     */
+    private boolean loadMap() throws DbException, TransactionAbortedException {
+        clearMap();
+        int max = maxMapTuples();
+        Tuple t;
+        while (mapTuples < max && (t = nextBuild()) != null)
+            addToMap(t);
+        return mapTuples >= max;
+    }
+
+    /** Return the partition of a key, hashed differently at each depth */
+    private int partition(Field key) {
+        int h = key.hashCode() * 0x9E3779B1 + depth * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 12;
+        return Math.floorMod(h, buildSpills.length);
+    }
+
+    private void spill(SpillFile[] spills, int p, Tuple t, TupleDesc td) throws DbException {
+        try {
+            if (spills[p] == null)
+                spills[p] = new SpillFile(td);
+            spills[p].add(t);
+            spilledTuples++;
+        } catch (IOException e) {
+            throw new DbException("could not spill join partition: " + e);
+        }
+    }
+
+    /**
+     * The build side is larger than the memory budget: split it into
+     * partitions by the hash of the join key, keeping partition 0 in
+     * memory for as long as it fits and writing the rest to spill files.
+     */
+    private void partitionBuild() throws DbException, TransactionAbortedException {
+        int fanout = Math.max(2, Math.min(MAX_FANOUT, memoryPages / 2));
+        buildSpills = new SpillFile[fanout];
+        probeSpills = new SpillFile[fanout];
+        resident = true;
+        // sized for a full map per partition, at most an eighth of the budget
+        long keys = (long) maxMapTuples() * fanout;
+        bloom = new BloomFilter((int) Math.min(keys, (long) memoryPages * BufferPool.getPageSize() / 8));
+        List<Tuple> held = mapped();
+        clearMap();
+        for (Tuple t : held)
+            addBuild(t);
+        held = null;
+        Tuple t;
+        while ((t = nextBuild()) != null)
+            addBuild(t);
+        flush(buildSpills);
+    }
+
+    private void addBuild(Tuple t) throws DbException {
+        Field key = t.getField(pred.getField1());
+        bloom.add(hash(key));
+        int p = partition(key);
+        if (p != 0 || !resident) {
+            spill(buildSpills, p, t, child1.getTupleDesc());
+            return;
+        }
+        addToMap(t);
+        if (mapTuples > maxMapTuples()) {
+            // even one partition is too large: spill it like the others
+            resident = false;
+            for (Tuple r : mapped())
+                spill(buildSpills, 0, r, child1.getTupleDesc());
+            clearMap();
+        }
+    }
+
+    private static void flush(SpillFile[] spills) throws DbException {
+        try {
+            for (SpillFile f : spills) {
+                if (f != null)
+                    f.flush();
+            }
+        } catch (IOException e) {
+            throw new DbException("could not spill join partition: " + e);
+        }
+    }
+
+    /**
+     * Start joining the next pair of spilled partitions, if there is one
+     * with tuples on both sides.
+     */
+    private boolean openNextPair() throws DbException, TransactionAbortedException {
+        while (nextPair < buildSpills.length) {
+            int p = nextPair++;
+            if (buildSpills[p] != null && probeSpills[p] != null) {
+                pair = new HashEquiJoin(pred, buildSpills[p].iterator(), probeSpills[p].iterator(),
+                                        memoryPages, depth + 1);
+                pair.open();
                 return true;
+            }
+            closePair(p);
         }
-        return cnt > 0;
+        return false;
+    }
+
+    /** Close the join of a pair of partitions and delete their files */
+    private void closePair(int p) {
+        if (pair != null) {
+            spilledTuples += pair.spilledTuples;
+            pair.close();
+            pair = null;
+        }
+        if (buildSpills[p] != null)
+            buildSpills[p].close();
+        if (probeSpills[p] != null)
+            probeSpills[p].close();
+        buildSpills[p] = probeSpills[p] = null;
+    }
+
+    private void closeSpills() {
+        if (buildSpills != null) {
+            for (int p = 0; p < buildSpills.length; p++)
+                closePair(p);
+            buildSpills = probeSpills = null;
+        }
+    }
 
+    /** Load the build side and decide how to join */
+    private void start() throws DbException, TransactionAbortedException {
+        build.clear();
+        probe.clear();
+        buildPos = probePos = 0;
+        buildDone = false;
+        listIt = null;
+        matchRow = -1;
+        if (!loadMap())
+            phase = Phase.MEMORY;
+        else if (depth < MAX_DEPTH) {
+            partitionBuild();
+            phase = Phase.PARTITION;
+            return;
+        } else
+            phase = Phase.CHUNKED;
+        bloomMap();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build = new TupleBatch();
+        probe = new TupleBatch();
+        boolean intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+        intMap = intKeys ? new IntHashTable() : null;
+        spilledTuples = 0;
+        start();
         super.open();
     }
 
     public void close() {
         super.close();
+        closeSpills();
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.intMap=null;
+        this.bloom=null;
+        this.build=null;
+        this.probe=null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        closeSpills();
         child1.rewind();
         child2.rewind();
+        start();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -115,8 +421,8 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() {
-        t1 = listIt.next();
+    private Tuple processList(Tuple match) {
+        t1 = match;
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -131,33 +437,106 @@ public class HashEquiJoin extends Operator {
 
     }
 
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+    /** Look up the build tuples matching a probe key */
+    private void findMatches(Field key) {
+        if (intMap != null) {
+            matchRow = intMap.first(((IntField) key).getValue());
+        } else {
+            List<Tuple> l = map.get(key);
+            if (l != null)
+                listIt = l.iterator();
+        }
+    }
+
+    /** Return the next build tuple matching t2, or null */
+    private Tuple nextMatch() {
+        if (matchRow >= 0) {
+            Tuple t = intMap.row(matchRow);
+            matchRow = intMap.next(matchRow);
+            return t;
         }
+        if (listIt != null && listIt.hasNext())
+            return listIt.next();
+        listIt = null;
+        return null;
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            Tuple match = nextMatch();
+            if (match != null)
+                return processList(match);
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            if (phase == Phase.DONE)
+                return null;
+            if (phase == Phase.PAIRS) {
+                if (pair != null) {
+                    Tuple t = pair.fetchNext();
+                    if (t != null)
+                        return t;
+                    closePair(nextPair - 1);
+                }
+                if (!openNextPair())
+                    phase = Phase.DONE;
                 continue;
-            listIt = l.iterator();
+            }
 
-            return processList();
+            // loop around child2
+            Tuple next = nextProbe();
+            if (next != null) {
+                t2 = next;
+                Field key = t2.getField(pred.getField2());
+                if (!bloom.mightContain(hash(key)))
+                    continue;
+                if (phase == Phase.PARTITION) {
+                    int p = partition(key);
+                    if (p != 0 || !resident) {
+                        // no build tuples in the partition, no matches
+                        if (buildSpills[p] != null)
+                            spill(probeSpills, p, t2, child2.getTupleDesc());
+                        continue;
+                    }
+                }
+                // if match, create a combined tuple and fill it with the
+                // values from both tuples
+                findMatches(key);
+                continue;
+            }
 
+            // child2 is done
+            switch (phase) {
+                case PARTITION:
+                    // partition 0 is joined; the spilled pairs are next
+                    flush(probeSpills);
+                    clearMap();
+                    nextPair = 0;
+                    phase = Phase.PAIRS;
+                    break;
+                case CHUNKED:
+                    // advance child1, rescanning child2 for the next chunk
+                    if (buildDone) {
+                        phase = Phase.DONE;
+                        break;
+                    }
+                    rewindProbe();
+                    loadMap();
+                    bloomMap();
+                    break;
+                default:
+                    phase = Phase.DONE;
+            }
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
+    protected void fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        Tuple t;
+        while (!batch.isFull() && (t = fetchNext()) != null)
+            batch.add(t);
+    }
 
-        return null;
+    /** @return the tuples of both inputs this join and the joins of its partitions wrote to spill files */
+    public long getSpilledTuples() {
+        return spilledTuples;
     }
 
     @Override
@@ -87,9 +87,9 @@ public class Insert extends Operator {
             int count=0;
             while (child.hasNext())
             {
-                DbFile dbFile =Database.getCatalog().getDatabaseFile(this.tableId);
                 try {
-                    dbFile.insertTuple(t,child.next());
+                    //go through the buffer pool so that the pages get marked dirty
+                    Database.getBufferPool().insertTuple(t,this.tableId,child.next());
                     count++;
                 }
                 catch(IOException e)
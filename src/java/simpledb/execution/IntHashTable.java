@@ -0,0 +1,123 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * IntHashTable maps the int join keys of the build side of a
+ * {@link HashEquiJoin} to the tuples that have them.  The keys live in an
+ * open-addressing table probed linearly, the tuples in one array in the
+ * order they were added, and the tuples with the same key are chained
+ * through an array of row indexes, so adding a tuple allocates nothing
+ * but the occasional larger array.
+ */
+class IntHashTable {
+    private static final int EMPTY = -1;
+
+    /** the keys, and the last row added with each; heads[i] is EMPTY for a free slot */
+    private int[] keys, heads;
+    private int mask;
+    private int used;
+
+    /** the rows, and for each the row added before it with the same key */
+    private Tuple[] rows;
+    private int[] next;
+    private int size;
+
+    IntHashTable() {
+        keys = new int[16];
+        heads = new int[16];
+        Arrays.fill(heads, EMPTY);
+        mask = 15;
+        rows = new Tuple[16];
+        next = new int[16];
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** Add a row with a key */
+    void add(int key, Tuple row) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+        }
+        int s = slot(key, mask);
+        while (heads[s] != EMPTY && keys[s] != key)
+            s = (s + 1) & mask;
+        if (heads[s] == EMPTY) {
+            keys[s] = key;
+            used++;
+        }
+        next[size] = heads[s];
+        heads[s] = size;
+        rows[size++] = row;
+        // keep probe runs short: at most half the slots in use
+        if (used * 2 > keys.length)
+            grow();
+    }
+
+    private void grow() {
+        int[] oldKeys = keys, oldHeads = heads;
+        keys = new int[oldKeys.length * 2];
+        heads = new int[oldKeys.length * 2];
+        Arrays.fill(heads, EMPTY);
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] == EMPTY)
+                continue;
+            int s = slot(oldKeys[i], mask);
+            while (heads[s] != EMPTY)
+                s = (s + 1) & mask;
+            keys[s] = oldKeys[i];
+            heads[s] = oldHeads[i];
+        }
+    }
+
+    /** Return the index of a row with the key, or -1 if there is none */
+    int first(int key) {
+        int s = slot(key, mask);
+        while (heads[s] != EMPTY) {
+            if (keys[s] == key)
+                return heads[s];
+            s = (s + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Return the index of the next row with the same key as a row, or -1 */
+    int next(int row) {
+        return next[row];
+    }
+
+    Tuple row(int row) {
+        return rows[row];
+    }
+
+    /** @return the number of rows */
+    int size() {
+        return size;
+    }
+
+    /** @return the keys in the table, in no particular order */
+    int[] keys() {
+        int[] out = new int[used];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (heads[i] != EMPTY)
+                out[n++] = keys[i];
+        }
+        return out;
+    }
+
+    /** Remove every row, keeping the arrays for the next build */
+    void clear() {
+        Arrays.fill(heads, EMPTY);
+        Arrays.fill(rows, 0, size, null);
+        used = 0;
+        size = 0;
+    }
+}
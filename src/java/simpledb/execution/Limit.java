@@ -0,0 +1,97 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Limit implements LIMIT and OFFSET: it skips the first offset tuples of
+ * its child and returns at most limit of the rest, reading no further
+ * once it has.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final long limit;
+    private final long offset;
+    private transient long returned;
+    private transient boolean skipped;
+
+    /**
+     * @param limit the most tuples to return
+     * @param offset the tuples to skip before the first one returned
+     * @param child the tuples to limit
+     */
+    public Limit(long limit, long offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /** @return a short description of the limit, for query plans */
+    public String getName() {
+        return offset == 0 ? "limit(" + limit + ")" : "limit(" + limit + " offset " + offset + ")";
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        returned = 0;
+        skipped = false;
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = 0;
+        skipped = false;
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!skipped) {
+            for (long i = 0; i < offset && child.hasNext(); i++)
+                child.next();
+            skipped = true;
+        }
+        if (returned == limit || !child.hasNext())
+            return null;
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Comparator;
+
+/**
+ * LoserTree merges sorted inputs into one sorted stream.  It is a
+ * tournament among the current tuples of the inputs in which each inner
+ * node keeps the input that lost the match there and the root the overall
+ * winner, so replacing the winner with the next tuple of its input replays
+ * one match per level on the way back up: about log2(k) comparisons per
+ * tuple for k inputs, against up to twice that for a binary heap.  Tuples
+ * that compare equal come out in the order of their inputs.
+ */
+class LoserTree {
+    private final OpIterator[] inputs;
+    private final Comparator<Tuple> cmp;
+    /** the current tuple of each input, null once the input is done */
+    private final Tuple[] heads;
+    /** tree[0] is the winner; tree[1..k-1] the losers at the inner nodes, whose leaves are k..2k-1 */
+    private final int[] tree;
+
+    /**
+     * @param inputs open inputs, each sorted by cmp
+     * @param cmp the order of the inputs and of the merge
+     */
+    LoserTree(OpIterator[] inputs, Comparator<Tuple> cmp) throws DbException, TransactionAbortedException {
+        this.inputs = inputs;
+        this.cmp = cmp;
+        int k = inputs.length;
+        heads = new Tuple[k];
+        for (int i = 0; i < k; i++)
+            heads[i] = inputs[i].hasNext() ? inputs[i].next() : null;
+        tree = new int[Math.max(1, k)];
+        if (k > 0)
+            tree[0] = build(1);
+    }
+
+    /** Play the matches below a node, returning its winner */
+    private int build(int node) {
+        int k = inputs.length;
+        if (node >= k)
+            return node - k;
+        int a = build(2 * node), b = build(2 * node + 1);
+        if (beats(a, b)) {
+            tree[node] = b;
+            return a;
+        }
+        tree[node] = a;
+        return b;
+    }
+
+    /** Return whether the current tuple of input a comes before that of b */
+    private boolean beats(int a, int b) {
+        if (heads[a] == null)
+            return false;
+        if (heads[b] == null)
+            return true;
+        int c = cmp.compare(heads[a], heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    /** Return the next tuple of the merge, or null once every input is done */
+    Tuple next() throws DbException, TransactionAbortedException {
+        if (inputs.length == 0)
+            return null;
+        int w = tree[0];
+        Tuple out = heads[w];
+        if (out == null)
+            return null;
+        heads[w] = inputs[w].hasNext() ? inputs[w].next() : null;
+        for (int node = (w + inputs.length) >> 1; node > 0; node >>= 1) {
+            if (beats(tree[node], w)) {
+                int loser = w;
+                w = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = w;
+        return out;
+    }
+}
@@ -0,0 +1,196 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * MorselScan is one fragment of a heap file scan split among several
+ * threads.  The fragments of a scan share a source that hands out morsels,
+ * runs of {@link #MORSEL_PAGES} pages, to whichever fragment
+ * asks next, so a fragment on a slow thread simply ends up with fewer of
+ * them.  Together the fragments return every tuple of the file once.
+ * <p>
+ * The morsels a fragment takes are only decided as it runs, so the
+ * fragments of a scan are all opened before any is read and all closed
+ * after every one is done; the first open after they are all closed starts
+ * the file over.  A rewound fragment reads the morsels it already took
+ * again, then goes on taking new ones, so a fragment read to the end and
+ * rewound returns the same tuples again, as a join rescanning its inner
+ * side expects.
+ */
+public class MorselScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of pages in one morsel */
+    public static final int MORSEL_PAGES = 16;
+
+    private final Source source;
+    private final TransactionId tid;
+    private final String tableAlias;
+
+    /** first pages of the morsels this fragment took, in order */
+    private transient List<Integer> taken;
+    /** index in taken of the morsel being read */
+    private transient int morsel;
+    private transient int pgNo, lastPage;
+    /** the page after the last one of the morsel read ahead */
+    private transient int prefetchedTo;
+    private transient Iterator<Tuple> tuples;
+    private transient ScanRing ring;
+    private transient boolean sourceOpen;
+
+    private MorselScan(Source source, TransactionId tid, String tableAlias) {
+        this.source = source;
+        this.tid = tid;
+        this.tableAlias = tableAlias;
+    }
+
+    /**
+     * Split a scan of a heap file into fragments.
+     *
+     * @param tid the transaction the scan is running as a part of
+     * @param tableId the heap file to scan
+     * @param tableAlias the alias of this table, used as in {@link SeqScan}
+     * @param n the number of fragments
+     */
+    public static MorselScan[] fragments(TransactionId tid, int tableId, String tableAlias, int n) {
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile))
+            throw new IllegalArgumentException("morsel scans need a heap file");
+        Source source = new Source(tableId);
+        MorselScan[] scans = new MorselScan[n];
+        for (int i = 0; i < n; i++)
+            scans[i] = new MorselScan(source, tid, tableAlias);
+        return scans;
+    }
+
+    public String getTableName() {
+        return Database.getCatalog().getTableName(source.tableId);
+    }
+
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return SeqScan.aliasedTupleDesc(Database.getCatalog().getTupleDesc(source.tableId), tableAlias);
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        Database.getBufferPool().lockTable(tid, source.tableId, Permissions.READ_ONLY);
+        if (!sourceOpen) {
+            source.open();
+            sourceOpen = true;
+        }
+        taken = new ArrayList<>();
+        ring = Database.getBufferPool().newScanRing(source.numPages());
+        restart();
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (sourceOpen) {
+            source.close();
+            sourceOpen = false;
+        }
+        taken = null;
+        tuples = null;
+        ring = null;
+    }
+
+    @Override
+    public void rewind() {
+        restart();
+    }
+
+    private void restart() {
+        morsel = -1;
+        pgNo = lastPage = prefetchedTo = 0;
+        tuples = null;
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (tuples == null || !tuples.hasNext()) {
+            if (pgNo == lastPage && !nextMorsel())
+                return null;
+            BufferPool bufferPool = Database.getBufferPool();
+            prefetchedTo = bufferPool.readAhead(source.tableId, pgNo, lastPage, prefetchedTo);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(source.tableId, pgNo++),
+                                                          Permissions.READ_ONLY, ring);
+            tuples = page.iterator();
+        }
+        return tuples.next();
+    }
+
+    /** Move to the next morsel, returning false if there is none */
+    private boolean nextMorsel() {
+        if (morsel + 1 == taken.size()) {
+            int first = source.take();
+            if (first < 0)
+                return false;
+            taken.add(first);
+        }
+        pgNo = taken.get(++morsel);
+        lastPage = Math.min(source.numPages(), pgNo + MORSEL_PAGES);
+        prefetchedTo = pgNo + 1;
+        return true;
+    }
+
+    /** Hands out the morsels of a file to the fragments scanning it */
+    private static final class Source {
+        final int tableId;
+        private int numPages;
+        private int nextPage;
+        private int active;
+
+        Source(int tableId) {
+            this.tableId = tableId;
+        }
+
+        synchronized void open() {
+            if (active++ == 0) {
+                numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableId)).numPages();
+                nextPage = 0;
+            }
+        }
+
+        synchronized void close() {
+            active--;
+        }
+
+        synchronized int numPages() {
+            return numPages;
+        }
+
+        /** Return the first page of the next morsel, or -1 if there is none */
+        synchronized int take() {
+            if (nextPage >= numPages)
+                return -1;
+            int first = nextPage;
+            nextPage += MORSEL_PAGES;
+            return first;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+    }
+}
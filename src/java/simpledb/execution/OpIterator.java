@@ -39,6 +39,24 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Replaces the contents of batch with the next tuples of the iteration,
+   * at most as many as the batch holds.  Operators that can produce many
+   * tuples per call override this; the default reads them one at a time
+   * through {@link #hasNext()} and {@link #next()}, so tuple-at-a-time
+   * operators can feed batch-at-a-time ones.  The two styles may be mixed
+   * on one iterator.
+   *
+   * @return false if there are no more tuples, in which case batch is empty
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default boolean nextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+    batch.clear();
+    while (!batch.isFull() && hasNext())
+      batch.add(next());
+    return !batch.isEmpty();
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -38,6 +38,36 @@ public abstract class Operator implements OpIterator {
         return result;
     }
 
+    public boolean nextBatch(TupleBatch batch) throws DbException,
+            TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        batch.clear();
+        if (next != null) {
+            // left over from hasNext
+            batch.add(next);
+            next = null;
+            return true;
+        }
+        fetchNextBatch(batch);
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Fills an empty batch with the next tuples in the iterator, leaving it
+     * empty only if the iteration is finished. Operator uses this method to
+     * implement <code>nextBatch</code>; the default calls
+     * <code>fetchNext</code> once per tuple, and operators that can do
+     * better override it.
+     */
+    protected void fetchNextBatch(TupleBatch batch) throws DbException,
+            TransactionAbortedException {
+        Tuple t;
+        while (!batch.isFull() && (t = fetchNext()) != null)
+            batch.add(t);
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
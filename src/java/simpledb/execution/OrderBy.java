@@ -2,29 +2,58 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The child is sorted a memoryful at a time.  If it all fits, the sorted
+ * tuples are returned from memory; otherwise each sorted memoryful is
+ * written to a spill file as a run, and the runs are merged, as many at a
+ * time as there are pages of memory, until the last merge can be returned
+ * as it is read.
+ * <p>
+ * A memoryful is sorted on a normalized prefix of its first key: the key,
+ * or the first characters of a string key, mapped to an int that orders
+ * the same way, so most of the sort compares primitive longs.  Only tuples
+ * with equal prefixes are then compared field by field.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Pages of tuples a sort holds in memory unless told otherwise */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] ascending;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
     private final boolean asc;
+    private int memoryPages = DEFAULT_MEMORY_PAGES;
+
+    /** the child sorted in memory, when it fits */
+    private transient Tuple[] childTups;
+    private transient int pos;
+    /** the sorted runs, when it does not, and the merge being read */
+    private transient List<SpillFile> runs;
+    private transient OpIterator[] readers;
+    private transient LoserTree merge;
+    private transient long spilledTuples;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -33,64 +62,291 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields, each breaking
+     * the ties of the ones before it.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one order per sort field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascending = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc[0];
     }
-    
+
     public boolean isASC()
     {
 	return this.asc;
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each field sorted on, whether it is ascending */
+    public boolean[] getAscending() {
+        return ascending.clone();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /** @return the pages of tuples this sort holds in memory */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * Set the memory budget of this sort, in pages of tuples.  A child
+     * larger than that is sorted in runs that are spilled to disk and
+     * merged.
+     */
+    public void setMemoryPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("a sort needs at least one page");
+        this.memoryPages = pages;
+    }
+
+    /** @return the tuples this sort wrote to spill files, counting each merge pass */
+    public long getSpilledTuples() {
+        return spilledTuples;
+    }
+
+    /** Return the number of tuples the memory budget holds */
+    private int maxTuples() {
+        long budget = (long) memoryPages * BufferPool.getPageSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, budget / td.getSize()));
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        spilledTuples = 0;
+        runs = new ArrayList<>();
+        int max = maxTuples();
+        List<Tuple> buffer = new ArrayList<>();
+        TupleBatch batch = new TupleBatch();
+        while (child.nextBatch(batch)) {
+            for (int i = 0; i < batch.size(); i++) {
+                buffer.add(batch.get(i));
+                if (buffer.size() == max) {
+                    runs.add(spill(sort(buffer.toArray(new Tuple[0]), orderByFields, ascending)));
+                    buffer.clear();
+                }
+            }
+        }
+        Tuple[] sorted = sort(buffer.toArray(new Tuple[0]), orderByFields, ascending);
+        if (runs.isEmpty()) {
+            childTups = sorted;
+        } else {
+            if (sorted.length > 0)
+                runs.add(spill(sorted));
+            buffer = null;
+            sorted = null;
+            mergeRuns();
+        }
+        startReading();
         super.open();
     }
 
+    /** Write a sorted run to a spill file */
+    private SpillFile spill(Tuple[] run) throws DbException {
+        SpillFile f = null;
+        try {
+            f = new SpillFile(td);
+            for (Tuple t : run)
+                f.add(t);
+            f.flush();
+        } catch (IOException e) {
+            if (f != null)
+                f.close();
+            throw new DbException("could not spill sorted run: " + e);
+        }
+        spilledTuples += run.length;
+        return f;
+    }
+
+    /**
+     * Merge runs into longer ones until there are few enough left to
+     * merge in the last pass, with one page of memory for each.  Each pass
+     * merges neighbouring runs, so tuples that compare equal stay in the
+     * order they were read.
+     */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        int fanIn = Math.max(2, memoryPages - 1);
+        while (runs.size() > fanIn) {
+            List<SpillFile> merged = new ArrayList<>();
+            try {
+                while (!runs.isEmpty()) {
+                    List<SpillFile> group = runs.subList(0, Math.min(fanIn, runs.size()));
+                    merged.add(group.size() == 1 ? group.get(0) : merge(new ArrayList<>(group)));
+                    group.clear();
+                }
+            } finally {
+                // on failure, keep every file for close to delete
+                merged.addAll(runs);
+                runs = merged;
+            }
+        }
+    }
+
+    /** Merge runs into one, deleting them */
+    private SpillFile merge(List<SpillFile> group) throws DbException, TransactionAbortedException {
+        OpIterator[] in = open(group);
+        SpillFile out = null;
+        try {
+            out = new SpillFile(td);
+            LoserTree tree = new LoserTree(in, new TupleComparator(orderByFields, ascending));
+            Tuple t;
+            while ((t = tree.next()) != null) {
+                out.add(t);
+                spilledTuples++;
+            }
+            out.flush();
+            return out;
+        } catch (IOException e) {
+            if (out != null)
+                out.close();
+            throw new DbException("could not spill sorted run: " + e);
+        } finally {
+            for (OpIterator r : in)
+                r.close();
+            for (SpillFile f : group)
+                f.close();
+        }
+    }
+
+    private static OpIterator[] open(List<SpillFile> files) throws DbException, TransactionAbortedException {
+        OpIterator[] in = new OpIterator[files.size()];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = files.get(i).iterator();
+            in[i].open();
+        }
+        return in;
+    }
+
+    /** Start returning the sorted tuples from the first */
+    private void startReading() throws DbException, TransactionAbortedException {
+        pos = 0;
+        if (childTups == null) {
+            closeReaders();
+            readers = open(runs);
+            merge = new LoserTree(readers, new TupleComparator(orderByFields, ascending));
+        }
+    }
+
+    private void closeReaders() {
+        if (readers != null) {
+            for (OpIterator r : readers)
+                r.close();
+            readers = null;
+        }
+        merge = null;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        closeReaders();
+        if (runs != null) {
+            for (SpillFile f : runs)
+                f.close();
+            runs = null;
+        }
+        childTups = null;
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        startReading();
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (merge != null)
+            return merge.next();
+        if (childTups != null && pos < childTups.length)
+            return childTups[pos++];
+        return null;
+    }
+
+    /**
+     * Return the tuples sorted on some fields, keeping tuples that compare
+     * equal in the order they were in.
+     */
+    static Tuple[] sort(Tuple[] tuples, int[] fields, boolean[] asc) {
+        int n = tuples.length;
+        // the prefix in the high half, the position in the low half
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = ((long) prefix(tuples[i].getField(fields[0]), asc[0]) << 32) | i;
+        Arrays.sort(keys);
+        Tuple[] sorted = new Tuple[n];
+        for (int i = 0; i < n; i++)
+            sorted[i] = tuples[(int) keys[i]];
+
+        // an int prefix is the whole of a single int key
+        if (fields.length == 1 && n > 0 && sorted[0].getField(fields[0]) instanceof IntField)
+            return sorted;
+        Comparator<Tuple> cmp = new TupleComparator(fields, asc);
+        for (int from = 0; from < n; ) {
+            int to = from + 1;
+            while (to < n && keys[to] >> 32 == keys[from] >> 32)
+                to++;
+            if (to - from > 1)
+                Arrays.sort(sorted, from, to, cmp);
+            from = to;
+        }
+        return sorted;
+    }
+
+    /**
+     * Return an int whose signed order agrees with the order of a field: if
+     * the prefix of one field is less than that of another, so is the
+     * field.
+     */
+    static int prefix(Field f, boolean asc) {
+        int p;
+        if (f instanceof IntField) {
+            p = ((IntField) f).getValue();
+        } else {
+            // the first two characters, unsigned, shifted to signed order
+            String s = ((StringField) f).getValue();
+            int c0 = s.length() > 0 ? s.charAt(0) : 0;
+            int c1 = s.length() > 1 ? s.charAt(1) : 0;
+            p = ((c0 << 16) | c1) ^ Integer.MIN_VALUE;
+        }
+        return asc ? p : ~p;
     }
 
     @Override
@@ -104,25 +360,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -17,6 +17,7 @@ public class Project extends Operator {
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private transient TupleBatch input;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -72,7 +73,18 @@ public class Project extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         if (!child.hasNext()) return null;
-        Tuple t = child.next();
+        return project(child.next());
+    }
+
+    protected void fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        if (input == null || input.capacity() != batch.capacity())
+            input = new TupleBatch(batch.capacity());
+        if (!child.nextBatch(input)) return;
+        for (int i = 0; i < input.size(); i++)
+            batch.add(project(input.get(i)));
+    }
+
+    private Tuple project(Tuple t) {
         Tuple newTuple = new Tuple(td);
         newTuple.setRecordId(t.getRecordId());
         for (int i = 0; i < td.numFields(); i++) {
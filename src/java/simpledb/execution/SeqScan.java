@@ -25,6 +25,7 @@ public class SeqScan implements OpIterator {
     private TransactionId tid;
     private DbFileIterator dbFileIterator;
     private DbFile dbFile;
+    private boolean open;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -93,6 +94,7 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         dbFileIterator.open();
+        open=true;
     }
 
     /**
@@ -106,7 +108,14 @@ public class SeqScan implements OpIterator {
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
-        TupleDesc td=dbFile.getTupleDesc();
+        // some code goes here
+        return aliasedTupleDesc(dbFile.getTupleDesc(),tableAlias);
+    }
+
+    /**
+     * Return td with every field name prefixed by tableAlias and a "."
+     */
+    static TupleDesc aliasedTupleDesc(TupleDesc td, String tableAlias) {
         Type[] typeAr=new Type[td.numFields()];
         String[] fieldAr=new String[td.numFields()];
         String prefix=null;
@@ -123,7 +132,6 @@ public class SeqScan implements OpIterator {
             str=prefix+"."+str;
             fieldAr[i]=str;
         }
-        // some code goes here
         return new TupleDesc(typeAr,fieldAr);
     }
 
@@ -138,9 +146,19 @@ public class SeqScan implements OpIterator {
         return dbFileIterator.next();
     }
 
+    public boolean nextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        if(!open)
+            throw new IllegalStateException("Operator not yet open");
+        batch.clear();
+        while(!batch.isFull()&&dbFileIterator.hasNext())
+            batch.add(dbFileIterator.next());
+        return !batch.isEmpty();
+    }
+
     public void close() {
         // some code goes here
         dbFileIterator.close();
+        open=false;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
@@ -0,0 +1,298 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillingAggregate is an {@link Aggregate} for more groups than fit in
+ * memory.  It aggregates its child in a {@link HashAggregator} until the
+ * aggregator holds as many groups as the memory budget allows, then writes
+ * the partial aggregate of each group to one of several spill files,
+ * chosen by the hash of the group-by value, and starts over with an empty
+ * aggregator.  Once the child is done, each spill file holds every partial
+ * aggregate of its groups and is aggregated on its own, being split again,
+ * with another hash, if it still has too many groups.
+ * <p>
+ * The groups are returned a partition at a time, each partition only once
+ * the one before it is done, so at most one partition is in memory.
+ */
+public class SpillingAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Pages of groups an aggregate holds in memory unless told otherwise */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    /** The most partitions the partial aggregates are split into at a time */
+    static final int MAX_FANOUT = 64;
+    /**
+     * The most times a partition is split again; a partition with too many
+     * groups after that is aggregated in memory anyway
+     */
+    static final int MAX_DEPTH = 4;
+    /** Bytes a group takes in its group table, beyond its group-by values, about */
+    private static final int GROUP_OVERHEAD = 24;
+    /** Bytes the running state of an aggregate takes per group, about */
+    private static final int AGGREGATE_OVERHEAD = 24;
+
+    private int memoryPages = DEFAULT_MEMORY_PAGES;
+
+    private transient long spilledGroups;
+
+    /** A spill file of partial aggregates, and how many times they were split */
+    private static final class Partition {
+        final SpillFile file;
+        final int depth;
+
+        Partition(SpillFile file, int depth) {
+            this.file = file;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * @param child  The OpIterator that is feeding us tuples.
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if
+     *               there is no grouping
+     * @param aop    The aggregation operator to use
+     */
+    public SpillingAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        super(child, afield, gfield, aop);
+    }
+
+    /**
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The column of each aggregate.
+     * @param gfields The columns over which we are grouping the result, none
+     *                if there is no grouping
+     * @param aops    The aggregation operator of each aggregate
+     */
+    public SpillingAggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        super(child, afields, gfields, aops);
+    }
+
+    /**
+     * Return the number of groups a memory budget holds
+     *
+     * @param memoryPages the budget, in pages
+     * @param groupTypes the types of the group-by fields
+     * @param aggregates the number of aggregates of each group
+     */
+    public static int maxGroups(int memoryPages, Type[] groupTypes, int aggregates) {
+        long budget = (long) memoryPages * BufferPool.getPageSize();
+        int groupSize = GROUP_OVERHEAD + aggregates * AGGREGATE_OVERHEAD;
+        for (Type t : groupTypes)
+            groupSize += t.getLen();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / groupSize));
+    }
+
+    /** @return the pages of groups this aggregate holds in memory */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * Set the memory budget of this aggregate, in pages.  When it holds
+     * more groups than that, it spills partial aggregates to disk.
+     */
+    public void setMemoryPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("an aggregate needs at least one page");
+        this.memoryPages = pages;
+    }
+
+    /** @return the partial aggregates this aggregate wrote to spill files */
+    public long getSpilledGroups() {
+        return spilledGroups;
+    }
+
+    @Override
+    protected OpIterator groups() throws DbException, TransactionAbortedException {
+        OpIterator child = getChildren()[0];
+        Groups groups = new Groups(child.getTupleDesc());
+        spilledGroups = 0;
+        child.open();
+        try {
+            groups.agg = groups.aggregate(child, false, 0);
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            groups.close();
+            throw e;
+        } finally {
+            child.close();
+        }
+        return groups;
+    }
+
+    /**
+     * Return the partition of a partial aggregate by its leading group-by
+     * values, hashed differently at each depth
+     */
+    private static int partition(Tuple t, int keys, int depth, int n) {
+        int h = 1;
+        for (int i = 0; i < keys; i++)
+            h = 31 * h + t.getField(i).hashCode();
+        h = h * 0x9E3779B1 + depth * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 12;
+        return Math.floorMod(h, n);
+    }
+
+    /**
+     * The groups of the aggregate: those of the aggregator in memory, then
+     * those of each spilled partition in turn.  Closing it deletes the
+     * partitions not yet aggregated.
+     */
+    private class Groups implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc childTd;
+        private final int maxGroups;
+        private final Deque<Partition> pending = new ArrayDeque<>();
+        /** the aggregator of the groups being returned, and its iterator */
+        private HashAggregator agg;
+        private OpIterator it;
+
+        Groups(TupleDesc childTd) {
+            this.childTd = childTd;
+            int[] gfields = groupFields();
+            Type[] groupTypes = new Type[gfields.length];
+            for (int i = 0; i < gfields.length; i++)
+                groupTypes[i] = childTd.getFieldType(gfields[i]);
+            this.maxGroups = gfields.length == 0 ? Integer.MAX_VALUE
+                    : maxGroups(memoryPages, groupTypes, aggregateFields().length);
+        }
+
+        /**
+         * Aggregate an input, either tuples of the child or partial
+         * aggregates, spilling when there are too many groups.
+         *
+         * @return the aggregator, or null if it was spilled to new partitions
+         */
+        HashAggregator aggregate(OpIterator in, boolean partials, int depth)
+                throws DbException, TransactionAbortedException {
+            HashAggregator a = newAggregator(childTd);
+            SpillFile[] parts = null;
+            TupleBatch batch = new TupleBatch();
+            while (in.nextBatch(batch)) {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (partials)
+                        a.mergePartial(batch.get(i));
+                    else
+                        a.mergeTupleIntoGroup(batch.get(i));
+                    if (a.numGroups() > maxGroups && depth < MAX_DEPTH) {
+                        if (parts == null)
+                            parts = new SpillFile[Math.max(2, Math.min(MAX_FANOUT, memoryPages / 2))];
+                        spill(a, parts, depth);
+                        a = newAggregator(childTd);
+                    }
+                }
+            }
+            if (parts == null)
+                return a;
+            spill(a, parts, depth);
+            try {
+                for (SpillFile f : parts)
+                    if (f != null)
+                        f.flush();
+            } catch (IOException e) {
+                throw new DbException("could not spill aggregate partition: " + e);
+            }
+            return null;
+        }
+
+        /** Write the partial aggregate of every group of an aggregator to its partition */
+        private void spill(HashAggregator a, SpillFile[] parts, int depth) throws DbException {
+            TupleDesc td = a.partialDesc();
+            int keys = groupFields().length;
+            try {
+                for (int g = 0; g < a.numGroups(); g++) {
+                    Tuple t = a.partial(g, td);
+                    int p = partition(t, keys, depth, parts.length);
+                    if (parts[p] == null) {
+                        parts[p] = new SpillFile(td);
+                        pending.push(new Partition(parts[p], depth + 1));
+                    }
+                    parts[p].add(t);
+                    spilledGroups++;
+                }
+            } catch (IOException e) {
+                throw new DbException("could not spill aggregate partition: " + e);
+            }
+        }
+
+        /** Aggregate the next spilled partition, returning false if there is none */
+        private boolean nextPartition() throws DbException, TransactionAbortedException {
+            while (!pending.isEmpty()) {
+                Partition p = pending.pop();
+                OpIterator in = p.file.iterator();
+                try {
+                    in.open();
+                    agg = aggregate(in, true, p.depth);
+                } finally {
+                    in.close();
+                    p.file.close();
+                }
+                if (agg != null) {
+                    it = agg.iterator();
+                    it.open();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            if (agg != null) {
+                it = agg.iterator();
+                it.open();
+            }
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (it == null || !it.hasNext()) {
+                if (!nextPartition())
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return it.next();
+        }
+
+        @Override
+        public void rewind() {
+            throw new UnsupportedOperationException("spilled groups are read once; rewind the aggregate");
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return SpillingAggregate.this.getTupleDesc();
+        }
+
+        @Override
+        public void close() {
+            for (Partition p : pending)
+                p.file.close();
+            pending.clear();
+            it = null;
+            agg = null;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * TopN returns the first n tuples of its child in the order an
+ * {@link OrderBy} on the same fields would, holding only n tuples at a
+ * time rather than the whole child.  The tuples kept so far are a heap
+ * with the last of them on top; each tuple read is compared with that one
+ * and dropped, or put in its place.  Most of those comparisons are on the
+ * normalized prefix of the first key {@link OrderBy} sorts on, so a tuple
+ * that does not make the cut usually costs one int comparison.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int[] fields;
+    private final boolean[] asc;
+    private final int n;
+
+    // the heap: tuples, the prefixes of their first keys, and the order
+    // they were read in, which breaks ties as a stable sort would
+    private transient Tuple[] heap;
+    private transient int[] prefixes;
+    private transient long[] seqs;
+    private transient int size;
+    private transient Comparator<Tuple> cmp;
+    private transient int pos;
+
+    /**
+     * @param orderbyFields the fields to sort on, most significant first
+     * @param asc for each field, true if the sort order is ascending
+     * @param n the number of tuples to return
+     * @param child the tuples to sort
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int n, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one order per sort field");
+        if (n < 0)
+            throw new IllegalArgumentException("n must not be negative");
+        this.fields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.n = n;
+        this.child = child;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return fields.clone();
+    }
+
+    /** @return for each field sorted on, whether it is ascending */
+    public boolean[] getAscending() {
+        return asc.clone();
+    }
+
+    /** @return a short description of the operator, for query plans */
+    public String getName() {
+        TupleDesc td = child.getTupleDesc();
+        StringBuilder sb = new StringBuilder("top(").append(n);
+        for (int i = 0; i < fields.length; i++)
+            sb.append(i == 0 ? " by " : ",").append(td.getFieldName(fields[i])).append(asc[i] ? "" : " desc");
+        return sb.append(")").toString();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        cmp = new TupleComparator(fields, asc);
+        int capacity = Math.min(n, 64);
+        heap = new Tuple[capacity];
+        prefixes = new int[capacity];
+        seqs = new long[capacity];
+        size = 0;
+        if (n > 0) {
+            long seq = 0;
+            TupleBatch batch = new TupleBatch();
+            while (child.nextBatch(batch)) {
+                for (int i = 0; i < batch.size(); i++)
+                    offer(batch.get(i), seq++);
+            }
+        }
+        sortHeap();
+        pos = 0;
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        child.close();
+        heap = null;
+        prefixes = null;
+        seqs = null;
+    }
+
+    @Override
+    public void rewind() {
+        pos = 0;
+    }
+
+    @Override
+    protected Tuple fetchNext() {
+        return pos < size ? heap[pos++] : null;
+    }
+
+    /** Keep a tuple if it is among the first n read so far */
+    private void offer(Tuple t, long seq) {
+        int prefix = OrderBy.prefix(t.getField(fields[0]), asc[0]);
+        if (size < n) {
+            if (size == heap.length) {
+                int capacity = (int) Math.min(n, 2L * size);
+                heap = Arrays.copyOf(heap, capacity);
+                prefixes = Arrays.copyOf(prefixes, capacity);
+                seqs = Arrays.copyOf(seqs, capacity);
+            }
+            set(size, t, prefix, seq);
+            siftUp(size++);
+            return;
+        }
+        // read after every tuple kept, so a tie with the last is not enough
+        if (prefix > prefixes[0] || (prefix == prefixes[0] && cmp.compare(t, heap[0]) >= 0))
+            return;
+        set(0, t, prefix, seq);
+        siftDown(0, size);
+    }
+
+    private void set(int i, Tuple t, int prefix, long seq) {
+        heap[i] = t;
+        prefixes[i] = prefix;
+        seqs[i] = seq;
+    }
+
+    /** Return whether the tuple at i comes after the one at j */
+    private boolean after(int i, int j) {
+        if (prefixes[i] != prefixes[j])
+            return prefixes[i] > prefixes[j];
+        int c = cmp.compare(heap[i], heap[j]);
+        return c != 0 ? c > 0 : seqs[i] > seqs[j];
+    }
+
+    private void swap(int i, int j) {
+        Tuple t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        int p = prefixes[i];
+        prefixes[i] = prefixes[j];
+        prefixes[j] = p;
+        long s = seqs[i];
+        seqs[i] = seqs[j];
+        seqs[j] = s;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!after(i, parent))
+                return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int last = i, l = 2 * i + 1, r = l + 1;
+            if (l < end && after(l, last))
+                last = l;
+            if (r < end && after(r, last))
+                last = r;
+            if (last == i)
+                return;
+            swap(i, last);
+            i = last;
+        }
+    }
+
+    /** Sort the heap in place into the order the tuples are returned in */
+    private void sortHeap() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds a run of tuples passed between operators by
+ * {@link OpIterator#nextBatch}, so that an operator pays for one call per
+ * batch instead of one per tuple.
+ * <p>
+ * The rows of a batch are addressed through a selection vector: a
+ * filtering operator drops rows by shrinking the selection rather than by
+ * copying the rows that pass.  {@link #size()} and {@link #get(int)} only
+ * see the selected rows.  A batch is meant to be reused; its tuples are
+ * only valid until the batch is refilled.
+ */
+public class TupleBatch {
+
+    /** Number of rows a batch holds unless another capacity is given */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Tuple[] rows;
+    private final int[] selection;
+    private int numRows;
+    private int size;
+
+    public TupleBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the maximum number of rows the batch holds
+     */
+    public TupleBatch(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("batch must hold at least one row");
+        rows = new Tuple[capacity];
+        selection = new int[capacity];
+    }
+
+    /** @return the maximum number of rows the batch holds */
+    public int capacity() {
+        return rows.length;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return numRows == rows.length;
+    }
+
+    /** Remove all rows */
+    public void clear() {
+        Arrays.fill(rows, 0, numRows, null);
+        numRows = 0;
+        size = 0;
+    }
+
+    /**
+     * Append a row and select it.
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(Tuple t) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        rows[numRows] = t;
+        selection[size++] = numRows++;
+    }
+
+    /**
+     * @return the ith selected row
+     * @throws IndexOutOfBoundsException if i is not less than size()
+     */
+    public Tuple get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("row " + i + " of " + size);
+        return rows[selection[i]];
+    }
+
+    /**
+     * Deselect the rows that do not satisfy a predicate; the selected rows
+     * keep their order.
+     */
+    public void filter(Predicate p) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int row = selection[i];
+            if (p.filter(rows[row]))
+                selection[kept++] = row;
+        }
+        size = kept;
+    }
+}
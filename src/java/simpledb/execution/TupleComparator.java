@@ -0,0 +1,46 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples by a list of fields, each ascending or descending; used by
+ * {@link OrderBy} and {@link TopN}.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    final int[] fields;
+    final boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c = compare(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    /** Compare two fields of the same type with one comparison */
+    static int compare(Field t1, Field t2) {
+        if (t1 instanceof IntField)
+            return Integer.compare(((IntField) t1).getValue(), ((IntField) t2).getValue());
+        if (t1 instanceof StringField)
+            return ((StringField) t1).getValue().compareTo(((StringField) t2).getValue());
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WorkerPool runs the tasks of parallel operators on a fixed set of daemon
+ * threads shared by all queries, one per processor.  Tasks are never
+ * interrupted, since an interrupt closes the file channels a task may be
+ * reading pages from; operators that give up on a task wait for it to
+ * finish instead.
+ * <p>
+ * A parallel operator may itself run inside a task, as the fragments below
+ * a {@link Gather} do.  A thread waiting for tasks it handed out therefore
+ * runs those nobody has started yet itself, so a pool whose threads are all
+ * waiting still gets through the work.
+ *
+ * @Threadsafe
+ */
+public class WorkerPool {
+
+    private static final int SIZE = Runtime.getRuntime().availableProcessors();
+    private static final AtomicInteger threads = new AtomicInteger();
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(SIZE, Worker::new);
+
+    /** The threads of the pool */
+    private static final class Worker extends Thread {
+        Worker(Runnable r) {
+            super(r, "query-worker-" + threads.incrementAndGet());
+            setDaemon(true);
+        }
+    }
+
+    private WorkerPool() {
+    }
+
+    /** Return the number of worker threads */
+    public static int size() {
+        return SIZE;
+    }
+
+    /** Return true if the calling thread is one of the worker threads */
+    public static boolean isWorker() {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    /** Run a task on a worker thread */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return POOL.submit(task);
+    }
+
+    /** Run a task on a worker thread */
+    public static void execute(Runnable task) {
+        POOL.execute(task);
+    }
+
+    /**
+     * Run tasks on the worker threads and wait for all of them, helping
+     * with the ones not started yet.  If a task fails, the others are
+     * stopped and the first failure is passed on.
+     *
+     * @return the results of the tasks, in order
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks)
+            throws DbException, TransactionAbortedException {
+        List<WorkerTask<T>> running = new ArrayList<>(tasks.size());
+        for (Callable<T> c : tasks) {
+            WorkerTask<T> task = new WorkerTask<>(c);
+            running.add(task);
+            // the calling thread takes the last one itself
+            if (running.size() < tasks.size())
+                POOL.execute(task);
+        }
+        List<T> results = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+        try {
+            for (int i = running.size() - 1; i >= 0; i--)
+                results.set(i, running.get(i).await());
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            for (WorkerTask<T> task : running)
+                task.stopQuietly();
+            throw e;
+        }
+        return results;
+    }
+}
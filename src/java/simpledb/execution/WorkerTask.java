@@ -0,0 +1,85 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A task of a parallel operator run on the {@link WorkerPool}.  The task
+ * runs at most once, either on a worker or on the thread waiting for it,
+ * and can be stopped without an interrupt: a task not started yet never
+ * runs, and one already running is waited for.
+ */
+class WorkerTask<T> extends FutureTask<T> {
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * @param task what to run
+     */
+    WorkerTask(Callable<T> task) {
+        super(task);
+    }
+
+    @Override
+    public void run() {
+        if (!started.compareAndSet(false, true))
+            return;
+        try {
+            super.run();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /** Keep the task from running, or wait until it has run */
+    void stop() throws InterruptedException {
+        if (started.compareAndSet(false, true))
+            cancel(false);
+        else
+            finished.await();
+    }
+
+    /** Like {@link #stop}, keeping the interrupt status if interrupted */
+    void stopQuietly() {
+        try {
+            stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return the result of the task, running it on this thread if no worker
+     * has started it, and pass on whatever went wrong running it.
+     */
+    T await() throws DbException, TransactionAbortedException {
+        run();
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted waiting for a task");
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /** Throw a failure of a task on the thread that waited for it */
+    static DbException rethrow(Throwable cause) throws DbException, TransactionAbortedException {
+        if (cause instanceof DbException)
+            throw (DbException) cause;
+        if (cause instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return new DbException("task failed: " + cause);
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.common.Database;
@@ -32,6 +33,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final PageLsnMap pageLsns;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -44,6 +46,11 @@ public class BTreeFile implements DbFile {
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
+		this.pageLsns = new PageLsnMap(f);
+		// the files may have been recreated since handles to them were cached
+		FileHandleCache files = Database.getFileHandleCache();
+		files.close(f);
+		files.close(pageLsns.getFile());
 		this.keyField = key;
 		this.td = td;
 	}
@@ -86,50 +93,48 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
+		boolean rootPtr = id.pgcateg() == BTreePageId.ROOT_PTR;
+		int pageSize = rootPtr ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize();
+		byte[] pageBuf = new byte[pageSize];
+		try {
+			int retval = Database.getFileHandleCache().read(f, ByteBuffer.wrap(pageBuf), pageOffset(id));
+			if (retval == 0) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			if (retval < pageSize) {
+				throw new IllegalArgumentException("Unable to read "
+						+ pageSize + " bytes from BTreeFile");
+			}
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+			Page page;
+			if (rootPtr) {
+				page = new BTreeRootPtrPage(id, pageBuf);
+			} else if (id.pgcateg() == BTreePageId.INTERNAL) {
+				page = new BTreeInternalPage(id, pageBuf, keyField);
+			} else if (id.pgcateg() == BTreePageId.LEAF) {
+				page = new BTreeLeafPage(id, pageBuf, keyField);
+			} else { // id.pgcateg() == BTreePageId.HEADER
+				page = new BTreeHeaderPage(id, pageBuf);
+			}
+			// the root pointer page is page 0, so the map is indexed by page number
+			if (!pageLsns.isLoaded())
+				pageLsns.load(numPages() + 1);
+			page.setLsn(pageLsns.getLsn(id.getPageNumber()));
+			return page;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+	/**
+	 * Returns the file offset of a page: the root pointer page comes first,
+	 * followed by the other pages, numbered from 1.
+	 */
+	private static long pageOffset(BTreePageId id) {
+		if (id.pgcateg() == BTreePageId.ROOT_PTR)
+			return 0;
+		return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,16 +146,13 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
-		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
-		}
+		FileHandleCache files = Database.getFileHandleCache();
+		files.write(f, ByteBuffer.wrap(data), pageOffset(id));
+		// the page must be on disk before its page LSN is
+		files.force(f);
+		if (!pageLsns.isLoaded())
+			pageLsns.load(numPages() + 1);
+		pageLsns.pageWritten(id.getPageNumber(), page.getLsn());
 	}
 	
 	/**
@@ -832,13 +834,11 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				FileHandleCache files = Database.getFileHandleCache();
+				files.write(f, ByteBuffer.wrap(emptyRootPtrData), 0);
+				files.write(f, ByteBuffer.wrap(emptyLeafData), emptyRootPtrData.length);
 			}
 		}
 
@@ -894,11 +894,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				Database.getFileHandleCache().write(f, ByteBuffer.wrap(emptyData), f.length());
 				emptyPageNo = numPages();
 			}
 		}
@@ -929,10 +926,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		Database.getFileHandleCache().write(f, ByteBuffer.wrap(BTreePage.createEmptyPageData()), pageOffset(newPageId));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1053,6 +1047,16 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Start reading the right sibling of a leaf in the background, so that
+	 * an iterator moving on to it does not wait for the disk.
+	 * 
+	 * @param leaf - the leaf an iterator just moved to
+	 */
+	static void prefetchSibling(BTreeLeafPage leaf) {
+		Database.getBufferPool().prefetch(leaf.getRightSiblingId());
+	}
+
 }
 
 /**
@@ -1062,6 +1066,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ScanRing ring = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1085,6 +1090,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, null);
 		it = curp.iterator();
+		// a full scan walks every leaf; keep it from flushing the hot set
+		ring = Database.getBufferPool().newScanRing(f.numPages());
+		BTreeFile.prefetchSibling(curp);
 	}
 
 	/**
@@ -1105,7 +1113,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, ring);
+				BTreeFile.prefetchSibling(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1132,6 +1141,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		ring = null;
 	}
 }
 
@@ -1176,6 +1186,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			curp = f.findLeafPage(tid, root, null);
 		}
 		it = curp.iterator();
+		BTreeFile.prefetchSibling(curp);
 	}
 
 	/**
@@ -1215,6 +1226,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				BTreeFile.prefetchSibling(curp);
 				it = curp.iterator();
 			}
 		}
@@ -120,6 +120,21 @@ public class IntHistogram {
         return sum/=buckets.length;
     }
     
+    /**
+     * @return an estimate of the number of distinct values added: each
+     *     bucket holds at most as many distinct values as values added to it,
+     *     and at most as many as it is wide
+     * */
+    public int estimateDistinct()
+    {
+        long distinct=0;
+        for(int i=0;i<buckets.length;i++)
+        {
+            distinct+=Math.min(buckets[i],width);
+        }
+        return (int)Math.min(Integer.MAX_VALUE,distinct);
+    }
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
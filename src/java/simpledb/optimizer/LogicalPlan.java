@@ -23,8 +23,21 @@ import java.io.File;
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
  * best implementations for joins.
+ * <p>
+ * Scans of heap files of at least {@link #PARALLEL_MIN_PAGES} pages are
+ * split into {@link MorselScan} fragments under a {@link Gather}.  The
+ * filters on such a table run in its fragments, hash joins with a parallel
+ * input run as fragments reading {@link Exchange}s, and an aggregate over
+ * a parallel plan aggregates the fragments separately and merges the
+ * results, unless it has more groups than fit in memory: then the input is
+ * repartitioned by group and each partition aggregated by its own
+ * {@link SpillingAggregate}.
  */
 public class LogicalPlan {
+    /** Heap files smaller than this, less than two morsels, are scanned on one thread */
+    public static final int PARALLEL_MIN_PAGES = 2 * MorselScan.MORSEL_PAGES;
+    private static int parallelism = WorkerPool.size();
+
     private List<LogicalJoinNode> joins;
     private final List<LogicalScanNode> tables;
     private final List<LogicalFilterNode> filters;
@@ -32,15 +45,32 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private final List<String> groupByFields = new ArrayList<>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private long limit = -1, offset = 0;
     private String query;
+    private int memoryPages = HashEquiJoin.DEFAULT_MEMORY_PAGES;
 //    private Query owner;
 
+    /** Return the number of fragments parallel plans are split into */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of fragments parallel plans are split into; 1 plans
+     * every query to run on the calling thread alone.
+     */
+    public static void setParallelism(int fragments) {
+        if (fragments < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        parallelism = fragments;
+    }
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new ArrayList<>();
@@ -53,6 +83,47 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /**
+     * Estimate the number of groups of the GROUP BY of this query from the
+     * statistics of the tables of the group-by fields: the product of their
+     * numbers of distinct values.  Return 0 if a field has no statistics.
+     * Too many only costs a spilling aggregate, which spills nothing when
+     * the groups do fit.
+     */
+    private long estimateGroups(Map<String,TableStats> statsMap) {
+        long groups = 1;
+        for (String groupByField : groupByFields) {
+            String alias = groupByField.split("[.]")[0];
+            String field = groupByField.split("[.]")[1];
+            Integer tableId = getTableId(alias);
+            if (tableId == null)
+                return 0;
+            TableStats stats = statsMap.get(Database.getCatalog().getTableName(tableId));
+            if (stats == null)
+                return 0;
+            int distinct = stats.estimateDistinctValues(Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(field));
+            groups = Math.min(Integer.MAX_VALUE, groups * distinct);
+        }
+        return groups;
+    }
+
+    /** Return the pages of tuples each join, sort or aggregate of this query may hold in memory */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * Set the pages of tuples each join, sort or aggregate of this query may
+     * hold in memory, split evenly among the fragments of a parallel join.
+     * Joins and sorts with more input than that, and aggregates with more
+     * groups, spill to disk.
+     */
+    public void setMemoryPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("a query needs at least one page");
+        memoryPages = pages;
+    }
+
     /** Set the text of the query representing this logical plan.  Does NOT parse the
         specified query -- this method is just used so that the object can print the
         SQL it represents.
@@ -189,34 +260,69 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  A query may have several aggregates, all computed over
+        the same grouping in one pass; adding the same aggregate twice adds
+        it once.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, in addition to any added before,
+        or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to the GROUP BY key of the query.  The key is made of the
+        fields in the order they are added; adding the same field twice adds
+        it once.
+        @param gfield the field to group by
+     * @throws ParsingException if the field is ambiguous or unknown
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** Return the position of an aggregate among those of the query, or -1 if it has not been added */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields are sorted on
+        in the order they are added, each breaking the ties of the ones before it.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAscs.add(asc);
+    }
+
+    /** Return at most limit result tuples, after skipping the first offset.
+        With an ORDER BY, only the first limit + offset tuples in order are kept.
+        @param limit the most tuples to return
+        @param offset the tuples to skip
+    */
+    public void setLimit(long limit, long offset) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        this.limit = limit;
+        this.offset = offset;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -295,9 +401,9 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 ss = scan(t, Database.getCatalog().getDatabaseFile(table.t), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -335,7 +441,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            subplanMap.put(lf.tableAlias, filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -381,7 +487,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            j = parallelJoin(JoinOptimizer.instantiateJoin(lj, plan1, plan2));
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -413,11 +519,12 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = aggregateIndex(si.aggOp, si.fname);
+                if (agg < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
-//                int  id;
                 try {
-//                    id = 
                     td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
                     throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
@@ -425,16 +532,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -459,25 +567,142 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            OpIterator aggNode;
+            OpIterator[] partitions = node instanceof Gather ? ((Gather) node).getFragments() : new OpIterator[]{node};
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[afields.length];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    aops[i] = getAggOp(aggOps.get(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                Type[] gtypes = new Type[gfields.length];
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                    gtypes[i] = td.getFieldType(gfields[i]);
+                }
+                // more groups than fit in memory are aggregated a partition at a time
+                if (gfields.length > 0
+                        && estimateGroups(statsMap) > SpillingAggregate.maxGroups(memoryPages, gtypes, afields.length)) {
+                    aggNode = spillingAggregate(partitions, afields, gfields, aops);
+                } else {
+                    aggNode = new Aggregate(partitions, afields, gfields, aops);
+                }
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                asc[i] = oByAscs.get(i);
+            }
+            // the first few tuples in order need not sort the rest, if they fit in memory
+            // (saturating, as a huge LIMIT plus OFFSET must not wrap around)
+            long keep = limit > Long.MAX_VALUE - offset ? Long.MAX_VALUE : limit + offset;
+            long budget = (long) memoryPages * BufferPool.getPageSize() / node.getTupleDesc().getSize();
+            if (limit >= 0 && keep <= Math.min(budget, Integer.MAX_VALUE)) {
+                node = new TopN(fields, asc, (int) keep, node);
+            } else {
+                OrderBy orderBy = new OrderBy(fields, asc, node);
+                orderBy.setMemoryPages(memoryPages);
+                node = orderBy;
+            }
+        }
+
+        if (limit >= 0 && (offset > 0 || !(node instanceof TopN))) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** Return a scan of a table, split into fragments if it is large */
+    private static OpIterator scan(TransactionId t, DbFile f, String alias) {
+        if (parallelism > 1 && f instanceof HeapFile && ((HeapFile) f).numPages() >= PARALLEL_MIN_PAGES)
+            return new Gather(MorselScan.fragments(t, f.getId(), alias, parallelism));
+        return new SeqScan(t, f.getId(), alias);
+    }
+
+    /** Return a filter over a subplan, run in its fragments if it has any */
+    private static OpIterator filter(Predicate p, OpIterator subplan) {
+        if (!(subplan instanceof Gather))
+            return new Filter(p, subplan);
+        OpIterator[] fragments = ((Gather) subplan).getFragments();
+        for (int i = 0; i < fragments.length; i++)
+            fragments[i] = new Filter(p, fragments[i]);
+        return new Gather(fragments);
+    }
+
+    /**
+     * Return an aggregate that spills the groups it cannot hold in memory.
+     * Over a parallel input, the input is repartitioned on the first
+     * group-by field, so each group is in one partition, and each fragment
+     * aggregates one partition in its share of the memory pages.
+     */
+    private OpIterator spillingAggregate(OpIterator[] partitions, int[] afields, int[] gfields,
+                                         Aggregator.Op[] aops) {
+        if (partitions.length == 1) {
+            SpillingAggregate spilling = new SpillingAggregate(partitions[0], afields, gfields, aops);
+            spilling.setMemoryPages(memoryPages);
+            return spilling;
+        }
+        OpIterator[] inputs = Exchange.hashPartition(partitions, gfields[0], partitions.length, memoryPages);
+        OpIterator[] fragments = new OpIterator[inputs.length];
+        for (int i = 0; i < fragments.length; i++) {
+            SpillingAggregate fragment = new SpillingAggregate(inputs[i], afields, gfields, aops);
+            fragment.setMemoryPages(Math.max(1, memoryPages / fragments.length));
+            fragments[i] = fragment;
+        }
+        return new Gather(fragments);
+    }
+
+    /**
+     * Return a hash join with a parallel input as fragments under a
+     * gather.  If both inputs are parallel, both are repartitioned on the
+     * join key and each fragment joins one partition of each; if one is,
+     * each of its fragments is joined with all of the other input,
+     * broadcast to every fragment.  Each exchange holds at most the memory
+     * pages of the query, spilling the rest.
+     */
+    private OpIterator parallelJoin(OpIterator j) {
+        if (!(j instanceof HashEquiJoin))
+            return j;
+        HashEquiJoin join = (HashEquiJoin) j;
+        join.setMemoryPages(memoryPages);
+        OpIterator[] children = join.getChildren();
+        boolean parallel1 = children[0] instanceof Gather, parallel2 = children[1] instanceof Gather;
+        if (!parallel1 && !parallel2)
+            return j;
+        JoinPredicate p = join.getJoinPredicate();
+        OpIterator[] left, right;
+        if (parallel1 && parallel2) {
+            OpIterator[] fragments1 = ((Gather) children[0]).getFragments();
+            OpIterator[] fragments2 = ((Gather) children[1]).getFragments();
+            int n = Math.max(fragments1.length, fragments2.length);
+            left = Exchange.hashPartition(fragments1, p.getField1(), n, memoryPages);
+            right = Exchange.hashPartition(fragments2, p.getField2(), n, memoryPages);
+        } else if (parallel1) {
+            left = ((Gather) children[0]).getFragments();
+            right = Exchange.broadcast(children[1], left.length, memoryPages);
+        } else {
+            right = ((Gather) children[1]).getFragments();
+            left = Exchange.broadcast(children[0], right.length, memoryPages);
+        }
+        OpIterator[] fragments = new OpIterator[left.length];
+        for (int i = 0; i < fragments.length; i++) {
+            HashEquiJoin fragment = new HashEquiJoin(p, left[i], right[i]);
+            fragment.setMemoryPages(Math.max(1, memoryPages / fragments.length));
+            fragments[i] = fragment;
+        }
+        return new Gather(fragments);
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
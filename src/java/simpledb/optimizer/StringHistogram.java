@@ -91,4 +91,9 @@ public class StringHistogram {
     public double avgSelectivity() {
         return hist.avgSelectivity();
     }
+
+    /** @return an estimate of the number of distinct strings added */
+    public int estimateDistinct() {
+        return hist.estimateDistinct();
+    }
 }
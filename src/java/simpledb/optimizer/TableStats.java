@@ -241,6 +241,28 @@ public class TableStats {
         }
     }
 
+    /**
+     * Estimate the number of distinct values of a field of the table, as
+     * the number of groups a GROUP BY on the field would have.
+     *
+     * @param field
+     *        the index of the field
+     * @return the estimated number of distinct values, at most the number of
+     *         tuples
+     * */
+    public int estimateDistinctValues(int field) {
+        int distinct;
+        if(tupleDesc.getFieldType(field).equals(Type.INT_TYPE))
+        {
+            distinct=intHistogram.get(field).estimateDistinct();
+        }
+        else
+        {
+            distinct=stringHistogram.get(field).estimateDistinct();
+        }
+        return Math.min(distinct,numTuples);
+    }
+
     /**
      * Estimate the selectivity of predicate <tt>field op constant</tt> on the
      * table.
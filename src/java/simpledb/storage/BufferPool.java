@@ -1,14 +1,28 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -18,6 +32,39 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a concurrent map, so cache hits take no lock at all.
+ * Loading, flushing, evicting and discarding a page are serialized by a latch
+ * chosen from a fixed set of stripes by hashing the PageId, so threads that
+ * work on different pages rarely wait for each other.  No method holds two
+ * stripe latches at once; frames are reserved before a latch is taken, which
+ * keeps eviction free of latch-ordering deadlocks.
+ * <p>
+ * Page locks are transaction locks held until commit or abort (strict
+ * two-phase locking) and are managed by a {@link LockManager}; they are
+ * independent of the short-term latches above.
+ * <p>
+ * By default transactions lock whole pages.  With
+ * {@link LockManager.Granularity#RECORD} granularity, HeapFile inserts and
+ * deletes lock single records under intention locks on the page and table,
+ * so several transactions may update different slots of one page at the
+ * same time.  Such a page can then hold changes of more than one
+ * transaction, so an abort can no longer just throw the page away; instead
+ * the BufferPool keeps a per-transaction list of the tuples it inserted and
+ * deleted and rolls them back one by one.
+ * <p>
+ * Pages are written when their transaction commits (FORCE) unless the
+ * background writer runs; see {@link #startBackgroundWriter}.
+ * <p>
+ * Scans ask for the pages they will need next with {@link #prefetch}.  A
+ * small pool of I/O threads reads them from disk into a side table, outside
+ * the cache proper, and a later miss on the page takes it from there
+ * instead of waiting for the disk.  A prefetched page is dropped whenever
+ * its page is written or discarded, so it never goes stale.  The side table
+ * holds at most an eighth of the pool, which also caps how far a scan reads
+ * ahead, and each of its pages takes a frame
+ * like a cached page; when it is full, the page read ahead longest ago,
+ * most likely for a scan that stopped early, makes way for the new one.
  * 
  * @Threadsafe, all fields are final
  */
@@ -34,6 +81,14 @@ public class BufferPool {
     //default Num page 50
     public static final int DEFAULT_PAGES = 50;
 
+    /** Default number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_PREFETCH_PAGES = 8;
+    /** The side table of pages read ahead holds at most 1/PREFETCH_SHARE of the pool. */
+    private static final int PREFETCH_SHARE = 8;
+    /** Threads reading pages ahead of scans, shared by all buffer pools. */
+    private static final int PREFETCH_THREADS = 4;
+    private static ExecutorService prefetchPool;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -41,10 +96,105 @@ public class BufferPool {
      */
     private int numPages;
     private ConcurrentHashMap<PageId,Page> bufferPool;
+    private final EvictionPolicy evictionPolicy;
+    private final LockManager lockManager;
+
+    /** Number of page latches; a power of two. */
+    private static final int NUM_STRIPES = 64;
+    private final Object[] stripes;
+    /** Frames taken by resident pages and by pages being read in. */
+    private final AtomicInteger usedFrames = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Dirty page table: the recLSN of every page with logged changes that
+     * are not on disk yet, i.e. the LSN of the first change logged since
+     * the page was last written.  Recovery redoes the log from the oldest.
+     */
+    private final ConcurrentHashMap<PageId,Long> recLsns = new ConcurrentHashMap<>();
+    /**
+     * The bytes of pages other than heap pages as of their last logged
+     * change, so that the next change logs only the bytes that differ.
+     */
+    private final ConcurrentHashMap<PageId,byte[]> loggedImages = new ConcurrentHashMap<>();
+
+    /**
+     * Pages holding committed, logged changes that are not on disk yet.
+     * While the background writer runs, commits leave their pages dirty;
+     * the writer, or eviction if the writer falls behind, writes them later.
+     */
+    private final Set<PageId> committedDirty = ConcurrentHashMap.newKeySet();
+    private final LongAdder backgroundWrites = new LongAdder();
+    private final Object writerLock = new Object();
+    private Thread writer; // protected by writerLock
+
+    /**
+     * Pages read ahead of a scan, or still being read, that are not cached;
+     * each holds a frame until it is taken or dropped
+     */
+    private final ConcurrentHashMap<PageId,CompletableFuture<Page>> prefetched = new ConcurrentHashMap<>();
+    /** The pages of the side table, oldest first; may hold a few already gone */
+    private final ConcurrentLinkedDeque<PageId> prefetchOrder = new ConcurrentLinkedDeque<>();
+    private final LongAdder prefetchHits = new LongAdder();
+    private volatile int prefetchPages = DEFAULT_PREFETCH_PAGES;
+
+    private volatile LockManager.Granularity granularity = LockManager.Granularity.PAGE;
+    /** Per-transaction undo lists of record-locked tuple changes, newest first */
+    private final ConcurrentHashMap<TransactionId,Deque<UndoRecord>> undoLog = new ConcurrentHashMap<>();
+
+    /** A tuple inserted or deleted by a transaction under record locking */
+    private static class UndoRecord {
+        final boolean inserted;
+        final Tuple tuple;
+        final RecordId rid;
+
+        UndoRecord(boolean inserted, Tuple tuple, RecordId rid) {
+            this.inserted = inserted;
+            this.tuple = tuple;
+            this.rid = rid;
+        }
+
+        /** Roll the change back on the page holding the record */
+        void undo(HeapPage page) throws DbException {
+            if (inserted) {
+                Tuple victim = new Tuple(tuple.getTupleDesc());
+                victim.setRecordId(rid);
+                page.deleteTuple(victim);
+            } else {
+                page.insertTuple(tuple, rid.getTupleNumber());
+            }
+        }
+    }
+
     public BufferPool(int numPages) {
+        this(numPages, new ClockEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and chooses
+     * pages to evict with the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the page replacement policy to use
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         this.numPages=numPages;
         this.bufferPool=new ConcurrentHashMap<>(this.numPages);
-        // some code goes here
+        this.evictionPolicy=evictionPolicy;
+        this.lockManager=new LockManager();
+        this.stripes=new Object[NUM_STRIPES];
+        for(int i=0;i<NUM_STRIPES;i++)
+            stripes[i]=new Object();
+    }
+
+    /** Return the latch that guards the frame of the given page */
+    private Object latchFor(PageId pid) {
+        int h=pid.hashCode();
+        h^=(h>>>16);
+        return stripes[h&(NUM_STRIPES-1)];
     }
     
     public static int getPageSize() {
@@ -78,24 +228,577 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        if(bufferPool.containsKey(pid))
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a large sequential scan.
+     * Behaves like {@link #getPage(TransactionId, PageId, Permissions)},
+     * except that a page which has to be read from disk replaces the oldest
+     * clean page of the scan's ring once the ring is full, so that the scan
+     * recycles a bounded number of frames instead of flushing the hot set.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's ring, or null to use the replacement policy
+     * @see #newScanRing(int)
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+            throws TransactionAbortedException, DbException {
+        lockManager.acquire(tid,pid,perm);
+        return fetchPage(pid,ring);
+    }
+
+    /**
+     * Retrieve the specified page holding only an intention lock on it, as
+     * HeapFile does before locking single records of the page with
+     * {@link #lockRecord}.  Callers must latch the page object while they
+     * read or modify it, since other transactions may be updating other
+     * records of the same page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm READ_WRITE for an intention exclusive lock, READ_ONLY for
+     *             an intention shared lock
+     */
+    public Page getPageWithIntent(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        lockManager.acquireIntention(tid,pid,perm);
+        return fetchPage(pid,null);
+    }
+
+    /** Look a page up in the cache, reading it from disk on a miss */
+    private Page fetchPage(PageId pid, ScanRing ring) throws DbException {
+        Page page=bufferPool.get(pid);
+        if(page!=null)
         {
-            return bufferPool.get(pid);
+            hits.increment();
+            evictionPolicy.pageAccessed(pid);
+            return page;
         }
-        else
+        // make room before latching the page, so that we never hold one
+        // stripe latch while evicting a page guarded by another
+        if(ring!=null&&ring.isFull())
+            recycle(ring);
+        reserveFrame();
+        boolean loaded=false;
+        try
         {
-            if(bufferPool.size()<numPages)
+            synchronized (latchFor(pid))
             {
-                Page page=Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                // another thread may have loaded the page while we waited
+                page=bufferPool.get(pid);
+                if(page!=null)
+                {
+                    hits.increment();
+                    evictionPolicy.pageAccessed(pid);
+                    return page;
+                }
+                misses.increment();
+                page=takePrefetched(pid);
+                if(page==null)
+                    page=Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
                 bufferPool.put(pid,page);
+                evictionPolicy.pageAdded(pid);
+                loaded=true;
+                if(ring!=null)
+                    ring.add(pid);
                 return page;
             }
+        }
+        finally
+        {
+            if(!loaded)
+                usedFrames.decrementAndGet();
+        }
+    }
+
+    /**
+     * Return the number of pages sequential scans read ahead of the page
+     * they are on: as set, but no more than the side table holds beside
+     * the page a scan is taking, so that a scan never drops its own pages.
+     */
+    public int getPrefetchPages() {
+        return Math.min(prefetchPages,maxPrefetched()-1);
+    }
+
+    /** Return the most pages read ahead that the side table holds */
+    private int maxPrefetched() {
+        return Math.max(1,numPages/PREFETCH_SHARE);
+    }
+
+    /**
+     * Set the number of pages sequential scans read ahead of the page they
+     * are on; 0 turns read-ahead off.
+     */
+    public void setPrefetchPages(int pages) {
+        this.prefetchPages=pages;
+        if(pages==0)
+        {
+            for(PageId pid:prefetched.keySet())
+                dropPrefetched(pid);
+            prefetchOrder.clear();
+        }
+    }
+
+    /** Return the number of misses served by a page read ahead */
+    public long getPrefetchHitCount() {
+        return prefetchHits.sum();
+    }
+
+    /**
+     * Start reading a page in the background if it is neither cached nor
+     * already being read, so that a later getPage of it does not wait for
+     * the disk.  No lock is taken: the page is only read, and the caller
+     * still locks it when it gets it.  Does nothing if read-ahead is off.
+     *
+     * @param pid the page to read, or null
+     */
+    public void prefetch(PageId pid) {
+        if(pid==null||getPrefetchPages()==0||bufferPool.containsKey(pid)||prefetched.containsKey(pid))
+            return;
+        // pages read ahead for scans that stopped early are never taken, so
+        // the oldest ones make way
+        while(prefetched.size()>=maxPrefetched()&&dropOldestPrefetched())
+            ;
+        try
+        {
+            reserveFrame();
+        }
+        catch (DbException e)
+        {
+            // every cached page is dirty; the scan reads the page itself
+            return;
+        }
+        CompletableFuture<Page> read=new CompletableFuture<>();
+        if(prefetched.putIfAbsent(pid,read)!=null)
+        {
+            usedFrames.decrementAndGet();
+            return;
+        }
+        prefetchOrder.addLast(pid);
+        prefetchPool().execute(()->
+        {
+            try
+            {
+                read.complete(Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+            }
+            catch (RuntimeException e)
+            {
+                // e.g. the page is past the end of its file
+                read.complete(null);
+            }
+        });
+    }
+
+    /**
+     * Keep the next {@link #getPrefetchPages} pages of a sequential scan of
+     * a heap file on their way while the scan reads the page it is on.
+     *
+     * @param tableId the heap file scanned
+     * @param pgNo the page the scan is on
+     * @param end the page after the last one the scan reads
+     * @param prefetchedTo the page after the last one read ahead so far
+     * @return the page after the last one read ahead now
+     */
+    public int readAhead(int tableId, int pgNo, int end, int prefetchedTo) {
+        int ahead=Math.min(end,pgNo+1+getPrefetchPages());
+        for(prefetchedTo=Math.max(prefetchedTo,pgNo+1);prefetchedTo<ahead;prefetchedTo++)
+            prefetch(new HeapPageId(tableId,prefetchedTo));
+        return prefetchedTo;
+    }
+
+    private static synchronized ExecutorService prefetchPool() {
+        if(prefetchPool==null)
+        {
+            prefetchPool=Executors.newFixedThreadPool(PREFETCH_THREADS,r->
+            {
+                Thread t=new Thread(r,"page-prefetch");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return prefetchPool;
+    }
+
+    /**
+     * Take a page read ahead, waiting for the read if it is still running.
+     *
+     * @return the page, or null if it was not read ahead
+     */
+    private Page takePrefetched(PageId pid) {
+        // the caller has reserved a frame of its own for the page
+        CompletableFuture<Page> read=dropPrefetched(pid);
+        Page page=read==null?null:read.join();
+        if(page!=null)
+            prefetchHits.increment();
+        return page;
+    }
+
+    /**
+     * Drop a page read ahead, if it is in the side table, freeing its frame.
+     *
+     * @return the read of the page, or null if it was not read ahead
+     */
+    private CompletableFuture<Page> dropPrefetched(PageId pid) {
+        CompletableFuture<Page> read=prefetched.remove(pid);
+        if(read!=null)
+        {
+            usedFrames.decrementAndGet();
+            prefetchOrder.remove(pid);
+        }
+        return read;
+    }
+
+    /**
+     * Drop the page read ahead longest ago, freeing its frame.
+     *
+     * @return false if the side table is empty
+     */
+    private boolean dropOldestPrefetched() {
+        PageId pid;
+        while((pid=prefetchOrder.pollFirst())!=null)
+        {
+            if(dropPrefetched(pid)!=null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return a ring for a sequential scan over scanPages pages, or null if
+     * the scan fits in the pool and should go through the replacement policy
+     * like any other access.  A scan larger than the pool would never find
+     * its own pages cached on the next pass anyway, so it gains nothing from
+     * occupying more than a few frames.
+     *
+     * @param scanPages the number of pages the scan will read
+     */
+    public ScanRing newScanRing(int scanPages) {
+        if(scanPages<=numPages)
+            return null;
+        return new ScanRing(Math.max(1,Math.min(ScanRing.DEFAULT_SIZE,numPages/4)));
+    }
+
+    /**
+     * Lock a whole table, as a scan reading every page of it from several
+     * threads does before the threads lock the pages.  May block if another
+     * transaction holds a conflicting lock on the table or one of its pages.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm the requested permissions on the table
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquireTable(tid,tableId,perm);
+    }
+
+    /**
+     * Lock a single record, taking intention locks on its page and table.
+     * May block if the record is locked by another transaction.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the record to lock
+     * @param perm the requested permissions on the record
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquireRecord(tid,rid,perm);
+    }
+
+    /**
+     * Lock a single record if no other transaction holds a conflicting lock
+     * on it, without waiting for the record.
+     *
+     * @return true if the lock was granted
+     * @see #lockRecord(TransactionId, RecordId, Permissions)
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        return lockManager.tryAcquireRecord(tid,rid,perm);
+    }
+
+    /** Return true if the specified transaction has a lock on the specified record */
+    public boolean holdsRecordLock(TransactionId tid, RecordId rid) {
+        return lockManager.holdsRecordLock(tid,rid);
+    }
+
+    /** Return the granularity at which HeapFile updates are locked */
+    public LockManager.Granularity getLockGranularity() {
+        return granularity;
+    }
+
+    /**
+     * Choose whether HeapFile inserts and deletes lock whole pages (the
+     * default) or single records.  Should only be changed while no
+     * transactions are running.
+     */
+    public void setLockGranularity(LockManager.Granularity granularity) {
+        this.granularity=granularity;
+    }
+
+    /**
+     * Return true if the given page object is the cached copy of its page.
+     * Record-locked updates check this while holding the page's monitor, the
+     * same monitor eviction takes, so they never modify a page that has
+     * already been dropped from the pool.
+     */
+    boolean isCached(Page page) {
+        return bufferPool.get(page.getId())==page;
+    }
+
+    /**
+     * Drop the oldest page of a scan ring to make room for the scan's next
+     * page.  Pages that were dirtied since the scan read them cannot be
+     * dropped under NO STEAL; in that case the replacement policy picks a
+     * victim as usual.
+     */
+    private void recycle(ScanRing ring) {
+        PageId victim=ring.recycle();
+        if(victim==null)
+            return;
+        synchronized (latchFor(victim))
+        {
+            Page pg=bufferPool.get(victim);
+            if(pg==null)
+                return;
+            synchronized (pg)
+            {
+                if(pg.isDirty()==null)
+                {
+                    bufferPool.remove(victim);
+                    loggedImages.remove(victim);
+                    evictionPolicy.pageRemoved(victim);
+                    usedFrames.decrementAndGet();
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Take a free frame for a page that is about to be cached, evicting pages
+     * until one is available.  Must not be called while holding a latch.
+     */
+    private void reserveFrame() throws DbException {
+        while(true)
+        {
+            int used=usedFrames.get();
+            if(used<numPages)
+            {
+                if(usedFrames.compareAndSet(used,used+1))
+                    return;
+            }
             else
             {
-                throw new DbException("bufferPool error:bufferPool is full");
+                evictPage();
             }
         }
-        // some code goes here
+    }
+
+    /**
+     * Put a page into the cache, evicting another page first if the
+     * BufferPool is full and the page is not yet resident.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid=page.getId();
+        boolean reserved=false;
+        if(!bufferPool.containsKey(pid))
+        {
+            reserveFrame();
+            reserved=true;
+        }
+        synchronized (latchFor(pid))
+        {
+            if(bufferPool.put(pid,page)==null)
+            {
+                // the page may have been evicted since we looked; it then
+                // takes a frame over the limit until the next eviction
+                if(!reserved)
+                    usedFrames.incrementAndGet();
+                evictionPolicy.pageAdded(pid);
+            }
+            else
+            {
+                if(reserved)
+                    usedFrames.decrementAndGet();
+                evictionPolicy.pageAccessed(pid);
+            }
+        }
+    }
+
+    /** Return the number of getPage calls served from the cache */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Return the number of getPage calls that had to read from disk */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Return the number of pages evicted to make room for other pages */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /** Return the number of pages written by the background writer */
+    public long getBackgroundWriteCount() {
+        return backgroundWrites.sum();
+    }
+
+    /**
+     * Start a thread that writes committed dirty pages in the background,
+     * at most maxPages pages every intervalMillis milliseconds, oldest
+     * recLSN first.  While it runs, commits of logged transactions no
+     * longer write their pages (NO FORCE): the commit record makes them
+     * durable, and recovery redoes them if the pages do not reach disk.
+     * Eviction then rarely finds a page it has to write itself.  Replaces
+     * a writer that is already running.  The writer stops if it cannot
+     * write a page.
+     *
+     * @param intervalMillis the time between two rounds of writes
+     * @param maxPages the most pages written in one round
+     */
+    public void startBackgroundWriter(long intervalMillis, int maxPages) {
+        synchronized (writerLock)
+        {
+            Thread t=new Thread(()->writerLoop(intervalMillis,maxPages),"page-writer");
+            t.setDaemon(true);
+            writer=t;
+            writerLock.notifyAll();
+            t.start();
+        }
+    }
+
+    /**
+     * Stop the background writer, if one runs, and go back to writing
+     * pages at commit.  Pages committed meanwhile stay dirty until they
+     * are flushed or evicted.
+     */
+    public void stopBackgroundWriter() {
+        synchronized (writerLock)
+        {
+            writer=null;
+            writerLock.notifyAll();
+        }
+    }
+
+    /**
+     * Return true if the background writer runs, so that commits leave
+     * their pages to it
+     */
+    public boolean isBackgroundWriterRunning() {
+        synchronized (writerLock)
+        {
+            return writer!=null;
+        }
+    }
+
+    private void writerLoop(long intervalMillis, int maxPages) {
+        // the thread is never interrupted, since an interrupt closes the
+        // file channel it may be writing to
+        while(true)
+        {
+            synchronized (writerLock)
+            {
+                try
+                {
+                    writerLock.wait(intervalMillis);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                if(writer!=Thread.currentThread()||Database.getBufferPool()!=this)
+                    return;
+            }
+            try
+            {
+                writeCommittedPages(maxPages);
+            }
+            catch (IOException e)
+            {
+                // give up: commits write their pages again, so they report
+                // the failure, and the committed pages left dirty are
+                // written, or the failure reported, by whichever eviction,
+                // checkpoint or flush reaches them next
+                synchronized (writerLock)
+                {
+                    if(writer==Thread.currentThread())
+                        writer=null;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write up to maxPages committed dirty pages, oldest recLSN first, so
+     * that checkpoints can truncate the log past them.
+     *
+     * @return the number of pages written
+     */
+    private int writeCommittedPages(int maxPages) throws IOException {
+        List<PageId> pids=new ArrayList<>(committedDirty);
+        pids.sort(Comparator.comparingLong(pid->recLsns.getOrDefault(pid,Long.MAX_VALUE)));
+        int written=0;
+        for(PageId pid:pids)
+        {
+            if(written>=maxPages)
+                break;
+            synchronized (latchFor(pid))
+            {
+                Page pg=bufferPool.get(pid);
+                if(pg==null)
+                {
+                    committedDirty.remove(pid);
+                    continue;
+                }
+                synchronized (pg)
+                {
+                    if(writeCommitted(pg))
+                    {
+                        backgroundWrites.increment();
+                        written++;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Write a page holding committed changes if no running transaction is
+     * changing it.  A shared lock pins the page for the write: it is granted
+     * only while nobody holds an exclusive or intention exclusive lock on
+     * the page.  The caller holds the page's latch and monitor.
+     *
+     * @return true if the page was written
+     */
+    private boolean writeCommitted(Page pg) throws IOException {
+        PageId pid=pg.getId();
+        if(pg.isDirty()==null)
+        {
+            committedDirty.remove(pid);
+            return false;
+        }
+        if(!committedDirty.contains(pid))
+            return false;
+        TransactionId pin=new TransactionId();
+        try
+        {
+            if(!lockManager.tryAcquire(pin,pid,Permissions.READ_ONLY))
+                return false;
+            writeOut(pg);
+            return true;
+        }
+        finally
+        {
+            lockManager.releaseAll(pin);
+        }
     }
 
     /**
@@ -110,6 +813,7 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        lockManager.release(tid,pid);
     }
 
     /**
@@ -120,13 +824,14 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid,true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid,p);
     }
 
     /**
@@ -135,10 +840,101 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws UncheckedIOException if a page cannot be written; the pages not
+     *         written stay dirty, and the locks are released all the same
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        Deque<UndoRecord> undo=undoLog.remove(tid);
+        try
+        {
+            if(commit)
+            {
+                // FORCE: the transaction's pages reach disk before its locks go;
+                // under record locking the last writer of a page it updated may
+                // be another transaction, so look at every page it has locked.
+                // Pages written early, e.g. by a checkpoint, are clean but still
+                // need a new before image
+                Set<PageId> locked=lockManager.lockedPages(tid);
+                boolean backgroundWriting=isBackgroundWriterRunning();
+                for(Page pg:bufferPool.values())
+                {
+                    TransactionId dirtier=pg.isDirty();
+                    if(tid.equals(dirtier)||locked.contains(pg.getId()))
+                    {
+                        // NO STEAL: a page that may also hold uncommitted
+                        // changes of other record-locked transactions is
+                        // left dirty; whichever of them completes last
+                        // writes it, by its commit or its rollback
+                        if(granularity==LockManager.Granularity.RECORD
+                                &&lockManager.othersMayWrite(tid,pg.getId()))
+                            continue;
+                        // NO FORCE: logged changes are left to the writer
+                        if(dirtier!=null&&backgroundWriting&&recLsns.containsKey(pg.getId()))
+                            committedDirty.add(pg.getId());
+                        else if(dirtier!=null)
+                            flushPage(pg.getId());
+                        pg.setBeforeImage();
+                        loggedImages.remove(pg.getId());
+                    }
+                }
+            }
+            else
+            {
+                if(undo!=null)
+                    rollback(tid,undo);
+                // NO STEAL: the disk still holds the pre-transaction state
+                for(Page pg:bufferPool.values())
+                {
+                    if(tid.equals(pg.isDirty()))
+                        discardPage(pg.getId());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("cannot complete transaction "+tid,e);
+        }
+        catch (DbException|TransactionAbortedException e)
+        {
+            throw new RuntimeException("cannot roll back transaction "+tid,e);
+        }
+        finally
+        {
+            lockManager.releaseAll(tid);
+        }
+    }
+
+    /**
+     * Undo a transaction's record-locked inserts and deletes, newest first,
+     * and write the restored pages back.  The pages may have been forced to
+     * disk by other transactions' commits, so they cannot simply be
+     * discarded.  The transaction still holds its record locks, so nobody
+     * else has touched the affected slots.
+     */
+    private void rollback(TransactionId tid, Deque<UndoRecord> undo)
+            throws DbException, TransactionAbortedException, IOException {
+        Set<PageId> restored=new HashSet<>();
+        for(UndoRecord u:undo)
+        {
+            PageId pid=u.rid.getPageId();
+            while(true)
+            {
+                HeapPage pg=(HeapPage)getPageWithIntent(tid,pid,Permissions.READ_WRITE);
+                synchronized (pg)
+                {
+                    if(!isCached(pg))
+                        continue;
+                    u.undo(pg);
+                    pg.markDirty(true,tid);
+                    break;
+                }
+            }
+            restored.add(pid);
+        }
+        for(PageId pid:restored)
+            flushPage(pid);
     }
 
     /**
@@ -162,10 +958,22 @@ public class BufferPool {
         // not necessary for lab1
         DbFile dbFile=Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages=dbFile.insertTuple(tid,t);
+        RecordId rid=t.getRecordId();
+        boolean logged=Database.getLogFile().isLogged(tid);
+        // logged transactions are rolled back from the log
+        if(granularity==LockManager.Granularity.RECORD&&dbFile instanceof HeapFile&&!logged)
+            logUndo(tid,new UndoRecord(true,t,rid));
         for( Page page:pages)
         {
             page.markDirty(true,tid);
-            bufferPool.put(page.getId(),page);
+            if(logged)
+            {
+                PageChange change=null;
+                if(page instanceof HeapPage&&page.getId().equals(rid.getPageId()))
+                    change=PageChange.insertSlot(rid.getTupleNumber(),((HeapPage)page).slotData(rid.getTupleNumber()));
+                logUpdate(tid,page,change);
+            }
+            cachePage(page);
         }
     }
 
@@ -186,13 +994,136 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile dbFile=Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        RecordId rid=t.getRecordId();
+        DbFile dbFile=Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
         List<Page> pages=dbFile.deleteTuple(tid,t);
+        boolean logged=Database.getLogFile().isLogged(tid);
+        if(granularity==LockManager.Granularity.RECORD&&dbFile instanceof HeapFile&&!logged)
+            logUndo(tid,new UndoRecord(false,t,rid));
         for(Page page:pages)
         {
             page.markDirty(true,tid);
-            bufferPool.put(page.getId(),page);
+            if(logged)
+            {
+                PageChange change=null;
+                if(page instanceof HeapPage&&page.getId().equals(rid.getPageId()))
+                    change=PageChange.deleteSlot(rid.getTupleNumber(),((HeapPage)page).tupleData(t));
+                logUpdate(tid,page,change);
+            }
+            cachePage(page);
+        }
+    }
+
+    private void logUndo(TransactionId tid, UndoRecord u) {
+        undoLog.computeIfAbsent(tid,k->new ArrayDeque<>()).push(u);
+    }
+
+    /**
+     * Log the change a logged transaction just made to a page and stamp the
+     * page with the record's LSN.
+     *
+     * @param change the change, or null to log the bytes that differ from
+     *               the page as of its last logged change
+     */
+    private void logUpdate(TransactionId tid, Page page, PageChange change) throws IOException {
+        if(change==null)
+        {
+            byte[] after=page.getPageData();
+            byte[] before=loggedImages.get(page.getId());
+            if(before==null)
+                before=page.getBeforeImage().getPageData();
+            loggedImages.put(page.getId(),after);
+            change=PageChange.diff(before,after);
+            if(change.isEmpty())
+                return;
         }
+        // enter the page before its record is appended, so that a checkpoint
+        // gathering the table after the record cannot miss the page
+        LogFile log=Database.getLogFile();
+        recLsns.putIfAbsent(page.getId(),log.endLsn());
+        long lsn=log.logChange(tid,page,change);
+        page.setLsn(lsn);
+    }
+
+    /**
+     * Roll back one logged change of a transaction on the cached copy of its
+     * page, and log the compensation.  LogFile.rollback calls this for each
+     * change of an aborting transaction, newest first; the transaction still
+     * holds its locks.
+     *
+     * @param undoNextLsn the LSN of the transaction's record before the change
+     */
+    void undoChange(TransactionId tid, PageId pid, PageChange change, long undoNextLsn)
+            throws IOException {
+        PageChange compensation=change.inverse();
+        try
+        {
+            while(true)
+            {
+                Page pg=granularity==LockManager.Granularity.RECORD&&pid instanceof HeapPageId
+                        ?getPageWithIntent(tid,pid,Permissions.READ_WRITE)
+                        :getPage(tid,pid,Permissions.READ_WRITE);
+                Page restored;
+                // record-locked writers may be changing other slots of the page
+                synchronized (pg)
+                {
+                    if(!isCached(pg))
+                        continue;
+                    restored=compensation.apply(pg);
+                    LogFile log=Database.getLogFile();
+                    recLsns.putIfAbsent(pid,log.endLsn());
+                    restored.setLsn(log.logCompensation(tid.getId(),undoNextLsn,restored,compensation));
+                    restored.markDirty(true,tid);
+                }
+                if(restored!=pg)
+                {
+                    loggedImages.put(pid,restored.getPageData());
+                    cachePage(restored);
+                }
+                return;
+            }
+        }
+        catch (DbException|TransactionAbortedException e)
+        {
+            throw new IOException("cannot roll back "+change+" on "+pid,e);
+        }
+    }
+
+    /**
+     * Return a copy of the dirty page table: the recLSN of every page whose
+     * logged changes are not all on disk yet.
+     */
+    Map<PageId,Long> dirtyPageTable() {
+        return new HashMap<>(recLsns);
+    }
+
+    /**
+     * Write up to maxPages of the pages whose recLSN is older than the given
+     * LSN, oldest recLSN first and one at a time, so that the log before it
+     * is no longer needed for redo.  The checkpoint calls this for the pages
+     * that have stayed dirty since the previous checkpoint.  Changes of
+     * running transactions may be written too; they are logged, so an abort
+     * or recovery can still undo them.
+     *
+     * @return the number of pages written
+     */
+    int flushPagesBefore(long lsn, int maxPages) throws IOException {
+        List<PageId> pids=new ArrayList<>();
+        for(Map.Entry<PageId,Long> e:recLsns.entrySet())
+        {
+            if(e.getValue()<lsn)
+                pids.add(e.getKey());
+        }
+        pids.sort(Comparator.comparingLong(pid->recLsns.getOrDefault(pid,Long.MAX_VALUE)));
+        int written=0;
+        for(PageId pid:pids)
+        {
+            if(written>=maxPages)
+                break;
+            flushPage(pid);
+            written++;
+        }
+        return written;
     }
 
     /**
@@ -200,10 +1131,13 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-
+        for(PageId pid:bufferPool.keySet())
+        {
+            flushPage(pid);
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -214,62 +1148,136 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        bufferPool.remove(pid);
+        synchronized (latchFor(pid))
+        {
+            if(bufferPool.remove(pid)!=null)
+            {
+                evictionPolicy.pageRemoved(pid);
+                usedFrames.decrementAndGet();
+            }
+            recLsns.remove(pid);
+            loggedImages.remove(pid);
+            committedDirty.remove(pid);
+            // the file may have been changed behind our back
+            dropPrefetched(pid);
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if(bufferPool.containsKey(pid))
+        synchronized (latchFor(pid))
         {
             Page pg=bufferPool.get(pid);
-            if(pg.isDirty()!=null)
+            if(pg==null)
+                return;
+            // record-locked writers update the page under its monitor
+            synchronized (pg)
             {
-                Database.getCatalog().getDatabaseFile(pg.getId().getTableId()).writePage(pg);
+                if(pg.isDirty()!=null)
+                    writeOut(pg);
             }
         }
     }
 
+    /**
+     * Write a dirty page to disk and mark it clean.  The caller holds the
+     * page's latch and monitor.
+     */
+    private void writeOut(Page pg) throws IOException {
+        // write-ahead logging: the page's log records go first
+        Database.getLogFile().forceUpTo(pg.getLsn());
+        Database.getCatalog().getDatabaseFile(pg.getId().getTableId()).writePage(pg);
+        pg.markDirty(false,null);
+        recLsns.remove(pg.getId());
+        committedDirty.remove(pg.getId());
+        dropPrefetched(pg.getId());
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for(Page pg:bufferPool.values())
+        {
+            if(tid.equals(pg.isDirty()))
+                flushPage(pg.getId());
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Only clean pages and pages holding nothing but committed changes are
+     * chosen as victims, since under NO STEAL a page dirtied by a running
+     * transaction must stay in memory until the transaction completes.
+     * Committed pages are written first; the background writer keeps that
+     * rare.
      */
-    private Page myevictPage()
-    {
-        int bfsize=bufferPool.size();
-        if(bfsize>0)
-        {
-            Page pg=new ArrayList<Page>(bufferPool.values()).get(0);
-            return pg;
-        }
-        return null;
-    }
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Page pg=myevictPage();
-        //also can use LRU algorithm to implement
-        PageId pageId=pg.getId();
-        try{
-            flushPage(pageId);
-            discardPage(pageId);
-        }catch (IOException e)
-        {
-            throw new DbException("evictpage error");
+        while(true)
+        {
+            PageId pageId=evictionPolicy.evict(pid ->
+            {
+                Page pg=bufferPool.get(pid);
+                TransactionId dirtier=pg==null?null:pg.isDirty();
+                if(dirtier==null)
+                    return true;
+                // a committed page that nobody has changed since
+                return committedDirty.contains(pid)&&!lockManager.holdsLock(dirtier,pid);
+            });
+            if(pageId==null)
+            {
+                // pages read ahead give their frames back before we give up
+                if(dropOldestPrefetched())
+                    return;
+                throw new DbException("bufferPool error:all pages in bufferPool are dirty");
+            }
+            synchronized (latchFor(pageId))
+            {
+                Page pg=bufferPool.get(pageId);
+                if(pg==null)
+                {
+                    // discarded concurrently; its frame is already free
+                    return;
+                }
+                synchronized (pg)
+                {
+                    if(pg.isDirty()!=null)
+                    {
+                        boolean written;
+                        try
+                        {
+                            written=writeCommitted(pg);
+                        }
+                        catch (IOException e)
+                        {
+                            throw new DbException("cannot write page "+pageId+": "+e.getMessage());
+                        }
+                        if(!written)
+                        {
+                            // dirtied after the policy picked it; keep it and retry
+                            evictionPolicy.pageAdded(pageId);
+                            continue;
+                        }
+                    }
+                    bufferPool.remove(pageId);
+                    loggedImages.remove(pageId);
+                    usedFrames.decrementAndGet();
+                    evictions.increment();
+                    return;
+                }
+            }
         }
     }
 
@@ -0,0 +1,111 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement.  Every cached page owns a frame on a
+ * circular array together with a reference bit that is set on each access.
+ * To find a victim the clock hand sweeps the frames, clearing set reference
+ * bits as it passes and stopping at the first evictable page whose bit is
+ * already clear.  Each sweep step is O(1) and a hand movement clears at most
+ * one bit, so victim selection is O(1) amortized.
+ * <p>
+ * Recording an access takes no lock, so cache hits on different pages
+ * never contend on the policy.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private PageId[] frames;
+    private volatile boolean[] referenced;
+    private final Map<PageId, Integer> frameOf;
+    private final Deque<Integer> freeFrames;
+    private int used;
+    private int hand;
+
+    /**
+     * @param capacity the expected number of cached pages; the clock grows if
+     *                 more pages than this are tracked at once
+     */
+    public ClockEvictionPolicy(int capacity) {
+        int n = Math.max(1, capacity);
+        this.frames = new PageId[n];
+        this.referenced = new boolean[n];
+        this.frameOf = new ConcurrentHashMap<>(n * 2);
+        this.freeFrames = new ArrayDeque<>();
+        this.used = 0;
+        this.hand = 0;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            frame = allocateFrame();
+            frames[frame] = pid;
+            frameOf.put(pid, frame);
+        }
+        referenced[frame] = true;
+    }
+
+    public void pageAccessed(PageId pid) {
+        // racing with an eviction can at worst lose one reference bit or
+        // give the page that reuses the frame an extra second chance
+        Integer frame = frameOf.get(pid);
+        boolean[] bits = referenced;
+        if (frame != null && frame < bits.length)
+            bits[frame] = true;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null)
+            releaseFrame(frame);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        if (frameOf.isEmpty())
+            return null;
+        // two full turns are enough: the first clears every reference bit,
+        // the second visits every page with its bit clear
+        int steps = 2 * used;
+        for (int i = 0; i < steps; i++) {
+            int frame = hand;
+            hand = (hand + 1) % used;
+            PageId pid = frames[frame];
+            if (pid == null)
+                continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (evictable.test(pid)) {
+                frameOf.remove(pid);
+                releaseFrame(frame);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private int allocateFrame() {
+        if (!freeFrames.isEmpty())
+            return freeFrames.pop();
+        if (used == frames.length) {
+            frames = Arrays.copyOf(frames, used * 2);
+            referenced = Arrays.copyOf(referenced, used * 2);
+        }
+        return used++;
+    }
+
+    private void releaseFrame(int frame) {
+        frames[frame] = null;
+        referenced[frame] = false;
+        freeFrames.push(frame);
+    }
+}
@@ -0,0 +1,51 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool should give up
+ * when it needs a free frame.  The BufferPool tells the policy about every
+ * page it caches, every access to a cached page, and every page it drops;
+ * the policy in turn picks a victim on demand.
+ * <p>
+ * A policy never removes a page from the BufferPool itself.  The caller
+ * passes a filter describing which pages may currently be evicted (for
+ * example, clean pages only when running NO STEAL), and a page returned by
+ * {@link #evict} is forgotten by the policy.
+ *
+ * @see BufferPool
+ * @see ClockEvictionPolicy
+ * @see LRUKEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Record that a page has been added to the buffer pool.
+     *
+     * @param pid the id of the newly cached page
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * Record that a cached page has been accessed.
+     *
+     * @param pid the id of the accessed page
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Forget about a page that has been dropped from the buffer pool for some
+     * other reason than eviction (e.g. {@link BufferPool#discardPage}).
+     *
+     * @param pid the id of the dropped page
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose a page to evict and forget about it.
+     *
+     * @param evictable accepts the pages that may be evicted right now
+     * @return the id of the victim, or null if no tracked page is evictable
+     */
+    PageId evict(Predicate<PageId> evictable);
+}
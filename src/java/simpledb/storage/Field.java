@@ -4,6 +4,7 @@ import simpledb.execution.Predicate;
 import simpledb.common.Type;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for values of fields in tuples in SimpleDB.
@@ -17,6 +18,15 @@ public interface Field extends Serializable{
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Write the bytes representing this field to the specified buffer at
+     * the given index, in the same format as {@link #serialize(DataOutputStream)}.
+     * The buffer's position is not used or changed.
+     * @param buf The buffer to write to.
+     * @param offset The index of the field's first byte in buf.
+     */
+    void serialize(ByteBuffer buf, int offset);
+
     /**
      * Compare the value of this field object to the passed in value.
      * @param op The operator
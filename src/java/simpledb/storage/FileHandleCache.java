@@ -0,0 +1,187 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileHandleCache keeps the table files of the database open, so that a page
+ * read or write is a single positional read or write on a shared
+ * {@link FileChannel} rather than an open, seek, transfer and close.
+ * Positional I/O does not move a shared file pointer, so any number of
+ * threads may read and write the same file at once.
+ * <p>
+ * At most {@link #capacity()} files are kept open; opening one more closes
+ * the least recently used handle.  A thread whose handle is closed under it
+ * simply reopens the file and retries, so callers never see the eviction.
+ * Looking up an open handle takes no lock.
+ *
+ * @Threadsafe
+ */
+public class FileHandleCache {
+
+    /** Default number of files kept open. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static class Handle {
+        final FileChannel channel;
+        volatile long lastUse;
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+            this.lastUse = System.nanoTime();
+        }
+    }
+
+    private final int capacity;
+    private final Map<File, Handle> handles;
+
+    /**
+     * @param capacity the maximum number of files to keep open
+     */
+    public FileHandleCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("cache must hold at least one file");
+        this.capacity = capacity;
+        this.handles = new ConcurrentHashMap<>();
+    }
+
+    /** Return the maximum number of files kept open */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Read bytes of a file into dst, starting at the given file position,
+     * until dst is full or the end of the file is reached.
+     *
+     * @return the number of bytes read, less than requested only at the
+     *         end of the file
+     */
+    public int read(File f, ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        while (true) {
+            Handle h = handle(f);
+            try {
+                int total = 0;
+                while (dst.hasRemaining()) {
+                    int n = h.channel.read(dst, position + total);
+                    if (n < 0)
+                        break;
+                    total += n;
+                }
+                return total;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // evicted by another thread while we were reading
+                handles.remove(f.getAbsoluteFile(), h);
+                dst.position(start);
+            }
+        }
+    }
+
+    /**
+     * Write all remaining bytes of src to a file, starting at the given file
+     * position.  The file grows as needed.
+     */
+    public void write(File f, ByteBuffer src, long position) throws IOException {
+        int start = src.position();
+        while (true) {
+            Handle h = handle(f);
+            try {
+                long offset = position;
+                while (src.hasRemaining())
+                    offset += h.channel.write(src, offset);
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                handles.remove(f.getAbsoluteFile(), h);
+                src.position(start);
+            }
+        }
+    }
+
+    /**
+     * Force the data written to a file so far to the storage device.
+     */
+    public void force(File f) throws IOException {
+        while (true) {
+            Handle h = handle(f);
+            try {
+                h.channel.force(false);
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // fsync on any descriptor of the file flushes its writes
+                handles.remove(f.getAbsoluteFile(), h);
+            }
+        }
+    }
+
+    /**
+     * Close the cached handle of a file, if any.  Must be called when a file
+     * is deleted or replaced by a new file of the same name, since the
+     * cached handle would otherwise keep reading the old one.
+     */
+    public void close(File f) {
+        Handle h = handles.remove(f.getAbsoluteFile());
+        if (h != null)
+            closeQuietly(h);
+    }
+
+    /** Close every cached handle */
+    public void closeAll() {
+        for (File f : handles.keySet())
+            close(f);
+    }
+
+    private Handle handle(File f) throws IOException {
+        File key = f.getAbsoluteFile();
+        Handle h = handles.get(key);
+        if (h == null) {
+            Handle opened = new Handle(FileChannel.open(key.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+            h = handles.putIfAbsent(key, opened);
+            if (h == null) {
+                h = opened;
+                if (handles.size() > capacity)
+                    evict(key);
+            } else {
+                closeQuietly(opened);
+            }
+        }
+        h.lastUse = System.nanoTime();
+        return h;
+    }
+
+    /** Close the least recently used handle other than the one of keep */
+    private synchronized void evict(File keep) {
+        File victim = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<File, Handle> e : handles.entrySet()) {
+            if (!e.getKey().equals(keep) && e.getValue().lastUse < oldest) {
+                oldest = e.getValue().lastUse;
+                victim = e.getKey();
+            }
+        }
+        if (victim != null)
+            close(victim);
+    }
+
+    private static void closeQuietly(Handle h) {
+        try {
+            h.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
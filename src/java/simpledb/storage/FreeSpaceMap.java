@@ -0,0 +1,135 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * FreeSpaceMap records how many free tuple slots every page of a HeapFile
+ * has, so that an insert can go straight to a page with room instead of
+ * fetching every page of the table in turn.
+ * <p>
+ * The map lives next to the heap file in a side file (the heap file's name
+ * with ".fsm" appended) holding one big-endian short per page.  Entries are
+ * written when their page is written to disk, so the side file describes the
+ * pages on disk; the in-memory copy is also updated as tuples are inserted
+ * into and deleted from cached pages.  The counts are only hints: an insert
+ * still checks the page it is sent to, and corrects the map when the page
+ * turns out to be full.  A missing side file, or one whose length does not
+ * match the heap file, is rebuilt from the heap file's pages.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    /** Suffix appended to a heap file's name to get its free-space map. */
+    public static final String SUFFIX = ".fsm";
+
+    private final File file;
+    private short[] free;
+    private int numPages;
+    private final BitSet hasFree;
+    /** No page below this one has free slots. */
+    private int cursor;
+    private boolean loaded;
+
+    /**
+     * @param heapFile the heap file whose pages this map describes
+     */
+    public FreeSpaceMap(File heapFile) {
+        this.file = new File(heapFile.getPath() + SUFFIX);
+        this.free = new short[0];
+        this.numPages = 0;
+        this.hasFree = new BitSet();
+        this.cursor = 0;
+        this.loaded = false;
+    }
+
+    /** Return the side file holding this map */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Load the map, reading the side file if it matches the heap file or
+     * otherwise rebuilding it.  Does nothing if the map is already loaded.
+     *
+     * @param pages the number of pages in the heap file
+     * @param freeSlotsOnDisk returns the number of free slots of a page as
+     *                        stored on disk; used to rebuild the map
+     */
+    public synchronized void load(int pages, IntUnaryOperator freeSlotsOnDisk) throws IOException {
+        if (loaded)
+            return;
+        free = new short[Math.max(16, pages)];
+        numPages = pages;
+        if (file.length() == 2L * pages) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                for (int i = 0; i < pages; i++)
+                    free[i] = in.readShort();
+            }
+        } else {
+            for (int i = 0; i < pages; i++)
+                free[i] = (short) freeSlotsOnDisk.applyAsInt(i);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (int i = 0; i < pages; i++)
+                    out.writeShort(free[i]);
+            }
+        }
+        for (int i = 0; i < pages; i++)
+            hasFree.set(i, free[i] > 0);
+        cursor = 0;
+        loaded = true;
+    }
+
+    /** Return true once {@link #load} has run */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Return the lowest numbered page believed to have a free slot, or -1
+     * if every page is full.
+     */
+    public synchronized int pageWithFreeSlot() {
+        int pgNo = hasFree.nextSetBit(cursor);
+        cursor = pgNo < 0 ? numPages : pgNo;
+        return pgNo;
+    }
+
+    /**
+     * Record the number of free slots of a cached page.  Ignored until the
+     * map is loaded.
+     */
+    public synchronized void setFreeSlots(int pgNo, int freeSlots) {
+        if (!loaded)
+            return;
+        if (pgNo >= free.length)
+            free = Arrays.copyOf(free, Math.max(pgNo + 1, free.length * 2));
+        numPages = Math.max(numPages, pgNo + 1);
+        free[pgNo] = (short) freeSlots;
+        hasFree.set(pgNo, freeSlots > 0);
+        if (freeSlots > 0 && pgNo < cursor)
+            cursor = pgNo;
+    }
+
+    /**
+     * Record the number of free slots of a page that has just been written
+     * to disk, and store it in the side file if there is one.
+     */
+    public synchronized void pageWritten(int pgNo, int freeSlots) throws IOException {
+        setFreeSlots(pgNo, freeSlots);
+        // leave a side file that would get a gap alone; it no longer
+        // matches the heap file's length and is rebuilt on load
+        if (!file.exists() || 2L * pgNo > file.length())
+            return;
+        ByteBuffer entry = ByteBuffer.allocate(2).putShort(0, (short) freeSlots);
+        Database.getFileHandleCache().write(file, entry, 2L * pgNo);
+    }
+}
@@ -4,12 +4,13 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
-import java.rmi.server.ExportException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -33,10 +34,19 @@ public class HeapFile implements DbFile {
      */
     private final File file;//
     private final TupleDesc tupleDesc;
+    private final FreeSpaceMap freeSpace;
+    private final PageLsnMap pageLsns;
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         this.file=f;
         this.tupleDesc=td;
+        this.freeSpace=new FreeSpaceMap(f);
+        this.pageLsns=new PageLsnMap(f);
+        //the files may have been recreated since handles to them were cached
+        FileHandleCache files=Database.getFileHandleCache();
+        files.close(f);
+        files.close(freeSpace.getFile());
+        files.close(pageLsns.getFile());
     }
 
     /**
@@ -80,29 +90,23 @@ public class HeapFile implements DbFile {
 
         int pageNum=pid.getPageNumber();
         final int pageSize=BufferPool.getPageSize();
-        byte[] data=new byte[pageSize];
-        RandomAccessFile randomAccessFile=null;
-        try {
-             randomAccessFile = new RandomAccessFile(file,"r");
-            randomAccessFile.seek(pageSize*pageNum);
-            randomAccessFile.read(data);
-            HeapPage page=new HeapPage((HeapPageId)pid,data);
-            randomAccessFile.close();
-            return page;
-        }catch  (FileNotFoundException e)
+        try
         {
-            throw new IllegalArgumentException("page Not found");
+            //one positional read on the shared handle; bytes past the end of
+            //the file stay zero, as with a short read. The page keeps the array.
+            byte[] data=new byte[pageSize];
+            Database.getFileHandleCache().read(file,ByteBuffer.wrap(data),(long)pageSize*pageNum);
+            HeapPage page=new HeapPage((HeapPageId)pid,data,false);
+            //the page may have more room than the map thinks, e.g. after an abort
+            if(freeSpace.isLoaded())
+                freeSpace.setFreeSlots(pageNum,page.getNumEmptySlots());
+            if(!pageLsns.isLoaded())
+                pageLsns.load(numPages());
+            page.setLsn(pageLsns.getLsn(pageNum));
+            return page;
         }catch (IOException e)
         {
-            throw new IllegalArgumentException("IOException error");
-        }
-        finally {
-            try {
-                randomAccessFile.close();
-            }catch (Exception e)
-            {
-                throw new IllegalArgumentException("Exception error");
-            }
+            throw new IllegalArgumentException("IOException error",e);
         }
     }
 
@@ -111,11 +115,16 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         byte[] pageData=page.getPageData();
-        RandomAccessFile randomAccessFile=new RandomAccessFile(file,"rws");
-        final int pagesize=Database.getBufferPool().getPageSize();
+        final int pagesize=BufferPool.getPageSize();
         int pageNo=page.getId().getPageNumber();
-        randomAccessFile.skipBytes(pageNo*pagesize);
-        randomAccessFile.write(pageData);
+        FileHandleCache files=Database.getFileHandleCache();
+        files.write(file,ByteBuffer.wrap(pageData),(long)pageNo*pagesize);
+        //page writes are synchronous, as the transaction's commit relies on them
+        files.force(file);
+        freeSpace.pageWritten(pageNo,((HeapPage)page).getNumEmptySlots());
+        if(!pageLsns.isLoaded())
+            pageLsns.load(numPages());
+        pageLsns.pageWritten(pageNo,page.getLsn());
     }
 
     /**
@@ -132,30 +141,105 @@ public class HeapFile implements DbFile {
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+        if(Database.getBufferPool().getLockGranularity()==LockManager.Granularity.RECORD)
+            return insertTupleLockingRecord(tid,t);
         List<Page> res=new ArrayList<>();
-        for(int i=0;i<this.numPages()+1;i++)
+        while(true)
         {
-            HeapPage heapPage=null;
-            HeapPageId heapPageId=new HeapPageId(this.getId(),i);
-            if(i<this.numPages())
-                heapPage=(HeapPage)Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
-            else
-                heapPage=new HeapPage(heapPageId,HeapPage.createEmptyPageData());
-            if(heapPage.getNumEmptySlots()>0)
+            int pgNo=pageForInsert();
+            HeapPageId heapPageId=new HeapPageId(this.getId(),pgNo);
+            boolean wasLocked=Database.getBufferPool().holdsLock(tid,heapPageId);
+            HeapPage heapPage=(HeapPage)Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
+            if(heapPage.getNumEmptySlots()==0)
             {
-                heapPage.insertTuple(t);
-                if(i<this.numPages())
-                    res.add(heapPage);
-                else
-                    writePage(heapPage);
-                return res;
+                freeSpace.setFreeSlots(pgNo,0);
+                //nothing was read or written, so 2PL allows giving the lock back
+                if(!wasLocked)
+                    Database.getBufferPool().unsafeReleasePage(tid,heapPageId);
+                continue;
             }
+            heapPage.insertTuple(t);
+            freeSpace.setFreeSlots(pgNo,heapPage.getNumEmptySlots());
+            res.add(heapPage);
+            return res;
         }
-        throw new DbException("heap file full");
         // not necessary for lab1
 
     }
 
+    /**
+     * Return the page an insert should try next: the first page the free
+     * space map believes has room, or a newly appended page
+     */
+    private int pageForInsert() throws IOException {
+        if(!freeSpace.isLoaded())
+            freeSpace.load(numPages(),pgNo->((HeapPage)readPage(new HeapPageId(getId(),pgNo))).getNumEmptySlots());
+        int pgNo=freeSpace.pageWithFreeSlot();
+        return pgNo>=0?pgNo:appendEmptyPage();
+    }
+
+    /**
+     * Append an empty page on disk and return its number; the tuple itself
+     * goes through the buffer pool so that an abort can still throw it away
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        int pgNo=numPages();
+        writePage(new HeapPage(new HeapPageId(getId(),pgNo),HeapPage.createEmptyPageData()));
+        return pgNo;
+    }
+
+    /**
+     * insertTuple under record locking: the page is only intention locked,
+     * and the tuple goes into a free slot whose RecordId we could lock at
+     * once.  Slots still locked by another transaction (freed by a delete
+     * that has not committed) are skipped rather than waited for.
+     */
+    private List<Page> insertTupleLockingRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool=Database.getBufferPool();
+        while(true)
+        {
+            int pgNo=pageForInsert();
+            HeapPageId heapPageId=new HeapPageId(this.getId(),pgNo);
+            boolean wasLocked=bufferPool.holdsLock(tid,heapPageId);
+            HeapPage heapPage=(HeapPage)bufferPool.getPageWithIntent(tid,heapPageId,Permissions.READ_WRITE);
+            boolean lockedRecord=false;
+            for(int slot=0;slot<heapPage.numSlots;slot++)
+            {
+                if(heapPage.isSlotUsed(slot))
+                    continue;
+                RecordId rid=new RecordId(heapPageId,slot);
+                if(!bufferPool.tryLockRecord(tid,rid,Permissions.READ_WRITE))
+                    continue;
+                lockedRecord=true;
+                synchronized (heapPage)
+                {
+                    if(!bufferPool.isCached(heapPage))
+                    {
+                        //evicted while we looked at it; it had no free slot
+                        //we could claim yet, so start over on a fresh copy
+                        heapPage=(HeapPage)bufferPool.getPageWithIntent(tid,heapPageId,Permissions.READ_WRITE);
+                        slot=-1;
+                        continue;
+                    }
+                    if(heapPage.isSlotUsed(slot))
+                        continue;
+                    heapPage.insertTuple(t,slot);
+                    heapPage.markDirty(true,tid);
+                    freeSpace.setFreeSlots(pgNo,heapPage.getNumEmptySlots());
+                }
+                List<Page> res=new ArrayList<>();
+                res.add(heapPage);
+                return res;
+            }
+            //every free slot is owned by another transaction for now
+            freeSpace.setFreeSlots(pgNo,0);
+            //no record of the page was locked, so the intention lock protects nothing
+            if(!wasLocked&&!lockedRecord)
+                bufferPool.unsafeReleasePage(tid,heapPageId);
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -164,8 +248,28 @@ public class HeapFile implements DbFile {
         ArrayList<Page> res=new ArrayList<>();
         if(this.getId()==recordId.getPageId().getTableId())
         {
+            BufferPool bufferPool=Database.getBufferPool();
+            if(bufferPool.getLockGranularity()==LockManager.Granularity.RECORD)
+            {
+                bufferPool.lockRecord(tid,recordId,Permissions.READ_WRITE);
+                while(true)
+                {
+                    HeapPage page=(HeapPage)bufferPool.getPageWithIntent(tid,recordId.getPageId(),Permissions.READ_WRITE);
+                    synchronized (page)
+                    {
+                        if(!bufferPool.isCached(page))
+                            continue;
+                        page.deleteTuple(t);
+                        page.markDirty(true,tid);
+                        freeSpace.setFreeSlots(recordId.getPageId().getPageNumber(),page.getNumEmptySlots());
+                    }
+                    res.add(page);
+                    return res;
+                }
+            }
             HeapPage page=(HeapPage)Database.getBufferPool().getPage(tid,recordId.getPageId(),Permissions.READ_WRITE);
             page.deleteTuple(t);
+            freeSpace.setFreeSlots(recordId.getPageId().getPageNumber(),page.getNumEmptySlots());
             res.add(page);
             return res;
         }
@@ -185,6 +289,9 @@ public class HeapFile implements DbFile {
         private Iterator<Tuple> tupleIter;
         private final int tableId;
         private final int numPages;
+        private ScanRing ring;
+        /** pages before this one have been read ahead */
+        private int prefetchedTo;
         public Itr(TransactionId transactionId)
         {
             pagePosition=null;
@@ -192,12 +299,15 @@ public class HeapFile implements DbFile {
             tableId=getId();
             numPages=numPages();
             tid=transactionId;
+            ring=null;
+            prefetchedTo=0;
         }
         private Iterator<Tuple> getTupleIter(int pgNo) throws TransactionAbortedException,DbException
         {
             HeapPageId pageId=new HeapPageId(tableId,pgNo);
             BufferPool bufferPool=Database.getBufferPool();
-            HeapPage heapPage=(HeapPage) (bufferPool.getPage(tid,pageId,Permissions.READ_ONLY));
+            prefetchedTo=bufferPool.readAhead(tableId,pgNo,numPages,prefetchedTo);
+            HeapPage heapPage=(HeapPage) (bufferPool.getPage(tid,pageId,Permissions.READ_ONLY,ring));
             return heapPage.iterator();
         }
         @Override
@@ -245,10 +355,14 @@ public class HeapFile implements DbFile {
         {
             pagePosition=null;
             tupleIter=null;
+            ring=null;
+            prefetchedTo=0;
         }
         @Override
         public void open()throws DbException, TransactionAbortedException
         {
+            //large scans recycle a few frames instead of flushing the whole pool
+            ring=Database.getBufferPool().newScanRing(numPages);
             pagePosition=0;
             tupleIter=getTupleIter(pagePosition);
         }
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -21,12 +22,30 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
 
-    byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    /**
+     * The page exactly as it is stored on disk: the header bytes, then
+     * numSlots fixed-size tuple slots.  Fields are decoded from it only when
+     * they are asked for and are written straight into it.
+     */
+    private final byte[] data;
+    private final ByteBuffer buf;
+    private final int headerSize;
+    private final int[] fieldOffsets;
+
+    /**
+     * Tuples handed out for the used slots, created when first asked for;
+     * each one reads its fields from this page until it is deleted.
+     */
+    final Tuple[] tuples;
+
+    /**
+     * The before image; the same array as data until the page is first
+     * written.  Volatile so that beforeWrite can check it without the lock.
+     */
+    volatile byte[] oldData;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -45,27 +64,50 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, true);
+    }
+
+    /**
+     * Create a HeapPage from a set of bytes of data read from disk, which
+     * the page takes over unless copy is set.
+     */
+    HeapPage(HeapPageId id, byte[] data, boolean copy) throws IOException {
+        this(id, data, copy, Database.getCatalog().getTupleDesc(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage of tuples that belong to no table in the catalog,
+     * such as a page of a {@link SpillFile}; the format is the same as for
+     * {@link #HeapPage(HeapPageId, byte[])}, with tuples of the given
+     * TupleDesc.  The page takes over the bytes.
+     */
+    public HeapPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
+        this(id, data, false, td);
+    }
+
+    private HeapPage(HeapPageId id, byte[] data, boolean copy, TupleDesc td) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        this.headerSize = getHeaderSize();
+        if (data.length < headerSize)
+            throw new EOFException("page header truncated");
+        int pageSize = BufferPool.getPageSize();
+        if (copy || data.length != pageSize)
+            data = data.length == pageSize ? data.clone() : Arrays.copyOf(data, pageSize);
+        this.data = data;
+        this.buf = ByteBuffer.wrap(data);
+
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
 
-        setBeforeImage();
+        // the before image is the page as read; it is copied on first write
+        synchronized(oldDataLock)
+        {
+            oldData = data;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -108,7 +150,20 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = data;
+        }
+    }
+
+    /**
+     * Keep the before image intact; must be called before data is changed.
+     */
+    private void beforeWrite() {
+        if (oldData != data)
+            return;
+        synchronized(oldDataLock)
+        {
+            if (oldData == data)
+                oldData = data.clone();
         }
     }
 
@@ -120,38 +175,92 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
+    private int slotOffset(int slot) {
+        return headerSize + slot * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode field i of the tuple in the given slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    Field readField(int slot, int i) {
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            return td.getFieldType(i).parse(buf, slotOffset(slot) + fieldOffsets[i]);
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
+    }
+
+    /**
+     * Stop handing out the given tuple for its slot; it is about to be
+     * changed and must not show its changes to other readers of the page.
+     */
+    void release(int slot, Tuple t) {
+        synchronized(tuples)
+        {
+            if (tuples[slot] == t)
+                tuples[slot] = null;
+        }
+    }
+
+    /**
+     * Return a copy of the bytes of the tuple in the given slot, as they
+     * are laid out on the page.
+     */
+    byte[] slotData(int slot) {
+        int base = slotOffset(slot);
+        return Arrays.copyOfRange(data, base, base + td.getSize());
+    }
+
+    /**
+     * Lay out the fields of a tuple as they are stored in a slot.
+     */
+    byte[] tupleData(Tuple t) {
+        byte[] out = new byte[td.getSize()];
+        ByteBuffer b = ByteBuffer.wrap(out);
+        for (int j = 0; j < td.numFields(); j++)
+            t.getField(j).serialize(b, fieldOffsets[j]);
+        return out;
+    }
+
+    /**
+     * Store the given tuple bytes in a slot and mark it used, or clear the
+     * slot if tupleData is null.  Used to redo and undo logged changes.
+     */
+    void writeSlot(int slot, byte[] tupleData) {
+        Tuple view;
+        synchronized(tuples)
+        {
+            view = tuples[slot];
+            tuples[slot] = null;
+        }
+        if (view != null)
+            view.detach();
+        beforeWrite();
+        int base = slotOffset(slot);
+        if (tupleData == null) {
+            markSlotUsed(slot, false);
+            Arrays.fill(data, base, base + td.getSize(), (byte) 0);
+        } else {
+            System.arraycopy(tupleData, 0, data, base, td.getSize());
+            markSlotUsed(slot, true);
+        }
+    }
 
-        return t;
+    /**
+     * Return the tuple stored in a used slot, creating it on first use.
+     */
+    private Tuple tupleAt(int slot) {
+        synchronized(tuples)
+        {
+            Tuple t = tuples[slot];
+            if (t == null)
+            {
+                t = new Tuple(td, this, slot);
+                tuples[slot] = t;
+            }
+            return t;
+        }
     }
 
     /**
@@ -166,64 +275,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -255,17 +307,24 @@ public class HeapPage implements Page {
         //The RecordId representing the location of this tuple on disk. May be null
         if(recoDele!=null&&recoDele.getPageId().equals(pid))
         {
-            for(int i=0;i<numSlots;i++)
+            int i=recoDele.getTupleNumber();
+            if(i<0||i>=numSlots||!isSlotUsed(i))
+                throw new DbException("heapPage deleteTuple error!");
+            //whoever still holds the tuple keeps its values, not the slot
+            Tuple view;
+            synchronized(tuples)
             {
-                if(isSlotUsed(i)&&recoDele.equals(tuples[i].getRecordId()))
-                {
-                    markSlotUsed(i,false);
-                    tuples[i]=null;
-                    return;
-                }
-
+                view=tuples[i];
+                tuples[i]=null;
             }
-            throw new DbException("heapPage deleteTuple error!");
+            if(view!=null)
+                view.detach();
+            t.detach();
+            beforeWrite();
+            markSlotUsed(i,false);
+            int base=slotOffset(i);
+            Arrays.fill(data,base,base+td.getSize(),(byte)0);
+            return;
         }
         throw new DbException("tuple is not in this page");
 
@@ -281,16 +340,13 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         assert t!=null;
-        RecordId recoInsert=t.getRecordId();
         if(t.getTupleDesc().equals(td))
         {
             for(int i=0;i<numSlots;i++)
             {
                 if(!isSlotUsed(i))
                 {
-                    markSlotUsed(i,true);
-                    t.setRecordId(new RecordId(this.pid,i));
-                    tuples[i]=t;
+                    store(t,i);
                     return ;
                 }
             }
@@ -299,8 +355,42 @@ public class HeapPage implements Page {
         throw  new DbException("error: tupledesc dis match");
     }
 
+    /**
+     * Adds the specified tuple to the given slot of the page.  Used by
+     * record-level locking, where the caller has already locked the slot's
+     * RecordId, and to put a deleted tuple back into its slot on abort.
+     * @throws DbException if the slot is in use or the tupledesc is mismatch.
+     * @param t The tuple to add.
+     * @param slot The slot to store it in.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        assert t!=null;
+        if(!t.getTupleDesc().equals(td))
+            throw new DbException("error: tupledesc dis match");
+        if(slot<0||slot>=numSlots||isSlotUsed(slot))
+            throw new DbException("error: slot "+slot+" is not free");
+        store(t,slot);
+    }
+
+    /**
+     * Write the fields of t into a free slot.  The page does not keep t;
+     * later changes to t do not change the page.
+     */
+    private void store(Tuple t, int slot) throws DbException {
+        for(int j=0;j<td.numFields();j++)
+            if(t.getField(j)==null)
+                throw new DbException("error: field "+j+" is not set");
+        beforeWrite();
+        int base=slotOffset(slot);
+        for(int j=0;j<td.numFields();j++)
+            t.getField(j).serialize(buf,base+fieldOffsets[j]);
+        markSlotUsed(slot,true);
+        t.setRecordId(new RecordId(this.pid,slot));
+    }
+
     private boolean isdirty;
     private TransactionId dirtyId;
+    private volatile long lsn;
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -329,6 +419,14 @@ public class HeapPage implements Page {
         return this.dirtyId;
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn=lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -351,7 +449,7 @@ public class HeapPage implements Page {
         {//i start in 0
             int i_th=(i)/8;
             int i_bit=i%8;
-            byte mybyte=header[i_th];
+            byte mybyte=data[i_th];
             return ((1<<i_bit)&mybyte)!=0;
         }
         return false;
@@ -366,11 +464,11 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int i_th=(i)/8;
         int i_bit=i%8;
-        byte mybyte=header[i_th];
+        byte mybyte=data[i_th];
         if(!value)
-            header[i_th]=(byte)((~(1<<i_bit))&mybyte);
+            data[i_th]=(byte)((~(1<<i_bit))&mybyte);
         else
-            header[i_th]=(byte)(((1<<i_bit))|mybyte);
+            data[i_th]=(byte)(((1<<i_bit))|mybyte);
     }
 
     /**
@@ -382,20 +480,20 @@ public class HeapPage implements Page {
         return new Itr();
     }
 
-    private class Itr implements Iterator
+    /**
+     * Walks the slots that were in use when it was created, so tuples
+     * inserted during the scan are not seen; only the header is copied.
+     */
+    private class Itr implements Iterator<Tuple>
     {
-        private final Iterator<Tuple> iterator;
-        public Itr()
+        private final byte[] used=Arrays.copyOf(data,headerSize);
+        private int next=advance(0);
+
+        private int advance(int i)
         {
-            List<Tuple> list=new ArrayList<>();
-            for(int i=0;i<numSlots;i++)
-            {
-                if(isSlotUsed(i))
-                {
-                    list.add(tuples[i]);
-                }
-            }
-            iterator=list.iterator();
+            while(i<numSlots&&!((used[i/8]&(1<<(i%8)))!=0&&isSlotUsed(i)))
+                i++;
+            return i;
         }
 
         @Override
@@ -405,14 +503,19 @@ public class HeapPage implements Page {
 
         @Override
         public boolean hasNext() {
-            return iterator.hasNext();
+            if(next<numSlots&&!isSlotUsed(next))
+                next=advance(next);
+            return next<numSlots;
         }
 
         @Override
-        public Object next() {
-            return iterator.next();
+        public Tuple next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            Tuple t=tupleAt(next);
+            next=advance(next+1);
+            return t;
         }
     }
 
 }
-
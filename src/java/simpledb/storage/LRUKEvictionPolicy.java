@@ -0,0 +1,121 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum).  The policy remembers the
+ * last K reference times of every cached page and evicts the page whose K-th
+ * most recent reference lies furthest in the past.  Pages referenced fewer
+ * than K times have an infinite backward K-distance and are evicted first,
+ * oldest reference first, which keeps pages touched once (e.g. by a scan)
+ * from pushing out pages that are used repeatedly.
+ * <p>
+ * Candidates are kept in a sorted set, so bookkeeping costs O(log n) per
+ * access and the victim is taken from the head of the set.
+ *
+ * @Threadsafe
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    /** Default history depth; LRU-2 captures most of the benefit. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock;
+    private final Map<PageId, History> histories;
+    private final TreeSet<History> order;
+
+    private class History implements Comparable<History> {
+        final PageId pid;
+        final long[] refs;
+        int count;
+
+        History(PageId pid) {
+            this.pid = pid;
+            this.refs = new long[k];
+            this.count = 0;
+        }
+
+        void reference(long time) {
+            refs[count % k] = time;
+            count++;
+        }
+
+        boolean hasFullHistory() {
+            return count >= k;
+        }
+
+        /** The K-th most recent reference, or the oldest one if fewer than K. */
+        long key() {
+            return hasFullHistory() ? refs[count % k] : refs[0];
+        }
+
+        public int compareTo(History o) {
+            if (hasFullHistory() != o.hasFullHistory())
+                return hasFullHistory() ? 1 : -1;
+            int c = Long.compare(key(), o.key());
+            return c != 0 ? c : Long.compare(refs[(count - 1) % k], o.refs[(o.count - 1) % k]);
+        }
+    }
+
+    public LRUKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of past references remembered for each page
+     */
+    public LRUKEvictionPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.clock = 0;
+        this.histories = new HashMap<>();
+        this.order = new TreeSet<>();
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        reference(pid, true);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        reference(pid, false);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null)
+            order.remove(h);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        Iterator<History> it = order.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (evictable.test(h.pid)) {
+                it.remove();
+                histories.remove(h.pid);
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    private void reference(PageId pid, boolean create) {
+        History h = histories.get(pid);
+        if (h == null) {
+            if (!create)
+                return;
+            h = new History(pid);
+            histories.put(pid, h);
+        } else {
+            order.remove(h);
+        }
+        h.reference(clock++);
+        order.add(h);
+    }
+}
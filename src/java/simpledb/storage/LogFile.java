@@ -2,10 +2,13 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.BTreeFile;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -19,23 +22,18 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+writes from happening).  BufferPool has no global lock: each page is
+guarded by one of a fixed set of striped latches, taken by page id,
+and by its own monitor while it is being changed or written out.
+BufferPool writes log records (on pages flushed) and the log file
+changes BufferPool pages (on rollback, checkpoints and recovery), so
+the two are always entered in one order: a page latch, then the
+monitor of this LogFile.
+
+<p> BufferPool forces the log while it holds the latch of a page it is
+flushing, so code holding the monitor of this LogFile must never flush,
+discard or latch a BufferPool page; it reads what it needs from the log
+under the monitor, releases it, and only then goes to the BufferPool.
 */
 
 /**
@@ -43,35 +41,71 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The first long integer of the file is the LSN of the END CHECKPOINT
+record of the last complete checkpoint, or -1 if there are no
+checkpoints.  The second is the LSN of
+the first byte of the file.
 
 <li> All additional data in the log consists of log records.  Log
-records are variable length.
-
-<li> Each log record begins with an integer type and a long integer
-transaction id.
-
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
-
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
-
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
-
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+records are variable length.  The LSN (log sequence number) of a record
+is the LSN of the file plus the offset of the record in the file.  LSNs
+grow forever: truncating the log raises the LSN of the file instead of
+renumbering the records, and a new log starts where the last one ended,
+so LSNs stored with pages on disk stay comparable.
+
+<li> Each log record begins with an integer type, a long integer
+transaction id and the long integer LSN of the transaction's previous
+record, or -1 if there is none.
+
+<li> Each log record ends with its own LSN, so that the log can be read
+backwards.
+
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+BEGIN CHECKPOINT, END CHECKPOINT and CLR
+
+<li> ABORT, COMMIT, BEGIN and BEGIN CHECKPOINT records contain no
+additional data
+
+<li>UPDATE RECORDS describe a change to one page: the class name and id
+of the page, the change (see {@link PageChange}: a tuple stored in or
+removed from a heap page slot, or the byte ranges of the page that
+changed), and a flag telling whether a full image of the page after the
+change follows.  The first change to a page after a checkpoint carries
+the image, so that redo never depends on a page torn by a crash while
+being written; later changes log only what they changed.
+
+<li> CLR (compensation log) records are written when an update is
+rolled back.  They hold the LSN of the next record of the transaction
+to undo (the previous record of the update that was rolled back),
+followed by the compensating change in the same form as an UPDATE.
+CLRs are redone but never undone, so a rollback interrupted by a crash
+picks up where it stopped.
+
+<li> END CHECKPOINT records hold the LSN of the BEGIN CHECKPOINT record
+of their checkpoint, then the transaction table and the dirty page table
+as the checkpoint found them: an integer count of active transactions
+followed by a long integer transaction id, first record LSN and last
+record LSN for each, and an integer count of dirty pages followed by a
+page id and a long integer recLSN (the LSN of the first change since the
+page was last written) for each.
 
 </ul>
+
+<p> Checkpoints are fuzzy: they flush nothing and block nobody while the
+tables are gathered, so transactions keep logging between the two
+markers.  The tables are only guaranteed to cover the log up to the
+BEGIN CHECKPOINT record, which is where analysis starts reading.  Dirty
+pages are written by BufferPool as transactions commit and by the
+checkpoint itself, a few at a time, for pages whose recLSN has fallen
+behind the previous checkpoint; that lets the next checkpoint truncate
+the log past them.
+
+<p> Recovery follows ARIES.  Analysis reads the log from the BEGIN
+CHECKPOINT record of the last complete checkpoint, starting from its
+tables, to rebuild the transaction and dirty page tables.  Redo
+repeats history from the smallest recLSN, applying every update and
+CLR whose page on disk has an older page LSN (see {@link PageLsnMap}).  Undo rolls back the transactions that neither committed
+nor aborted, newest record first, logging a CLR for every update undone.
 */
 public class LogFile {
 
@@ -83,17 +117,81 @@ public class LogFile {
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
-    static final int CHECKPOINT_RECORD = 5;
+    static final int CHECKPOINT_RECORD = 5; // END CHECKPOINT
+    static final int CLR_RECORD = 6;
+    static final int BEGIN_CHECKPOINT_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
 
     long currentOffset = -1;//protected by this
+    long lsnBase = 0; // LSN of the first byte of the file; protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+
+    // a page whose LSN is older than this, the last checkpoint or the start
+    // of the log, gets a full image logged with its next change
+    long fullImageLsn = 0; // protected by this
+
+    // records are put together here and appended with a single write
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    /** Default longest time a commit waits for others to share its force */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY_MICROS = 0;
+    /** Default number of waiting commits that triggers a force at once */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+    // an idle flusher thread exits after this long and is restarted on demand
+    private static final long FLUSHER_IDLE_MILLIS = 1000;
+    /** Default most pages a checkpoint writes before it returns */
+    public static final int DEFAULT_CHECKPOINT_PAGES = 64;
+    private volatile int checkpointPages = DEFAULT_CHECKPOINT_PAGES;
+
+    // Group commit: a committing transaction appends its record and waits
+    // until a flusher thread has forced the log past it.  One force covers
+    // every record appended before it, so all the commits that queue up
+    // during a force share the next one.  Positions in the log are LSNs;
+    // durableLsn is the end of the part of the log known to be on disk.
+    private final Object durableLock = new Object();
+    private long durableLsn = 0; // protected by durableLock
+    private long requestedLsn = 0; // protected by durableLock
+    private int waitingCommits = 0; // protected by durableLock
+    private IOException flushFailure; // protected by durableLock
+    private Thread flusher; // protected by durableLock
+    private volatile long groupCommitDelayMicros = DEFAULT_GROUP_COMMIT_DELAY_MICROS;
+    private volatile int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private long commits = 0; // protected by durableLock
+    private long forces = 0; // protected by durableLock
+
+    /** A log record read back from the log */
+    static class LogRecord {
+        int type;
+        long tid;
+        long lsn;
+        long prevLsn;
+        /** File offset just past the record */
+        long end;
+        /** UPDATE and CLR: the page changed */
+        PageId pid;
+        /** UPDATE: the change; CLR: the compensating change */
+        PageChange change;
+        /** UPDATE and CLR: the page after the change, if logged */
+        Page image;
+        /** CLR: the next record of the transaction to undo */
+        long undoNextLsn = NO_LSN;
+        /** CHECKPOINT: the LSN of the checkpoint's BEGIN CHECKPOINT record */
+        long checkpointBegin = NO_LSN;
+        /** CHECKPOINT: tid to first and last LSN of active transactions */
+        Map<Long,long[]> transactions;
+        /** CHECKPOINT: recLSN of dirty pages */
+        Map<PageId,Long> dirtyPages;
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -129,44 +227,143 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
+            // start numbering where the old log ended, so that the LSNs of
+            // pages written under it stay older than any new record
+            long oldEnd = 0;
+            if (raf.length() >= HEADER_SIZE) {
+                raf.seek(LONG_SIZE);
+                oldEnd = raf.readLong() + raf.length();
+            }
+            lsnBase = Math.max(0, oldEnd - HEADER_SIZE);
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
+            raf.writeLong(lsnBase);
             currentOffset = raf.getFilePointer();
+            fullImageLsn = lsnBase + currentOffset;
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** Return the LSN the next record will get */
+    synchronized long endLsn() {
+        return lsnBase + currentOffset;
+    }
+
+    /**
+     * Return true if the transaction has a BEGIN record in the log and
+     * has not yet committed or aborted.  Only the updates of such
+     * transactions are logged.
+     */
+    public synchronized boolean isLogged(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /**
+     * Set how commits are grouped into forces of the log.  The flusher waits
+     * up to maxDelayMicros after the first commit of a group for others to
+     * join it, unless maxGroupSize commits are already waiting.  A delay of
+     * zero forces as soon as a commit arrives; commits arriving during that
+     * force still share the next one.
+     */
+    public void setGroupCommit(long maxDelayMicros, int maxGroupSize) {
+        if (maxDelayMicros < 0 || maxGroupSize < 1)
+            throw new IllegalArgumentException("bad group commit settings");
+        groupCommitDelayMicros = maxDelayMicros;
+        groupCommitSize = maxGroupSize;
+    }
+
+    public long getGroupCommitDelayMicros() {
+        return groupCommitDelayMicros;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * Set the most pages a checkpoint writes itself.  Old dirty pages past
+     * that are left for the next checkpoint or the background writer, and
+     * the log is kept back to their changes until then.
+     */
+    public void setCheckpointPages(int maxPages) {
+        if (maxPages < 0)
+            throw new IllegalArgumentException("bad checkpoint page limit");
+        checkpointPages = maxPages;
+    }
+
+    public int getCheckpointPages() {
+        return checkpointPages;
+    }
+
+    /** Return the number of commit records made durable */
+    public long getCommitCount() {
+        synchronized (durableLock) {
+            return commits;
+        }
+    }
+
+    /** Return the number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (durableLock) {
+            return forces;
+        }
+    }
+
+    /** Return the average number of commits made durable by one force */
+    public double getCommitsPerForce() {
+        synchronized (durableLock) {
+            return forces == 0 ? 0 : (double) commits / forces;
+        }
+    }
+
+    /**
+     * Start a record of the given type: write the type, the transaction id
+     * and the LSN of the transaction's previous record.
+     *
+     * @return the LSN of the new record
+     */
+    private long beginRecord(int type, long tid) throws IOException {
+        preAppend();
+        long lsn = lsnBase + currentOffset;
+        Long prev = tidToLastLogRecord.get(tid);
+        recordBytes.reset();
+        record.writeInt(type);
+        record.writeLong(tid);
+        record.writeLong(prev == null ? NO_LSN : prev);
+        return lsn;
+    }
+
+    /** Finish the record begun at the given LSN and append it */
+    private void endRecord(long tid, long lsn) throws IOException {
+        record.writeLong(lsn);
+        raf.seek(currentOffset);
+        raf.write(recordBytes.toByteArray());
+        currentOffset = raf.getFilePointer();
+        if (tid != -1)
+            tidToLastLogRecord.put(tid, lsn);
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToLastLogRecord)
+        rollback(tid);
+
+        synchronized(this) {
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+            long lsn = beginRecord(ABORT_RECORD, tid.getId());
+            endRecord(tid.getId(), lsn);
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
         }
     }
 
@@ -175,17 +372,115 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            long lsn = beginRecord(COMMIT_RECORD, tid.getId());
+            endRecord(tid.getId(), lsn);
+            end = endLsn();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
+        // wait outside the monitor, so that other transactions can append
+        // their commits to the same force
+        awaitDurable(end);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Block until the log is forced up to the given LSN, starting the
+     * flusher if need be.
+     */
+    private void awaitDurable(long lsn) throws IOException {
+        synchronized (durableLock) {
+            if (durableLsn >= lsn) {
+                commits++;
+                return;
+            }
+            if (lsn > requestedLsn)
+                requestedLsn = lsn;
+            flushFailure = null;
+            waitingCommits++;
+            if (flusher == null) {
+                flusher = new Thread(this::flushLoop, "log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            durableLock.notifyAll();
+            try {
+                while (durableLsn < lsn && flushFailure == null)
+                    durableLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for commit");
+            } finally {
+                waitingCommits--;
+            }
+            if (durableLsn < lsn)
+                throw new IOException("log force failed", flushFailure);
+            commits++;
+        }
+    }
+
+    /** Note that the log is on disk up to the given LSN */
+    private void markDurable(long lsn) {
+        synchronized (durableLock) {
+            forces++;
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+                flushFailure = null;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (durableLock) {
+                try {
+                    while (requestedLsn <= durableLsn) {
+                        long idle = System.currentTimeMillis();
+                        durableLock.wait(FLUSHER_IDLE_MILLIS);
+                        if (requestedLsn <= durableLsn
+                                && System.currentTimeMillis() - idle >= FLUSHER_IDLE_MILLIS) {
+                            flusher = null;
+                            return;
+                        }
+                    }
+                    // give other commits a chance to join this force
+                    long deadline = System.nanoTime() + groupCommitDelayMicros * 1000;
+                    long remaining;
+                    while (waitingCommits < groupCommitSize
+                            && (remaining = deadline - System.nanoTime()) > 0)
+                        durableLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException e) {
+                    flusher = null;
+                    return;
+                }
+            }
+
+            long lsn;
+            FileChannel channel;
+            synchronized (this) {
+                lsn = endLsn();
+                channel = raf.getChannel();
+            }
+            try {
+                channel.force(true);
+                markDurable(lsn);
+            } catch (ClosedChannelException e) {
+                // the log was replaced by logTruncate, which forced it
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (durableLock) {
+                    flushFailure = e;
+                    requestedLsn = durableLsn;
+                    durableLock.notifyAll();
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -193,37 +488,93 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, to be stored as the page LSN of
+        the updated page
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before, Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        return logChange(tid, after, PageChange.image(before.getPageData(), after.getPageData()));
+    }
+
+    /**
+     * Write an UPDATE record for a change the specified tid made to a page.
+     *
+     * @param page the page, as changed
+     * @return the LSN of the record, to be stored as the page LSN of the page
+     */
+    public synchronized long logChange(TransactionId tid, Page page, PageChange change)
+        throws IOException {
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+           previous record of the transaction
+           page (see writeChange)
+           start LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = beginRecord(UPDATE_RECORD, tid.getId());
+        writeChange(record, page, change);
+        endRecord(tid.getId(), lsn);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    /**
+     * Write a CLR for the rollback of an update by the specified tid.
+     *
+     * @param undoNextLsn the previous record of the update rolled back
+     * @param page the page, as restored
+     * @param compensation the change that restored it
+     * @return the LSN of the record
+     */
+    synchronized long logCompensation(long tid, long undoNextLsn, Page page,
+                                      PageChange compensation) throws IOException {
+        long lsn = beginRecord(CLR_RECORD, tid);
+        record.writeLong(undoNextLsn);
+        writeChange(record, page, compensation);
+        endRecord(tid, lsn);
+        return lsn;
+    }
+
+    /**
+     * Write the page class and id and the change, followed by an image of
+     * the page if this is its first change since the last checkpoint.
+     */
+    private void writeChange(DataOutput out, Page page, PageChange change) throws IOException {
+        out.writeUTF(page.getClass().getName());
+        writePageId(out, page.getId());
+        change.write(out);
+        boolean image = page.getLsn() < fullImageLsn;
+        out.writeBoolean(image);
+        if (image) {
+            byte[] pageData = page.getPageData();
+            out.writeInt(pageData.length);
+            out.write(pageData);
+        }
+    }
+
+    private LogRecord readChange(LogRecord r) throws IOException {
+        Class<?> pageClass;
+        try {
+            pageClass = Class.forName(raf.readUTF());
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        r.pid = readPageId(raf);
+        r.change = PageChange.read(raf);
+        if (raf.readBoolean()) {
+            byte[] pageData = new byte[raf.readInt()];
+            raf.readFully(pageData);
+            r.image = newPage(pageClass, r.pid, pageData);
+        }
+        return r;
+    }
 
+    void writePageData(DataOutput out, Page p) throws IOException{
         //page data is:
         // page class name
         // id class name
@@ -233,59 +584,127 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
+        out.writeUTF(pageClassName);
+        writePageId(out, p.getId());
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    Page readPageData(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in);
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        int pageSize = in.readInt();
+        byte[] pageData = new byte[pageSize];
+        in.readFully(pageData); //read before image
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            return newPage(Class.forName(pageClassName), pid, pageData);
+            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /**
+     * Build a page from its bytes.  B+ tree leaf and internal pages also
+     * take the key field of their file.
+     */
+    static Page newPage(Class<?> pageClass, PageId pid, byte[] data) throws IOException {
+        try {
+            try {
+                return (Page) pageClass.getDeclaredConstructor(pid.getClass(), byte[].class)
+                    .newInstance(pid, data);
+            } catch (NoSuchMethodException e) {
+                BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                return (Page) pageClass.getDeclaredConstructor(pid.getClass(), byte[].class, int.class)
+                    .newInstance(pid, data, f.keyField());
+            }
+        } catch (InvocationTargetException | IllegalAccessException
+                 | InstantiationException | NoSuchMethodException e) {
+            throw new IOException("cannot build a " + pageClass.getName(), e);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+    PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object[] idArgs = new Object[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = in.readInt();
+        }
+        try {
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            return (PageId)idConsts[0].newInstance(idArgs);
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
             e.printStackTrace();
-            throw new IOException();
+            throw new IOException(e);
         }
-        return newPage;
+    }
 
+    /**
+     * Read the record with the given LSN.  Leaves the file pointer just
+     * past the record.
+     *
+     * @throws EOFException if the record is cut short by the end of the log
+     */
+    LogRecord readRecord(long lsn) throws IOException {
+        raf.seek(lsn - lsnBase);
+        LogRecord r = new LogRecord();
+        r.lsn = lsn;
+        r.type = raf.readInt();
+        r.tid = raf.readLong();
+        r.prevLsn = raf.readLong();
+        switch (r.type) {
+        case UPDATE_RECORD:
+            readChange(r);
+            break;
+        case CLR_RECORD:
+            r.undoNextLsn = raf.readLong();
+            readChange(r);
+            break;
+        case CHECKPOINT_RECORD:
+            r.checkpointBegin = raf.readLong();
+            r.transactions = new HashMap<>();
+            int numXactions = raf.readInt();
+            while (numXactions-- > 0) {
+                long xid = raf.readLong();
+                long first = raf.readLong();
+                long last = raf.readLong();
+                r.transactions.put(xid, new long[] { first, last });
+            }
+            r.dirtyPages = new HashMap<>();
+            int numDirty = raf.readInt();
+            while (numDirty-- > 0) {
+                PageId pid = readPageId(raf);
+                r.dirtyPages.put(pid, raf.readLong());
+            }
+            break;
+        case BEGIN_RECORD:
+        case COMMIT_RECORD:
+        case ABORT_RECORD:
+        case BEGIN_CHECKPOINT_RECORD:
+            break;
+        default:
+            throw new IOException("bad log record type " + r.type + " at LSN " + lsn);
+        }
+        if (raf.readLong() != lsn)
+            throw new IOException("log record at LSN " + lsn + " is damaged");
+        r.end = raf.getFilePointer();
+        return r;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -299,54 +718,71 @@ public class LogFile {
             System.err.print("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = beginRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), lsn);
+        endRecord(tid.getId(), lsn);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * Take a fuzzy checkpoint: write a BEGIN CHECKPOINT record, gather the
+     * dirty page table and the transaction table, and write them in an END
+     * CHECKPOINT record.  Transactions keep running meanwhile; only the
+     * appends of the two records exclude other log writers.  Up to
+     * {@link #getCheckpointPages} pages that were already dirty at the
+     * previous checkpoint are then written, oldest first, so that the log
+     * can be truncated past their changes.  The rest stay dirty; the log is
+     * kept back to them until a later checkpoint or the background writer
+     * gets them to disk, so a checkpoint never stalls on writing the whole
+     * pool.
+     */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long beginLsn;
+        long previousBegin;
+        synchronized (this) {
+            beginLsn = beginRecord(BEGIN_CHECKPOINT_RECORD, -1);
+            previousBegin = fullImageLsn;
+            endRecord(-1, beginLsn);
+            fullImageLsn = beginLsn;
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        // BufferPool enters a page in the table before it logs the page's
+        // first change, so every change before beginLsn is covered
+        BufferPool bp = Database.getBufferPool();
+        Map<PageId,Long> dirty = bp.dirtyPageTable();
+
+        synchronized (this) {
+            long cpLsn = beginRecord(CHECKPOINT_RECORD, -1);
+            record.writeLong(beginLsn);
+
+            //write list of outstanding transactions
+            record.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                record.writeLong(e.getKey());
+                record.writeLong(e.getValue());
+                record.writeLong(tidToLastLogRecord.get(e.getKey()));
+            }
+
+            //and the pages changed since they were last written
+            record.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                writePageId(record, e.getKey());
+                record.writeLong(e.getValue());
             }
+            endRecord(-1, cpLsn);
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            raf.seek(0);
+            raf.writeLong(cpLsn);
+            raf.seek(currentOffset);
+            force();
         }
 
+        // writing pages forces the log, so this happens outside our monitor
+        bp.flushPagesBefore(previousBegin, checkpointPages);
         logTruncate();
     }
 
@@ -355,85 +791,45 @@ public class LogFile {
     public synchronized void logTruncate() throws IOException {
         preAppend();
         raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        long cpLsn = raf.readLong();
+        if (cpLsn == NO_CHECKPOINT_ID)
+            return;
+
+        // recovery needs the checkpoint, the records of the transactions
+        // active at the checkpoint, and the records since the oldest
+        // change of the pages that were dirty at the checkpoint
+        LogRecord cp = readRecord(cpLsn);
+        if (cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        long minLsn = cp.checkpointBegin;
+        for (long[] firstLast : cp.transactions.values())
+            minLsn = Math.min(minLsn, firstLast[0]);
+        for (long recLsn : cp.dirtyPages.values())
+            minLsn = Math.min(minLsn, recLsn);
+
+        long minOffset = minLsn - lsnBase;
+        if (minOffset <= HEADER_SIZE) {
+            raf.seek(currentOffset);
+            return;
         }
 
-        // we can truncate everything before minLogRecord
+        // we can truncate everything before minLsn; the records keep their
+        // LSNs, so they are copied as they are
+        long newBase = lsnBase + minOffset - HEADER_SIZE;
         File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        try (RandomAccessFile logNew = new RandomAccessFile(newFile, "rw")) {
+            logNew.setLength(0);
+            logNew.writeLong(cpLsn);
+            logNew.writeLong(newBase);
+            FileChannel from = raf.getChannel();
+            FileChannel to = logNew.getChannel();
+            long pos = minOffset;
+            while (pos < currentOffset)
+                pos += from.transferTo(pos, currentOffset - pos, to);
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minOffset + " NEW LENGTH: " + (raf.length() - minOffset));
 
         raf.close();
         logFile.delete();
@@ -442,7 +838,10 @@ public class LogFile {
         raf.seek(raf.length());
         newFile.delete();
 
+        lsnBase = newBase;
         currentOffset = raf.getFilePointer();
+        // the records waiting for the flusher are now only in the new file
+        force();
         //print();
     }
 
@@ -456,22 +855,38 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        List<LogRecord> updates = new ArrayList<>();
+        synchronized(this) {
+            preAppend();
+            Long lsn = tidToLastLogRecord.get(tid.getId());
+            while (lsn != null && lsn != NO_LSN) {
+                LogRecord r = readRecord(lsn);
+                if (r.type == UPDATE_RECORD)
+                    updates.add(r);
+                lsn = r.type == CLR_RECORD ? r.undoNextLsn : r.prevLsn;
             }
         }
+        // the changes are undone on the cached pages, which BufferPool
+        // latches, so this happens outside our monitor
+        BufferPool bp = Database.getBufferPool();
+        for (LogRecord r : updates)
+            bp.undoChange(tid, r.pid, r.change, r.prevLsn);
+        bp.flushPages(tid);
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // write everything out first, so the checkpoint leaves nothing
+            // to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -483,84 +898,216 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        Map<PageId,Page> pages = new HashMap<>();
+        synchronized (this) {
+            recoveryUndecided = false;
+            if (raf.length() < HEADER_SIZE) {
+                // nothing was ever logged
+                lsnBase = 0;
+                raf.setLength(0);
+                raf.writeLong(NO_CHECKPOINT_ID);
+                raf.writeLong(lsnBase);
+                currentOffset = raf.getFilePointer();
+                return;
             }
-         }
-    }
-
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
+            raf.seek(0);
+            long cpLsn = raf.readLong();
+            lsnBase = raf.readLong();
+
+            // analysis: rebuild the transaction and dirty page tables
+            Map<Long,Long> firstLsn = new HashMap<>();
+            Map<Long,Long> lastLsn = new HashMap<>();
+            Map<PageId,Long> dirty = new HashMap<>();
+            long lsn = lsnBase + HEADER_SIZE;
+            long cpBegin = lsn;
+            if (cpLsn != NO_CHECKPOINT_ID) {
+                LogRecord cp = readRecord(cpLsn);
+                for (Map.Entry<Long,long[]> e : cp.transactions.entrySet()) {
+                    firstLsn.put(e.getKey(), e.getValue()[0]);
+                    lastLsn.put(e.getKey(), e.getValue()[1]);
+                }
+                dirty.putAll(cp.dirtyPages);
+                // the tables only cover the log up to the checkpoint's
+                // begin; records after it may have been logged while
+                // they were gathered
+                cpBegin = cp.checkpointBegin;
+                lsn = cpBegin;
+            }
+            long end = lsn - lsnBase;
+            while (true) {
+                LogRecord r;
+                try {
+                    r = readRecord(lsn);
+                } catch (IOException e) {
+                    break; // a record cut short by the crash
+                }
+                end = r.end;
+                lsn = lsnBase + r.end;
+                switch (r.type) {
                 case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    firstLsn.put(r.tid, r.lsn);
+                    lastLsn.put(r.tid, r.lsn);
                     break;
+                case COMMIT_RECORD:
                 case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    firstLsn.remove(r.tid);
+                    lastLsn.remove(r.tid);
                     break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                case UPDATE_RECORD:
+                case CLR_RECORD:
+                    firstLsn.putIfAbsent(r.tid, r.lsn);
+                    lastLsn.put(r.tid, r.lsn);
+                    dirty.putIfAbsent(r.pid, r.lsn);
                     break;
+                }
+            }
+            raf.setLength(end);
+            currentOffset = end;
+            fullImageLsn = cpBegin;
+
+            // redo: repeat history from the oldest change that may be
+            // missing on disk
+            lsn = dirty.isEmpty() ? currentOffset + lsnBase : Collections.min(dirty.values());
+            while (lsn - lsnBase < currentOffset) {
+                LogRecord r = readRecord(lsn);
+                lsn = lsnBase + r.end;
+                if (r.type != UPDATE_RECORD && r.type != CLR_RECORD)
+                    continue;
+                Long recLsn = dirty.get(r.pid);
+                if (recLsn == null || recLsn > r.lsn)
+                    continue;
+                Page cur = pages.get(r.pid);
+                if (cur == null)
+                    cur = pageOnDisk(r.pid);
+                if (cur != null && cur.getLsn() >= r.lsn)
+                    continue;
+                // a page missing on disk was first changed after the
+                // last checkpoint, so its record carries an image
+                Page next = r.image != null ? r.image : cur == null ? null : r.change.apply(cur);
+                if (next != null) {
+                    next.setLsn(r.lsn);
+                    pages.put(r.pid, next);
+                }
+            }
 
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+            // undo: roll back the losers together, newest record first
+            tidToFirstLogRecord.clear();
+            tidToLastLogRecord.clear();
+            tidToFirstLogRecord.putAll(firstLsn);
+            tidToLastLogRecord.putAll(lastLsn);
+            TreeMap<Long,Long> toUndo = new TreeMap<>();
+            for (Map.Entry<Long,Long> e : lastLsn.entrySet())
+                toUndo.put(e.getValue(), e.getKey());
+            while (!toUndo.isEmpty()) {
+                Map.Entry<Long,Long> next = toUndo.pollLastEntry();
+                long tid = next.getValue();
+                LogRecord r = readRecord(next.getKey());
+                long undoNext = r.prevLsn;
+                if (r.type == UPDATE_RECORD) {
+                    Page cur = pages.get(r.pid);
+                    if (cur == null)
+                        cur = pageOnDisk(r.pid);
+                    if (cur != null) {
+                        PageChange compensation = r.change.inverse();
+                        Page restored = compensation.apply(cur);
+                        restored.setLsn(logCompensation(tid, r.prevLsn, restored, compensation));
+                        pages.put(r.pid, restored);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
-
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                } else if (r.type == CLR_RECORD) {
+                    undoNext = r.undoNextLsn;
+                }
+                if (undoNext != NO_LSN) {
+                    toUndo.put(undoNext, tid);
+                } else {
+                    long abort = beginRecord(ABORT_RECORD, tid);
+                    endRecord(tid, abort);
+                    tidToFirstLogRecord.remove(tid);
+                    tidToLastLogRecord.remove(tid);
+                }
+            }
+            force();
+            writePages(pages.values());
+        }
+        for (PageId pid : pages.keySet())
+            Database.getBufferPool().discardPage(pid);
+    }
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+    /** Write pages straight to their files */
+    private void writePages(Collection<Page> pages) throws IOException {
+        for (Page p : pages)
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+    }
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+    /** Read a page from its file, or return null if it is not there */
+    private static Page pageOnDisk(PageId pid) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+    /** Print out a human readable represenation of the log */
+    public synchronized void print() throws IOException {
+        long curOffset = raf.getFilePointer();
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+        raf.seek(0);
 
-                    break;
-                }
+        System.out.println("0: checkpoint record at LSN " + raf.readLong());
+        System.out.println(LONG_SIZE + ": file starts at LSN " + lsnBase);
 
+        long offset = HEADER_SIZE;
+        while (true) {
+            LogRecord r;
+            try {
+                r = readRecord(lsnBase + offset);
             } catch (EOFException e) {
                 //e.printStackTrace();
                 break;
             }
+            System.out.println(r.lsn + ": RECORD TYPE " + r.type + ", TID " + r.tid
+                               + ", PREVIOUS LSN " + r.prevLsn);
+
+            switch (r.type) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
+            case BEGIN_CHECKPOINT_RECORD:
+                System.out.println(" (BEGIN CHECKPOINT)");
+                break;
+            case CHECKPOINT_RECORD:
+                System.out.println(" (END CHECKPOINT)");
+                System.out.println(" BEGIN CHECKPOINT LSN: " + r.checkpointBegin);
+                System.out.println(" NUMBER OF OUTSTANDING TRANSACTIONS: " + r.transactions.size());
+                for (Map.Entry<Long,long[]> e : r.transactions.entrySet())
+                    System.out.println(" TID: " + e.getKey() + " FIRST LOG RECORD: " + e.getValue()[0]
+                                       + " LAST LOG RECORD: " + e.getValue()[1]);
+                System.out.println(" NUMBER OF DIRTY PAGES: " + r.dirtyPages.size());
+                for (Map.Entry<PageId,Long> e : r.dirtyPages.entrySet())
+                    System.out.println(" PAGE: table " + e.getKey().getTableId() + " page "
+                                       + e.getKey().getPageNumber() + " RECLSN: " + e.getValue());
+                break;
+            case UPDATE_RECORD:
+                System.out.println(" (UPDATE)");
+                System.out.println(" table id " + r.pid.getTableId() + ", page number "
+                                   + r.pid.getPageNumber() + ": " + r.change
+                                   + (r.image != null ? ", with page image" : ""));
+                break;
+            case CLR_RECORD:
+                System.out.println(" (CLR)");
+                System.out.println(" table id " + r.pid.getTableId() + ", page number "
+                                   + r.pid.getPageNumber() + ": " + r.change
+                                   + (r.image != null ? ", with page image" : "")
+                                   + ", UNDO NEXT LSN " + r.undoNextLsn);
+                break;
+            }
+            offset = r.end;
         }
 
         // Return the file pointer to its original position
@@ -569,6 +1116,28 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        markDurable(endLsn());
+    }
+
+    /**
+     * Force the log to disk at least up to the record with the given LSN.
+     * BufferPool calls this before it writes a page whose page LSN is lsn,
+     * so that a page never reaches disk ahead of the log records of its
+     * changes.  Returns at once if those records are already durable.
+     */
+    public void forceUpTo(long lsn) throws IOException {
+        if (lsn <= 0)
+            return; // no logged change
+        synchronized (durableLock) {
+            if (durableLsn > lsn)
+                return;
+        }
+        synchronized (this) {
+            // records of an earlier log were forced before it was replaced
+            if (recoveryUndecided || lsn >= endLsn())
+                return;
+            force();
+        }
     }
 
 }
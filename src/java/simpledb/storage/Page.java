@@ -58,4 +58,18 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record describing a change to this
+     * page, or 0 if no logged change has been made since the page was
+     * created.  A page may only be written to disk once the log is durable
+     * up to its LSN.
+     */
+    long getLsn();
+
+    /**
+     * Set the LSN of the page; called when a change to the page is logged
+     * and when the page is read from disk.
+     */
+    void setLsn(long lsn);
 }
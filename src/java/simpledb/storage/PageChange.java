@@ -0,0 +1,210 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageChange describes one logged change to a page, in a form that can be
+ * applied to the page forwards (redo) and backwards (undo) without logging
+ * the whole page.  There are four kinds:
+ * <ul>
+ * <li> INSERT_SLOT: a tuple was stored in a free slot of a heap page
+ * <li> DELETE_SLOT: the tuple in a slot of a heap page was removed
+ * <li> RANGES: byte ranges of a page changed, e.g. the fields a B+ tree
+ *      page moved around; each range holds its old and new bytes
+ * <li> IMAGE: the whole page changed, from one image to another
+ * </ul>
+ * Slot changes touch nothing but their slot and its header bit, so they
+ * can be undone on a page that other transactions changed since, as
+ * happens under record locking.
+ *
+ * @Immutable
+ */
+public class PageChange {
+
+    static final byte INSERT_SLOT = 1;
+    static final byte DELETE_SLOT = 2;
+    static final byte RANGES = 3;
+    static final byte IMAGE = 4;
+
+    /** Changed runs of bytes closer together than this are logged as one range */
+    private static final int RANGE_GAP = 8;
+
+    private final byte kind;
+    private final int slot;
+    /** INSERT_SLOT and DELETE_SLOT: the bytes of the tuple */
+    private final byte[] tuple;
+    /** RANGES: start offsets of the ranges; IMAGE: a single 0 */
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageChange(byte kind, int slot, byte[] tuple, int[] offsets, byte[][] before, byte[][] after) {
+        this.kind = kind;
+        this.slot = slot;
+        this.tuple = tuple;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** A tuple with the given bytes was stored in a free slot */
+    public static PageChange insertSlot(int slot, byte[] tuple) {
+        return new PageChange(INSERT_SLOT, slot, tuple, null, null, null);
+    }
+
+    /** The tuple with the given bytes was removed from a slot */
+    public static PageChange deleteSlot(int slot, byte[] tuple) {
+        return new PageChange(DELETE_SLOT, slot, tuple, null, null, null);
+    }
+
+    /** The page changed from one image to another */
+    public static PageChange image(byte[] before, byte[] after) {
+        return new PageChange(IMAGE, -1, null, new int[] { 0 },
+                              new byte[][] { before }, new byte[][] { after });
+    }
+
+    /**
+     * The page changed from one image to another; only the bytes that
+     * differ are kept.
+     */
+    public static PageChange diff(byte[] before, byte[] after) {
+        if (before.length != after.length)
+            return image(before, after);
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < before.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            // extend the range while the next differing byte is near
+            int start = i, end = i + 1;
+            for (int j = end; j < before.length && j - end < RANGE_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] b = new byte[ranges.size()][];
+        byte[][] a = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            b[r] = Arrays.copyOfRange(before, range[0], range[1]);
+            a[r] = Arrays.copyOfRange(after, range[0], range[1]);
+        }
+        return new PageChange(RANGES, -1, null, offsets, b, a);
+    }
+
+    /** Return true if the change leaves the page as it was */
+    public boolean isEmpty() {
+        return kind == RANGES && offsets.length == 0;
+    }
+
+    /** Return the change that undoes this one */
+    public PageChange inverse() {
+        switch (kind) {
+        case INSERT_SLOT:
+            return deleteSlot(slot, tuple);
+        case DELETE_SLOT:
+            return insertSlot(slot, tuple);
+        default:
+            return new PageChange(kind, slot, tuple, offsets, after, before);
+        }
+    }
+
+    /**
+     * Apply the change to a page.  Slot changes modify the heap page in
+     * place and return it; other changes return a new page built from the
+     * changed bytes, with the LSN of the old one.
+     */
+    public Page apply(Page page) throws IOException {
+        switch (kind) {
+        case INSERT_SLOT:
+            ((HeapPage) page).writeSlot(slot, tuple);
+            return page;
+        case DELETE_SLOT:
+            ((HeapPage) page).writeSlot(slot, null);
+            return page;
+        default:
+            byte[] data = kind == IMAGE ? after[0].clone() : page.getPageData();
+            if (kind == RANGES) {
+                for (int r = 0; r < offsets.length; r++)
+                    System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+            }
+            Page changed = LogFile.newPage(page.getClass(), page.getId(), data);
+            changed.setLsn(page.getLsn());
+            return changed;
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(kind);
+        switch (kind) {
+        case INSERT_SLOT:
+        case DELETE_SLOT:
+            out.writeInt(slot);
+            out.writeInt(tuple.length);
+            out.write(tuple);
+            break;
+        default:
+            out.writeInt(offsets.length);
+            for (int r = 0; r < offsets.length; r++) {
+                out.writeInt(offsets[r]);
+                out.writeInt(before[r].length);
+                out.write(before[r]);
+                out.write(after[r]);
+            }
+        }
+    }
+
+    static PageChange read(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+        case INSERT_SLOT:
+        case DELETE_SLOT: {
+            int slot = in.readInt();
+            byte[] tuple = new byte[in.readInt()];
+            in.readFully(tuple);
+            return new PageChange(kind, slot, tuple, null, null, null);
+        }
+        case RANGES:
+        case IMAGE: {
+            int n = in.readInt();
+            int[] offsets = new int[n];
+            byte[][] before = new byte[n][];
+            byte[][] after = new byte[n][];
+            for (int r = 0; r < n; r++) {
+                offsets[r] = in.readInt();
+                int len = in.readInt();
+                before[r] = new byte[len];
+                after[r] = new byte[len];
+                in.readFully(before[r]);
+                in.readFully(after[r]);
+            }
+            return new PageChange(kind, -1, null, offsets, before, after);
+        }
+        default:
+            throw new IOException("bad page change kind " + kind);
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+        case INSERT_SLOT:
+            return "insert slot " + slot;
+        case DELETE_SLOT:
+            return "delete slot " + slot;
+        case IMAGE:
+            return "page image";
+        default:
+            return offsets.length + " byte ranges";
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * PageLsnMap records the page LSN of every page of a table file: the log
+ * sequence number of the last logged change that the page on disk
+ * includes.  Recovery compares it with the LSN of each update record to
+ * decide whether the update still has to be redone.
+ * <p>
+ * The page formats have no room for an LSN, so the map lives next to the
+ * table file in a side file (the file's name with ".lsn" appended) holding
+ * one big-endian long per page, indexed by page number.  An entry is
+ * written and forced right after its page has been forced, so the entry on
+ * disk never claims changes the page on disk lacks; a crash between the two
+ * leaves an older entry, which only makes recovery redo changes the page
+ * already holds.  Pages without an entry, including
+ * all pages of a table whose side file is missing, have LSN 0, older than
+ * any log record.  Entries past the end of the table file are left over
+ * from an earlier file of the same name and are dropped when the map is
+ * loaded.
+ * <p>
+ * The owner of the map closes any cached handle of the side file when it
+ * opens the table, as the file may have been recreated.
+ *
+ * @Threadsafe
+ */
+public class PageLsnMap {
+
+    /** Suffix appended to a table file's name to get its page LSN map. */
+    public static final String SUFFIX = ".lsn";
+
+    private final File file;
+    private long[] lsns;
+    private boolean loaded;
+
+    /**
+     * @param tableFile the table file whose pages this map describes
+     */
+    public PageLsnMap(File tableFile) {
+        this.file = new File(tableFile.getPath() + SUFFIX);
+        this.lsns = new long[0];
+        this.loaded = false;
+    }
+
+    /** Return the side file holding this map */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Load the map from the side file, dropping entries for pages the table
+     * file does not have.  Does nothing if the map is already loaded.
+     *
+     * @param pages the number of page slots of the table file
+     */
+    public synchronized void load(int pages) throws IOException {
+        if (loaded)
+            return;
+        int entries = (int) Math.min(pages, file.length() / 8);
+        lsns = new long[Math.max(16, pages)];
+        if (entries > 0) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                for (int i = 0; i < entries; i++)
+                    lsns[i] = in.readLong();
+            }
+        }
+        if (file.length() > 8L * pages) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(8L * pages);
+            }
+        }
+        loaded = true;
+    }
+
+    /** Return true once {@link #load} has run */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /** Return the LSN of a page as stored on disk */
+    public synchronized long getLsn(int pgNo) {
+        return pgNo < lsns.length ? lsns[pgNo] : 0;
+    }
+
+    /**
+     * Record the LSN of a page that has just been written and forced to
+     * disk, and force the entry.
+     */
+    public synchronized void pageWritten(int pgNo, long lsn) throws IOException {
+        if (pgNo >= lsns.length)
+            lsns = Arrays.copyOf(lsns, Math.max(pgNo + 1, lsns.length * 2));
+        if (lsns[pgNo] == lsn && 8L * pgNo < file.length())
+            return;
+        lsns[pgNo] = lsn;
+        ByteBuffer entry = ByteBuffer.allocate(8).putLong(0, lsn);
+        FileHandleCache files = Database.getFileHandleCache();
+        files.write(file, entry, 8L * pgNo);
+        files.force(file);
+    }
+}
@@ -0,0 +1,63 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * ScanRing is a small, private set of buffer frames used by one large
+ * sequential scan, in the spirit of PostgreSQL's buffer access strategies.
+ * Pages that the scan has to read from disk are remembered in the ring; once
+ * the ring is full, the scan's own oldest page is recycled to make room for
+ * the next one instead of asking the replacement policy for a victim.  A
+ * full-table scan therefore occupies at most {@link #capacity()} frames and
+ * leaves the rest of the BufferPool (the hot set of other queries) alone.
+ * <p>
+ * Pages that were already cached when the scan reached them are not added to
+ * the ring, so the scan never throws out a page someone else brought in.
+ * A ring belongs to a single iterator and is not thread-safe.
+ *
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, ScanRing)
+ */
+public class ScanRing {
+
+    /** Default number of frames in a ring. */
+    public static final int DEFAULT_SIZE = 8;
+
+    private final int capacity;
+    private final Deque<PageId> pages;
+
+    /**
+     * @param capacity the maximum number of frames this ring may occupy
+     */
+    public ScanRing(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("ring must hold at least one page");
+        this.capacity = capacity;
+        this.pages = new ArrayDeque<>(capacity);
+    }
+
+    /** Return the maximum number of frames this ring may occupy */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Return true if the ring must recycle a frame before taking another page */
+    boolean isFull() {
+        return pages.size() >= capacity;
+    }
+
+    /** Remember a page that this scan read into the BufferPool */
+    void add(PageId pid) {
+        pages.addLast(pid);
+    }
+
+    /** Take the oldest page of the ring, or null if the ring is empty */
+    PageId recycle() {
+        return pages.pollFirst();
+    }
+
+    /** Forget every page of the ring; the pages stay cached */
+    public void clear() {
+        pages.clear();
+    }
+}
@@ -0,0 +1,197 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A SpillFile holds tuples an operator has no room for in memory, in a
+ * temporary file of {@link HeapPage}s deleted when the spill file is
+ * closed.  Tuples are appended a page at a time and read back in the order
+ * they were added.  The file is private to the operator that wrote it, so
+ * it bypasses the buffer pool: reading it takes no locks and writing it
+ * is not logged.
+ * <p>
+ * The number of spill files created and not yet closed is kept, so that
+ * operators leaking them can be caught.
+ */
+public class SpillFile implements Closeable {
+
+    private static final AtomicInteger openFiles = new AtomicInteger();
+
+    private final TupleDesc td;
+    private final File file;
+    private final FileChannel channel;
+    private final int tupleSize;
+    private final int slotsPerPage;
+    private final int headerSize;
+
+    /** the page being filled */
+    private final byte[] page;
+    private int onPage;
+    private int numPages;
+    private long numTuples;
+    private boolean closed;
+
+    /**
+     * Create an empty spill file in the temporary directory.
+     *
+     * @param td the TupleDesc of the tuples the file will hold
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.tupleSize = td.getSize();
+        int pageSize = BufferPool.getPageSize();
+        this.slotsPerPage = pageSize * 8 / (tupleSize * 8 + 1);
+        this.headerSize = (slotsPerPage + 7) / 8;
+        this.page = new byte[pageSize];
+        this.file = File.createTempFile("simpledb", ".spill");
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        openFiles.incrementAndGet();
+    }
+
+    /** @return the number of spill files created and not yet closed */
+    public static int openFiles() {
+        return openFiles.get();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /** @return the number of pages written, not counting the one being filled */
+    public int numPages() {
+        return numPages;
+    }
+
+    /** Append a tuple, writing out the page it fills */
+    public void add(Tuple t) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        int offset = headerSize + onPage * tupleSize;
+        for (int i = 0; i < td.numFields(); i++) {
+            t.getField(i).serialize(buf, offset);
+            offset += td.getFieldType(i).getLen();
+        }
+        page[onPage / 8] |= 1 << (onPage % 8);
+        onPage++;
+        numTuples++;
+        if (onPage == slotsPerPage)
+            writePage();
+    }
+
+    /** Write out the page being filled, if it has any tuples */
+    public void flush() throws IOException {
+        if (onPage > 0)
+            writePage();
+    }
+
+    private void writePage() throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        long pos = (long) numPages * page.length;
+        while (buf.hasRemaining())
+            pos += channel.write(buf, pos);
+        numPages++;
+        onPage = 0;
+        Arrays.fill(page, (byte) 0);
+    }
+
+    /** Read back a page written out */
+    public HeapPage readPage(int pgNo) throws IOException {
+        byte[] data = new byte[page.length];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long pos = (long) pgNo * data.length;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new IOException("spill file truncated at page " + pgNo);
+            pos += n;
+        }
+        return new HeapPage(new HeapPageId(0, pgNo), data, td);
+    }
+
+    /**
+     * Return an iterator over the tuples written out.  The tuples still
+     * being buffered are not seen, so {@link #flush} the file first.
+     */
+    public OpIterator iterator() {
+        return new Reader();
+    }
+
+    /** Delete the file */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        openFiles.decrementAndGet();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        file.delete();
+    }
+
+    private class Reader implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private int pgNo;
+        private Iterator<Tuple> tuples;
+
+        @Override
+        public void open() {
+            rewind();
+        }
+
+        @Override
+        public void rewind() {
+            pgNo = 0;
+            tuples = null;
+        }
+
+        @Override
+        public boolean hasNext() throws DbException {
+            while (tuples == null || !tuples.hasNext()) {
+                if (pgNo >= numPages)
+                    return false;
+                try {
+                    tuples = readPage(pgNo++).iterator();
+                } catch (IOException e) {
+                    throw new DbException("could not read spill file: " + e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return tuples.next();
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public void close() {
+            tuples = null;
+        }
+    }
+}
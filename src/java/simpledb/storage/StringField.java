@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.execution.Predicate;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -69,6 +70,18 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Write this string to buf at the given index, in the same format as
+	 * {@link #serialize(DataOutputStream)}.
+	 */
+	public void serialize(ByteBuffer buf, int offset) {
+		int len = Math.min(value.length(), maxSize);
+		buf.putInt(offset, len);
+		offset += 4;
+		for (int i = 0; i < maxSize; i++)
+			buf.put(offset + i, i < len ? (byte) value.charAt(i) : 0);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -2,6 +2,8 @@ package simpledb.storage;
 
 import simpledb.common.Type;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
 
@@ -14,16 +16,8 @@ import java.util.*;
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
-    /**
-     * Create a new tuple with the specified schema (type).
-     *
-     * @param td
-     *            the schema of this tuple. It must be a valid TupleDesc
-     *            instance with at least one field.
-     */
-    private List<Field> tuple;//table每行存的数据
-    private TupleDesc tupleDesc;
-    private RecordId recordId=new RecordId(new PageId() {
+    /** RecordId of tuples that are not stored on any page */
+    private static final RecordId NO_RECORD=new RecordId(new PageId() {
         @Override
         public int[] serialize() {
             return new int[0];
@@ -39,12 +33,57 @@ public class Tuple implements Serializable {
             return 0;
         }
     },0);
+
+    private final Field[] tuple;//table每行存的数据, null until set or decoded
+    private TupleDesc tupleDesc;
+    private RecordId recordId;
+    //while the tuple is stored in a HeapPage slot, its fields are decoded
+    //from the page on first use; a write copies them off the page first
+    private transient HeapPage page;
+    private transient int slot;
+
+    /**
+     * Create a new tuple with the specified schema (type).
+     *
+     * @param td
+     *            the schema of this tuple. It must be a valid TupleDesc
+     *            instance with at least one field.
+     */
     public Tuple(TupleDesc td) {
         tupleDesc=td;
-        tuple=new ArrayList<>(Collections.nCopies(td.getSize(),null));
+        tuple=new Field[td.numFields()];
+        recordId=NO_RECORD;
         // some code goes here
     }
 
+    /**
+     * Create the tuple stored in a slot of a HeapPage; no field is decoded
+     * until it is asked for.
+     */
+    Tuple(TupleDesc td, HeapPage page, int slot) {
+        tupleDesc=td;
+        tuple=new Field[td.numFields()];
+        this.page=page;
+        this.slot=slot;
+    }
+
+    /**
+     * Decode the remaining fields and stop reading from the page, which is
+     * about to reuse the slot.
+     */
+    void detach() {
+        HeapPage p=page;
+        if(p!=null)
+        {
+            for(int i=0;i<tuple.length;i++)
+                if(tuple[i]==null)
+                    tuple[i]=p.readField(slot,i);
+            if(recordId==null)
+                recordId=new RecordId(p.getId(),slot);
+            page=null;
+        }
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -59,7 +98,14 @@ public class Tuple implements Serializable {
      */
     public RecordId getRecordId() {
         // some code goes here
-        return this.recordId;
+        RecordId rid=this.recordId;
+        if(rid==null)
+        {
+            HeapPage p=page;
+            rid=p!=null?new RecordId(p.getId(),slot):NO_RECORD;
+            this.recordId=rid;
+        }
+        return rid;
     }
 
     /**
@@ -82,8 +128,18 @@ public class Tuple implements Serializable {
      *            new value for the field.
      */
     public void setField(int i, Field f) {
-        if(i>=0&&i<this.tuple.size())
-            this.tuple.set(i,f);
+        if(i>=0&&i<this.tuple.length)
+        {
+            //the page is only changed through the buffer pool, under an
+            //exclusive lock and a log record, never through a tuple
+            HeapPage p=page;
+            if(p!=null)
+            {
+                p.release(slot,this);
+                detach();
+            }
+            this.tuple[i]=f;
+        }
         // some code goes here
     }
 
@@ -95,8 +151,17 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        if((i>=0)&&(i<this.tuple.size()))
-            return this.tuple.get(i);
+        if((i>=0)&&(i<this.tuple.length))
+        {
+            Field f=this.tuple[i];
+            HeapPage p=page;
+            if(f==null&&p!=null)
+            {
+                f=p.readField(slot,i);
+                this.tuple[i]=f;
+            }
+            return f;
+        }
         else
             return null;
     }
@@ -112,9 +177,9 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         StringBuilder res=new StringBuilder("");
-        for(int i=0;i<this.tuple.size();i++){
-            res.append(this.tuple.get(i).toString());
-            if(i!=this.tuple.size()-1)
+        for(int i=0;i<this.tuple.length;i++){
+            res.append(getField(i));
+            if(i!=this.tuple.length-1)
                 res.append(" ");
         }
         return res.toString();
@@ -128,28 +193,21 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return new tupleTtr(this.tuple);
+        return new tupleTtr();
     }
     private class tupleTtr implements Iterator<Field> {
-        private List<Field> list;
         private int position=0;
 
-        tupleTtr(List<Field> list)
-        {
-            this.list=list;
-        }
-
-
         public boolean hasNext() {
-            return position <list.size();
+            return position <tuple.length;
         }
 
 
         public Field next() {
             int i = position;
-            if (i >= list.size())
+            if (i >= tuple.length)
                 throw new NoSuchElementException();
-            Field item=list.get(i);
+            Field item=getField(i);
             position = i + 1;
             return item;
         }
@@ -162,4 +220,12 @@ public class Tuple implements Serializable {
         this.tupleDesc=td;
         // some code goes here
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        //the page is not serialized, so decode whatever has not been yet
+        for(int i=0;i<tuple.length;i++)
+            getField(i);
+        getRecordId();
+        out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,513 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager implements strict two-phase, multi-granularity locking for the
+ * BufferPool.  Locks are taken on three levels: tables, pages and records
+ * (tuples identified by their {@link RecordId}).  Before a transaction locks
+ * a page it takes an intention lock on the page's table, and before it locks
+ * a record it takes intention locks on the record's table and page, so that
+ * coarse and fine grained locks see each other's conflicts.
+ * <p>
+ * Every locked object has a FIFO queue of lock requests; granted requests
+ * sit at the head of the queue and waiting requests behind them.  A request
+ * is granted once it is compatible with every granted lock of other
+ * transactions and no earlier request is still waiting, so writers are not
+ * starved by a stream of readers.  A transaction that already holds a lock
+ * and asks for a stronger mode is upgraded to the least mode covering both;
+ * upgrades queue ahead of other waiters.
+ * <p>
+ * Blocked transactions sleep on a per-object condition variable and are woken
+ * only when the queue of that object changes.  Before sleeping, a transaction
+ * checks the wait-for graph for a cycle through itself; if it finds one it
+ * gives up its request and is aborted with a
+ * {@link TransactionAbortedException}, so deadlocks are broken by the
+ * transaction that closes the cycle.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** The finest level at which data modifications are locked. */
+    public enum Granularity {
+        /** Readers and writers lock whole pages. */
+        PAGE,
+        /**
+         * Tuple inserts and deletes lock the affected record and only take
+         * intention locks on its page, so transactions updating different
+         * slots of one page do not block each other.
+         */
+        RECORD
+    }
+
+    /** Lock modes of the multi-granularity protocol. */
+    public enum Mode {
+        /** intention shared */
+        IS,
+        /** intention exclusive */
+        IX,
+        /** shared */
+        S,
+        /** shared with intention exclusive */
+        SIX,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+                //          IS     IX     S      SIX    X
+                /* IS  */ { true,  true,  true,  true,  false },
+                /* IX  */ { true,  true,  false, false, false },
+                /* S   */ { true,  false, true,  false, false },
+                /* SIX */ { true,  false, false, false, false },
+                /* X   */ { false, false, false, false, false },
+        };
+
+        /** S for READ_ONLY, X for READ_WRITE */
+        static Mode of(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? X : S;
+        }
+
+        /** IS for READ_ONLY, IX for READ_WRITE */
+        static Mode intentionOf(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? IX : IS;
+        }
+
+        boolean compatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** The weakest mode at least as strong as both this and other */
+        Mode join(Mode other) {
+            if (this == other)
+                return this;
+            if (this == X || other == X)
+                return X;
+            if (this == IS)
+                return other;
+            if (other == IS)
+                return this;
+            // the remaining pairs combine into SIX: {IX,S}, {IX,SIX}, {S,SIX}
+            return SIX;
+        }
+    }
+
+    /** Lock key of a whole table */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    private static class Request {
+        final TransactionId tid;
+        Mode mode;
+        boolean granted;
+
+        Request(TransactionId tid, Mode mode) {
+            this.tid = tid;
+            this.mode = mode;
+            this.granted = false;
+        }
+    }
+
+    private static class LockQueue {
+        final LinkedList<Request> queue = new LinkedList<>();
+        final Condition changed;
+
+        LockQueue(Condition changed) {
+            this.changed = changed;
+        }
+
+        Request grantedTo(TransactionId tid) {
+            for (Request r : queue) {
+                if (!r.granted)
+                    break;
+                if (r.tid.equals(tid))
+                    return r;
+            }
+            return null;
+        }
+    }
+
+    private final ReentrantLock latch = new ReentrantLock();
+    private final Map<Object, LockQueue> locks = new HashMap<>();
+    private final Map<TransactionId, Set<Object>> held = new HashMap<>();
+    private final Map<TransactionId, Object> waitingFor = new HashMap<>();
+
+    /**
+     * Acquire a lock on a page for a transaction, blocking until the lock
+     * can be granted.  An intention lock on the page's table is taken first.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if waiting would deadlock, or the
+     *         waiting thread is interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        lock(tid, new TableKey(pid.getTableId()), Mode.intentionOf(perm));
+        lock(tid, pid, Mode.of(perm));
+    }
+
+    /**
+     * Acquire only an intention lock on a page (and its table), as needed
+     * before locking individual records of the page.
+     *
+     * @see #acquireRecord(TransactionId, RecordId, Permissions)
+     */
+    public void acquireIntention(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        Mode intention = Mode.intentionOf(perm);
+        lock(tid, new TableKey(pid.getTableId()), intention);
+        lock(tid, pid, intention);
+    }
+
+    /**
+     * Acquire a lock on a single record, taking intention locks on its page
+     * and table first.
+     *
+     * @param tid the transaction requesting the lock
+     * @param rid the record to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void acquireRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        acquireIntention(tid, rid.getPageId(), perm);
+        lock(tid, rid, Mode.of(perm));
+    }
+
+    /**
+     * Like {@link #acquireRecord(TransactionId, RecordId, Permissions)}, but
+     * gives up instead of waiting if the record itself is locked by another
+     * transaction.  Used by inserts to skip slots that an uncommitted delete
+     * still owns.
+     *
+     * @return true if the record lock was granted
+     */
+    public boolean tryAcquireRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        acquireIntention(tid, rid.getPageId(), perm);
+        return tryLock(tid, rid, Mode.of(perm));
+    }
+
+    /**
+     * Like {@link #acquire(TransactionId, PageId, Permissions)}, but gives up
+     * instead of waiting if the page or its table is locked in a conflicting
+     * mode.  A table intention lock granted before the page lock failed stays
+     * held until the transaction releases its locks.
+     *
+     * @return true if the page lock was granted
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        return tryLock(tid, new TableKey(pid.getTableId()), Mode.intentionOf(perm))
+                && tryLock(tid, pid, Mode.of(perm));
+    }
+
+    /**
+     * Grant a lock if it can be granted right away.  Like a blocking
+     * request, a new one goes behind the transactions already waiting, so
+     * it fails while any are queued; only an upgrade of a held lock may
+     * jump the queue.
+     *
+     * @return true if the transaction now holds the lock
+     */
+    private boolean tryLock(TransactionId tid, Object key, Mode mode) {
+        latch.lock();
+        try {
+            LockQueue lq = locks.computeIfAbsent(key, k -> new LockQueue(latch.newCondition()));
+            Request mine = lq.grantedTo(tid);
+            if (mine != null && mine.mode.join(mode) == mine.mode)
+                return true;
+            Request req = new Request(tid, mine == null ? mode : mine.mode.join(mode));
+            if (mine != null)
+                lq.queue.add(firstWaiter(lq), req);
+            else
+                lq.queue.addLast(req);
+            boolean ok = grantable(lq, req);
+            lq.queue.remove(req);
+            if (ok) {
+                if (mine != null) {
+                    mine.mode = req.mode;
+                } else {
+                    req.granted = true;
+                    lq.queue.add(firstWaiter(lq), req);
+                    held.computeIfAbsent(tid, k -> new HashSet<>()).add(key);
+                }
+            } else if (lq.queue.isEmpty()) {
+                locks.remove(key);
+            }
+            return ok;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock a whole table in shared (READ_ONLY) or exclusive (READ_WRITE) mode.
+     */
+    public void acquireTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        lock(tid, new TableKey(tableId), Mode.of(perm));
+    }
+
+    /**
+     * Release the lock a transaction holds on a page, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        releaseObject(tid, pid);
+    }
+
+    /**
+     * Release the lock a transaction holds on a record, if any.
+     */
+    public void releaseRecord(TransactionId tid, RecordId rid) {
+        releaseObject(tid, rid);
+    }
+
+    /**
+     * Release every lock held by a transaction.
+     */
+    public void releaseAll(TransactionId tid) {
+        latch.lock();
+        try {
+            Set<Object> objects = held.remove(tid);
+            if (objects != null) {
+                for (Object key : objects)
+                    releaseLocked(tid, key);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Return true if the transaction holds a lock of any mode on the page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        return heldMode(tid, pid) != null;
+    }
+
+    /** Return true if the transaction holds a lock of any mode on the record */
+    public boolean holdsRecordLock(TransactionId tid, RecordId rid) {
+        return heldMode(tid, rid) != null;
+    }
+
+    /** Return the pages on which the transaction holds a lock of any mode */
+    public Set<PageId> lockedPages(TransactionId tid) {
+        latch.lock();
+        try {
+            Set<PageId> pages = new HashSet<>();
+            Set<Object> objects = held.get(tid);
+            if (objects != null) {
+                for (Object key : objects) {
+                    if (key instanceof PageId)
+                        pages.add((PageId) key);
+                }
+            }
+            return pages;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Return true if a transaction other than tid holds a lock on the page
+     * that lets it change records of the page (IX, SIX or X), so the page
+     * may hold its uncommitted changes.
+     */
+    public boolean othersMayWrite(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            LockQueue lq = locks.get(pid);
+            if (lq == null)
+                return false;
+            for (Request r : lq.queue) {
+                if (!r.granted)
+                    break;
+                if (!r.tid.equals(tid) && r.mode != Mode.IS && r.mode != Mode.S)
+                    return true;
+            }
+            return false;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private Mode heldMode(TransactionId tid, Object key) {
+        latch.lock();
+        try {
+            LockQueue lq = locks.get(key);
+            Request r = lq == null ? null : lq.grantedTo(tid);
+            return r == null ? null : r.mode;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Acquire a lock of the given mode on one object, blocking as needed */
+    private void lock(TransactionId tid, Object key, Mode mode)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            LockQueue lq = locks.computeIfAbsent(key, k -> new LockQueue(latch.newCondition()));
+            Request mine = lq.grantedTo(tid);
+            Mode wanted = mine == null ? mode : mine.mode.join(mode);
+            if (mine != null && wanted == mine.mode)
+                return;
+
+            Request req = new Request(tid, wanted);
+            if (mine != null)
+                lq.queue.add(firstWaiter(lq), req); // upgrades jump the queue
+            else
+                lq.queue.addLast(req);
+
+            boolean done = false;
+            try {
+                while (!grantable(lq, req)) {
+                    waitingFor.put(tid, key);
+                    if (deadlocked(tid))
+                        throw new TransactionAbortedException();
+                    lq.changed.await();
+                }
+                if (mine != null) {
+                    lq.queue.remove(req);
+                    mine.mode = wanted;
+                } else {
+                    req.granted = true;
+                    held.computeIfAbsent(tid, k -> new HashSet<>()).add(key);
+                }
+                done = true;
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException();
+            } finally {
+                waitingFor.remove(tid);
+                if (!done) {
+                    lq.queue.remove(req);
+                    lq.changed.signalAll();
+                    if (lq.queue.isEmpty())
+                        locks.remove(key);
+                }
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void releaseObject(TransactionId tid, Object key) {
+        latch.lock();
+        try {
+            releaseLocked(tid, key);
+            Set<Object> objects = held.get(tid);
+            if (objects != null) {
+                objects.remove(key);
+                if (objects.isEmpty())
+                    held.remove(tid);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void releaseLocked(TransactionId tid, Object key) {
+        LockQueue lq = locks.get(key);
+        if (lq == null)
+            return;
+        Request mine = lq.grantedTo(tid);
+        if (mine == null)
+            return;
+        lq.queue.remove(mine);
+        lq.changed.signalAll();
+        if (lq.queue.isEmpty())
+            locks.remove(key);
+    }
+
+    /** Index of the first waiting request in the queue */
+    private static int firstWaiter(LockQueue lq) {
+        int i = 0;
+        for (Request r : lq.queue) {
+            if (!r.granted)
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * A request can be granted if it is the first waiter and is compatible
+     * with every lock granted to other transactions.
+     */
+    private static boolean grantable(LockQueue lq, Request req) {
+        for (Request r : lq.queue) {
+            if (r == req)
+                return true;
+            if (!r.granted)
+                return false;
+            if (!r.tid.equals(req.tid) && !r.mode.compatibleWith(req.mode))
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * The transactions a waiting request is waiting for: holders of
+     * conflicting granted locks and the waiters queued ahead of it.
+     */
+    private List<TransactionId> blockers(TransactionId tid) {
+        List<TransactionId> result = new ArrayList<>();
+        Object key = waitingFor.get(tid);
+        LockQueue lq = key == null ? null : locks.get(key);
+        if (lq == null)
+            return result;
+        Request req = null;
+        for (Request r : lq.queue) {
+            if (!r.granted && r.tid.equals(tid)) {
+                req = r;
+                break;
+            }
+        }
+        if (req == null)
+            return result;
+        for (Request r : lq.queue) {
+            if (r == req)
+                break;
+            if (r.tid.equals(tid))
+                continue;
+            if (!r.granted || !r.mode.compatibleWith(req.mode))
+                result.add(r.tid);
+        }
+        return result;
+    }
+
+    /** Depth-first search of the wait-for graph for a cycle through start */
+    private boolean deadlocked(TransactionId start) {
+        Deque<TransactionId> stack = new ArrayDeque<>(blockers(start));
+        Set<TransactionId> visited = new HashSet<>();
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            if (t.equals(start))
+                return true;
+            if (visited.add(t))
+                stack.addAll(blockers(t));
+        }
+        return false;
+    }
+}
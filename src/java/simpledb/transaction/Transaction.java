@@ -51,7 +51,11 @@ public class Transaction {
             } 
 
             // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            try {
+                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
 
             // write commit log record
             if (!abort) {
@@ -191,6 +191,31 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates over a
+   * composite group-by key in one pass
+   */
+  @Test public void multipleAggregatesCompositeKey() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 1, 8,
+                    1, 2, 1 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MAX });
+    TupleDesc td = op.getTupleDesc();
+    assertEquals(5, td.numFields());
+    OpIterator expected = TestUtil.createTupleList(5,
+        new int[] { 1, 1, 2, 6, 4,
+                    1, 2, 2, 7, 6,
+                    3, 1, 2, 10, 8 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,165 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void createTable() throws Exception {
+        file = File.createTempFile("writer", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + PageLsnMap.SUFFIX).deleteOnExit();
+        new File(file.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After public void stopWriter() {
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    private long commitInsert(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+        long lsn = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY).getLsn();
+        t.commit();
+        return lsn;
+    }
+
+    private int count() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    /**
+     * A commit leaves its page to the writer, which writes it soon after
+     */
+    @Test public void writesCommittedPages() throws Exception {
+        commitInsert(0);
+        long before = hf.readPage(pid).getLsn();
+        BufferPool bp = Database.getBufferPool();
+        bp.startBackgroundWriter(10, 4);
+        long lsn = commitInsert(1);
+        assertTrue(lsn > before);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        // the writer counts a page once it is on disk
+        while ((hf.readPage(pid).getLsn() != lsn || bp.getBackgroundWriteCount() < 1)
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(lsn, hf.readPage(pid).getLsn());
+        assertTrue(bp.getBackgroundWriteCount() >= 1);
+    }
+
+    /**
+     * A committed page the writer has not written yet is redone by recovery
+     */
+    @Test public void recoversUnwrittenCommit() throws Exception {
+        commitInsert(0);
+        long before = hf.readPage(pid).getLsn();
+        BufferPool bp = Database.getBufferPool();
+        bp.startBackgroundWriter(60000, 1);
+        commitInsert(1);
+        assertEquals(before, hf.readPage(pid).getLsn());
+        bp.stopBackgroundWriter();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(2, count());
+    }
+
+    /**
+     * Eviction writes committed pages the writer has not got to yet
+     * instead of giving up on a pool full of dirty pages
+     */
+    @Test public void evictsCommittedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        bp.startBackgroundWriter(60000, 1);
+        int perPage = ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+        int tuples = 5 * perPage;
+        Transaction t = null;
+        for (int i = 0; i < tuples; i++) {
+            if (i % perPage == 0) {
+                if (t != null)
+                    t.commit();
+                t = new Transaction();
+                t.start();
+            }
+            bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t.commit();
+        assertTrue(bp.getEvictionCount() > 0);
+        assertEquals(0, bp.getBackgroundWriteCount());
+        assertEquals(tuples, count());
+    }
+
+    /**
+     * A writer that cannot write a page stops, and commits go back to
+     * writing their pages themselves, so they report the failure
+     */
+    @Test public void failedWriteStopsWriter() throws Exception {
+        commitInsert(0);
+        HeapFile failing = new HeapFile(file, hf.getTupleDesc()) {
+            @Override
+            public void writePage(Page page) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        Database.getCatalog().addTable(failing, "failing");
+        BufferPool bp = Database.getBufferPool();
+        bp.startBackgroundWriter(10, 4);
+        commitInsert(1);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.isBackgroundWriterRunning() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertFalse(bp.isBackgroundWriterRunning());
+
+        // the commit writes its page itself and sees the failure
+        try {
+            commitInsert(2);
+            fail("expected the commit to report the failed write");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, bp.getBackgroundWriteCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
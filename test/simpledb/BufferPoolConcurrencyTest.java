@@ -0,0 +1,101 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 32;
+    private static final int READS_PER_THREAD = 200000;
+
+    /**
+     * Run the given number of reader threads, each fetching its own slice of
+     * the table's pages, and fail if any of them got the wrong page.
+     */
+    private static void readPages(BufferPool bp, HeapFile f, int threads, int reads) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int slice = t;
+            workers.add(new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int i = 0; i < reads; i++) {
+                        int pgNo = (slice + i * threads) % PAGES;
+                        HeapPageId pid = new HeapPageId(f.getId(), pgNo);
+                        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        if (!p.getId().equals(pid))
+                            throw new AssertionError("wrong page returned for " + pid);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    /**
+     * Concurrent readers of resident pages are all served from the cache,
+     * whatever the number of threads, without reading or evicting a page.
+     * The read rate at each thread count is printed for comparison across
+     * machines; it is not checked, as it depends on the cores available.
+     */
+    @Test public void concurrentHits() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        BufferPool bp = Database.resetBufferPool(PAGES);
+        readPages(bp, f, 1, READS_PER_THREAD); // warm the cache and the JIT
+        assertEquals(PAGES, bp.getMissCount());
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(4, cores); threads *= 2) {
+            long hits = bp.getHitCount();
+            long start = System.nanoTime();
+            readPages(bp, f, threads, READS_PER_THREAD);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            System.out.printf("BufferPoolConcurrencyTest: %d threads on %d cores, %.0f reads/s%n",
+                    threads, cores, (double) threads * READS_PER_THREAD * 1e9 / elapsed);
+            assertEquals((long) threads * READS_PER_THREAD, bp.getHitCount() - hits);
+        }
+        assertEquals(PAGES, bp.getMissCount());
+        assertEquals(0, bp.getEvictionCount());
+    }
+
+    /**
+     * Concurrent readers of a table larger than the pool must never see the
+     * pool exceed its capacity or return the wrong page.
+     */
+    @Test public void concurrentMisses() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        BufferPool bp = Database.resetBufferPool(PAGES / 4);
+        readPages(bp, f, 8, 2000);
+        assertTrue(bp.getEvictionCount() > 0);
+        assertEquals(bp.getMissCount() - PAGES / 4, bp.getEvictionCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -55,6 +56,19 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class whose page writes fail
+    static class HeapFileWriteFails extends HeapFile {
+
+        public HeapFileWriteFails(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            throw new IOException("disk full");
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -140,6 +154,28 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A commit whose page cannot be written fails, leaves the page dirty and
+     * still releases the transaction's locks
+     */
+    @Test public void commitReportsFailedWrite() throws Exception {
+        HeapFileWriteFails hf = new HeapFileWriteFails(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId writer = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(writer, hf.getId(), t);
+        PageId pid = t.getRecordId().getPageId();
+        try {
+            Database.getBufferPool().transactionComplete(writer, true);
+            fail("expected the failed write to be reported");
+        } catch (UncheckedIOException expected) {
+        }
+        assertFalse(Database.getBufferPool().holdsLock(writer, pid));
+        TransactionId reader = new TransactionId();
+        assertNotNull(Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY).isDirty());
+        Database.getBufferPool().transactionComplete(reader, false);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,109 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static HeapPageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: referenced pages get a second chance
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy clock = new ClockEvictionPolicy(3);
+        clock.pageAdded(pid(0));
+        clock.pageAdded(pid(1));
+        clock.pageAdded(pid(2));
+
+        // the first sweep clears every reference bit and evicts page 0
+        assertEquals(pid(0), clock.evict(p -> true));
+
+        // page 1 is referenced again, so page 2 goes next
+        clock.pageAccessed(pid(1));
+        assertEquals(pid(2), clock.evict(p -> true));
+        assertEquals(pid(1), clock.evict(p -> true));
+        assertNull(clock.evict(p -> true));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: pages rejected by the filter are skipped
+     */
+    @Test public void clockSkipsPinned() {
+        EvictionPolicy clock = new ClockEvictionPolicy(2);
+        clock.pageAdded(pid(0));
+        clock.pageAdded(pid(1));
+        assertEquals(pid(1), clock.evict(p -> !p.equals(pid(0))));
+        assertNull(clock.evict(p -> !p.equals(pid(0))));
+
+        clock.pageRemoved(pid(0));
+        assertNull(clock.evict(p -> true));
+    }
+
+    /**
+     * Unit test for LRUKEvictionPolicy: pages seen once are evicted before
+     * pages with a full reference history
+     */
+    @Test public void lruKPrefersColdPages() {
+        EvictionPolicy lru = new LRUKEvictionPolicy(2);
+        lru.pageAdded(pid(0));
+        lru.pageAccessed(pid(0));
+        lru.pageAdded(pid(1));
+        lru.pageAccessed(pid(1));
+        lru.pageAdded(pid(2));
+
+        assertEquals(pid(2), lru.evict(p -> true));
+        // page 0's second most recent reference is older than page 1's
+        assertEquals(pid(0), lru.evict(p -> true));
+        assertEquals(pid(1), lru.evict(p -> true));
+        assertNull(lru.evict(p -> true));
+    }
+
+    /**
+     * Unit test for LRUKEvictionPolicy: pages rejected by the filter are skipped
+     */
+    @Test public void lruKSkipsPinned() {
+        EvictionPolicy lru = new LRUKEvictionPolicy(2);
+        lru.pageAdded(pid(0));
+        lru.pageAdded(pid(1));
+        assertEquals(pid(1), lru.evict(p -> !p.equals(pid(0))));
+        lru.pageRemoved(pid(0));
+        assertNull(lru.evict(p -> true));
+    }
+
+    /**
+     * BufferPool should evict pages instead of failing when a scan touches
+     * more pages than fit in the pool
+     */
+    @Test public void scanLargerThanPool() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        BufferPool bp = Database.resetBufferPool(4);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < f.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(f.getId(), f.numPages() - 1), Permissions.READ_ONLY);
+
+        assertEquals(f.numPages(), bp.getMissCount());
+        assertEquals(1, bp.getHitCount());
+        assertEquals(f.numPages() - 4, bp.getEvictionCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,192 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.SpillFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static simpledb.TestUtil.drainBatches;
+import static simpledb.TestUtil.readAll;
+import static simpledb.TestUtil.sorted;
+
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int FRAGMENTS = 4;
+
+    private HeapFile big, small;
+    private TransactionId tid;
+
+    @Before public void createTables() throws Exception {
+        big = SystemTestUtil.createRandomHeapFile(2, 504 * 40 + 100, 1000, null, null, "c");
+        small = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, null, "c");
+        tid = new TransactionId();
+    }
+
+    @After public void resetParallelism() {
+        LogicalPlan.setParallelism(WorkerPool.size());
+    }
+
+    private OpIterator[] fragments(HeapFile f, String alias) {
+        return MorselScan.fragments(tid, f.getId(), alias, FRAGMENTS);
+    }
+
+    /**
+     * A gather over morsel scans returns every tuple once, and again after
+     * a rewind; a fragment read to the end and rewound reads its own
+     * morsels again
+     */
+    @Test public void gatherScansEveryTupleOnce() throws Exception {
+        List<List<Integer>> expected = sorted(drainBatches(new SeqScan(tid, big.getId(), "b")));
+        Gather gather = new Gather(fragments(big, "b"));
+        assertEquals(expected, sorted(drainBatches(gather)));
+
+        gather.open();
+        int count = 0;
+        while (gather.hasNext()) {
+            gather.next();
+            count++;
+        }
+        gather.rewind();
+        while (gather.hasNext()) {
+            gather.next();
+            count++;
+        }
+        gather.close();
+        assertEquals(2 * expected.size(), count);
+
+        OpIterator[] scans = fragments(big, "b");
+        for (OpIterator scan : scans)
+            scan.open();
+        List<List<Integer>> first = readAll(scans[0]);
+        scans[0].rewind();
+        List<List<Integer>> again = readAll(scans[0]);
+        for (OpIterator scan : scans)
+            scan.close();
+        assertEquals(expected.size(), first.size());
+        assertEquals(first, again);
+    }
+
+    /**
+     * A join of two hash exchanges, one fragment per partition, matches
+     * the serial join
+     */
+    @Test public void partitionedJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        List<List<Integer>> expected = sorted(drainBatches(new HashEquiJoin(p, new SeqScan(tid, big.getId(), "b"),
+                                                                            new SeqScan(tid, small.getId(), "s"))));
+        OpIterator[] left = Exchange.hashPartition(fragments(big, "b"), 0, FRAGMENTS);
+        OpIterator[] right = Exchange.hashPartition(fragments(small, "s"), 0, FRAGMENTS);
+        OpIterator[] joins = new OpIterator[FRAGMENTS];
+        for (int i = 0; i < FRAGMENTS; i++)
+            joins[i] = new HashEquiJoin(p, left[i], right[i]);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, sorted(drainBatches(new Gather(joins))));
+    }
+
+    /**
+     * Each fragment of the large side of a join probes a broadcast copy
+     * of the small side
+     */
+    @Test public void broadcastJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        List<List<Integer>> expected = sorted(drainBatches(new HashEquiJoin(p, new SeqScan(tid, small.getId(), "s"),
+                                                                            new SeqScan(tid, big.getId(), "b"))));
+        OpIterator[] probe = fragments(big, "b");
+        OpIterator[] build = Exchange.broadcast(new SeqScan(tid, small.getId(), "s"), FRAGMENTS);
+        OpIterator[] joins = new OpIterator[FRAGMENTS];
+        for (int i = 0; i < FRAGMENTS; i++)
+            joins[i] = new HashEquiJoin(p, build[i], probe[i]);
+        assertEquals(expected, sorted(drainBatches(new Gather(joins))));
+    }
+
+    /**
+     * Exchanges with a budget of a page spill what they cannot hold, join
+     * as if they held it all, and delete their spill files once read
+     */
+    @Test public void spillingExchanges() throws Exception {
+        int before = SpillFile.openFiles();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        List<List<Integer>> expected = sorted(drainBatches(new HashEquiJoin(p, new SeqScan(tid, big.getId(), "b"),
+                                                                            new SeqScan(tid, small.getId(), "s"))));
+        OpIterator[] left = Exchange.hashPartition(fragments(big, "b"), 0, FRAGMENTS, 1);
+        OpIterator[] right = Exchange.hashPartition(fragments(small, "s"), 0, FRAGMENTS, 1);
+        OpIterator[] build = Exchange.broadcast(new SeqScan(tid, small.getId(), "s"), FRAGMENTS, 1);
+        OpIterator[] partitioned = new OpIterator[FRAGMENTS], broadcast = new OpIterator[FRAGMENTS];
+        OpIterator[] probe = fragments(big, "b");
+        for (int i = 0; i < FRAGMENTS; i++) {
+            partitioned[i] = new HashEquiJoin(p, left[i], right[i]);
+            broadcast[i] = new HashEquiJoin(p, probe[i], build[i]);
+        }
+        assertEquals(expected, sorted(drainBatches(new Gather(partitioned))));
+        assertEquals(expected, sorted(drainBatches(new Gather(broadcast))));
+        assertEquals(before, SpillFile.openFiles());
+    }
+
+    /**
+     * An aggregate over fragments merges their partial aggregates into the
+     * serial result
+     */
+    @Test public void partialAggregates() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            List<List<Integer>> expected = sorted(drainBatches(new Aggregate(new SeqScan(tid, big.getId(), "b"), 1, 0, op)));
+            assertEquals(expected, sorted(drainBatches(new Aggregate(fragments(big, "b"), 1, 0, op))));
+        }
+        Aggregate max = new Aggregate(fragments(big, "b"), 1, Aggregator.NO_GROUPING, Aggregator.Op.MAX);
+        assertEquals(sorted(drainBatches(new Aggregate(new SeqScan(tid, big.getId(), "b"), 1,
+                                                       Aggregator.NO_GROUPING, Aggregator.Op.MAX))), sorted(drainBatches(max)));
+    }
+
+    /**
+     * physicalPlan runs a query over a large table in parallel, with the
+     * same result as on one thread
+     */
+    @Test public void physicalPlanInsertsGather() throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        for (HeapFile f : new HeapFile[]{big, small}) {
+            String name = Database.getCatalog().getTableName(f.getId());
+            stats.put(name, new TableStats(f.getId(), 1000));
+        }
+        LogicalPlan.setParallelism(FRAGMENTS);
+        Operator parallel = (Operator) plan().physicalPlan(tid, stats, false);
+        LogicalPlan.setParallelism(1);
+        Operator serial = (Operator) plan().physicalPlan(tid, stats, false);
+        assertTrue(parallel.getChildren()[0] instanceof Aggregate);
+        assertEquals(FRAGMENTS, ((Operator) parallel.getChildren()[0]).getChildren().length);
+        assertEquals(1, ((Operator) serial.getChildren()[0]).getChildren().length);
+        assertEquals(sorted(drainBatches(serial)), sorted(drainBatches(parallel)));
+    }
+
+    private LogicalPlan plan() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(big.getId(), "b");
+        lp.addScan(small.getId(), "s");
+        lp.addJoin("b.c0", "s.c0", Predicate.Op.EQUALS);
+        lp.addFilter("b.c1", Predicate.Op.LESS_THAN, "500");
+        lp.addProjectField("s.c1", null);
+        lp.addProjectField("b.c1", "sum");
+        lp.addAggregate("sum", "b.c1", "s.c1");
+        return lp;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
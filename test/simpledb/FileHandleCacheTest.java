@@ -0,0 +1,94 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.FileHandleCache;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FileHandleCacheTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("handles", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Positional writes land at the given offset and read back, and a read
+     * past the end of the file comes up short
+     */
+    @Test public void writeThenRead() throws Exception {
+        FileHandleCache cache = new FileHandleCache(4);
+        File f = tempFile();
+        cache.write(f, ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), 100);
+        assertEquals(104, f.length());
+
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        assertEquals(4, cache.read(f, buf, 100));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, buf.array());
+
+        buf.clear();
+        assertEquals(2, cache.read(f, buf, 102));
+        cache.closeAll();
+    }
+
+    /**
+     * Readers of more files than the cache holds keep getting the right
+     * bytes while their handles are closed under them
+     */
+    @Test public void concurrentReadsWithEviction() throws Exception {
+        final FileHandleCache cache = new FileHandleCache(2);
+        final File[] files = new File[6];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = tempFile();
+            byte[] data = new byte[4096];
+            Arrays.fill(data, (byte) i);
+            cache.write(files[i], ByteBuffer.wrap(data), 0);
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            readers.add(new Thread(() -> {
+                try {
+                    ByteBuffer buf = ByteBuffer.allocate(512);
+                    for (int i = 0; i < 2000; i++) {
+                        int which = (seed + i) % files.length;
+                        buf.clear();
+                        assertEquals(512, cache.read(files[which], buf, (i % 8) * 512));
+                        for (byte b : buf.array())
+                            assertEquals(which, b);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        for (Thread r : readers)
+            r.start();
+        for (Thread r : readers)
+            r.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        cache.closeAll();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleCacheTest.class);
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    /**
+     * A lone commit is forced on its own
+     */
+    @Test public void singleCommit() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        assertEquals(1, log.getCommitCount());
+        assertTrue(log.getForceCount() >= 1);
+    }
+
+    /**
+     * Concurrent commits share forces of the log
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final LogFile log = Database.getLogFile();
+        log.setGroupCommit(2000, 8);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int j = 0; j < 25; j++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        assertEquals(200, log.getCommitCount());
+        assertTrue(log.getForceCount() < 200);
+        assertTrue(log.getCommitsPerForce() > 1);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -0,0 +1,134 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregator;
+import simpledb.execution.HashAggregator;
+import simpledb.execution.OpIterator;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+    /** (group, value) rows, with negative values and sums beyond an int */
+    private static List<Tuple> rows(Type groupType, int n, int groups) {
+        TupleDesc td = new TupleDesc(new Type[]{groupType, Type.INT_TYPE});
+        Random r = new Random(42);
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(td);
+            int g = r.nextInt(groups) - groups / 2;
+            t.setField(0, groupType == Type.INT_TYPE ? new IntField(g) : new StringField("g" + g, Type.STRING_LEN));
+            t.setField(1, new IntField(r.nextInt() / 2));
+            rows.add(t);
+        }
+        return rows;
+    }
+
+    private static Map<Field, Integer> results(OpIterator it) throws Exception {
+        Map<Field, Integer> out = new HashMap<>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertNull(out.put(t.getField(0), ((IntField) t.getField(1)).getValue()));
+        }
+        it.close();
+        return out;
+    }
+
+    /** Compute an aggregate of each group the slow way */
+    private static Map<Field, Integer> expected(List<Tuple> rows, Aggregator.Op op) {
+        Map<Field, List<Integer>> groups = new HashMap<>();
+        for (Tuple t : rows)
+            groups.computeIfAbsent(t.getField(0), k -> new ArrayList<>()).add(((IntField) t.getField(1)).getValue());
+        Map<Field, Integer> out = new HashMap<>();
+        for (Map.Entry<Field, List<Integer>> e : groups.entrySet()) {
+            List<Integer> v = e.getValue();
+            long sum = 0;
+            for (int x : v)
+                sum += x;
+            int result;
+            switch (op) {
+                case COUNT: result = v.size(); break;
+                case SUM: result = (int) sum; break;
+                case AVG: result = (int) (sum / v.size()); break;
+                case MIN: result = v.stream().min(Integer::compare).get(); break;
+                default: result = v.stream().max(Integer::compare).get(); break;
+            }
+            out.put(e.getKey(), result);
+        }
+        return out;
+    }
+
+    private static final Aggregator.Op[] OPS = {
+        Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX
+    };
+
+    /**
+     * Every aggregate over thousands of int and string groups matches one
+     * computed from the values of each group
+     */
+    @Test public void manyGroups() throws Exception {
+        for (Type groupType : new Type[]{Type.INT_TYPE, Type.STRING_TYPE}) {
+            List<Tuple> rows = rows(groupType, 50000, 20000);
+            for (Aggregator.Op op : OPS) {
+                HashAggregator agg = new HashAggregator(0, groupType, 1, op);
+                for (Tuple t : rows)
+                    agg.mergeTupleIntoGroup(t);
+                assertEquals(expected(rows, op), results(agg.iterator()));
+            }
+        }
+    }
+
+    /**
+     * Merging the aggregates of two halves of the input gives the
+     * aggregate of the whole, with or without grouping
+     */
+    @Test public void mergeHalves() throws Exception {
+        List<Tuple> rows = rows(Type.INT_TYPE, 10000, 3000);
+        for (Aggregator.Op op : OPS) {
+            HashAggregator whole = new HashAggregator(0, Type.INT_TYPE, 1, op);
+            HashAggregator first = new HashAggregator(0, Type.INT_TYPE, 1, op);
+            HashAggregator second = new HashAggregator(0, Type.INT_TYPE, 1, op);
+            for (int i = 0; i < rows.size(); i++) {
+                whole.mergeTupleIntoGroup(rows.get(i));
+                (i % 3 == 0 ? first : second).mergeTupleIntoGroup(rows.get(i));
+            }
+            first.merge(second);
+            assertEquals(results(whole.iterator()), results(first.iterator()));
+        }
+
+        HashAggregator total = new HashAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.SUM);
+        HashAggregator part = new HashAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.SUM);
+        total.mergeTupleIntoGroup(Utility.getHeapTuple(5));
+        part.mergeTupleIntoGroup(Utility.getHeapTuple(7));
+        total.merge(part);
+        OpIterator it = total.iterator();
+        it.open();
+        assertEquals(12, ((IntField) it.next().getField(0)).getValue());
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashAggregatorTest.class);
+    }
+}
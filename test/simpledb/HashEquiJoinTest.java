@@ -0,0 +1,118 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.SpillFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static simpledb.TestUtil.drain;
+import static simpledb.TestUtil.readAll;
+import static simpledb.TestUtil.sorted;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    /**
+     * A build side larger than the memory budget is partitioned to spill
+     * files, with the same result as a join in memory, and the files are
+     * gone once the join closes
+     */
+    @Test public void spillsLargeBuildSide() throws Exception {
+        HeapFile build = SystemTestUtil.createRandomHeapFile(2, 20000, 2000, null, null);
+        HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 5000, 2000, null, null);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        HashEquiJoin inMemory = new HashEquiJoin(p, new SeqScan(tid, build.getId(), "b"),
+                                                 new SeqScan(tid, probe.getId(), "p"));
+        List<List<Integer>> expected = sorted(drain(inMemory));
+        assertEquals(0, inMemory.getSpilledTuples());
+
+        int files = SpillFile.openFiles();
+        HashEquiJoin spilling = new HashEquiJoin(p, new SeqScan(tid, build.getId(), "b"),
+                                                 new SeqScan(tid, probe.getId(), "p"));
+        spilling.setMemoryPages(8);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, sorted(drain(spilling)));
+        assertTrue(spilling.getSpilledTuples() > 0);
+        assertEquals(files, SpillFile.openFiles());
+    }
+
+    /**
+     * A spilling join can be rewound part way through
+     */
+    @Test public void rewindAfterSpilling() throws Exception {
+        HeapFile build = SystemTestUtil.createRandomHeapFile(2, 10000, 500, null, null);
+        HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 1000, 500, null, null);
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+        HashEquiJoin j = new HashEquiJoin(p, new SeqScan(tid, build.getId(), "b"),
+                                          new SeqScan(tid, probe.getId(), "p"));
+        j.setMemoryPages(4);
+        List<List<Integer>> expected = sorted(drain(j));
+
+        j.open();
+        for (int i = 0; i < expected.size() / 2; i++)
+            j.next();
+        j.rewind();
+        List<List<Integer>> again = sorted(readAll(j));
+        j.close();
+        assertEquals(expected, again);
+    }
+
+    /**
+     * A key too common to fit in memory however often it is partitioned is
+     * joined a memoryful at a time
+     */
+    @Test public void skewedKey() throws Exception {
+        Map<Integer, Integer> same = new HashMap<>();
+        same.put(0, 7);
+        HeapFile build = SystemTestUtil.createRandomHeapFile(2, 3000, same, null);
+        HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 10, same, null);
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                                          new SeqScan(tid, build.getId(), "b"),
+                                          new SeqScan(tid, probe.getId(), "p"));
+        j.setMemoryPages(1);
+        assertEquals(3000 * 10, drain(j).size());
+    }
+
+    /**
+     * Int keys with many build tuples each, and probe keys mostly without a
+     * match, join as in a nested loops join, in memory and spilled
+     */
+    @Test public void intKeysMatchNestedLoops() throws Exception {
+        HeapFile build = SystemTestUtil.createRandomHeapFile(2, 3000, 200, null, null);
+        HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 2000, 100000, null, null);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<List<Integer>> expected = sorted(drain(new Join(p, new SeqScan(tid, build.getId(), "b"),
+                                                            new SeqScan(tid, probe.getId(), "p"))));
+        assertFalse(expected.isEmpty());
+        for (int pages : new int[]{HashEquiJoin.DEFAULT_MEMORY_PAGES, 2}) {
+            HashEquiJoin j = new HashEquiJoin(p, new SeqScan(tid, build.getId(), "b"),
+                                              new SeqScan(tid, probe.getId(), "p"));
+            j.setMemoryPages(pages);
+            assertEquals(expected, sorted(drain(j)));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -6,6 +6,7 @@ import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.FileOutputStream;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -12,6 +12,9 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.util.Arrays;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
@@ -90,6 +93,54 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Inserts go straight to a page with room instead of fetching every
+     * full page of the table, and reuse space freed by deletes.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(tid, f.getId(), t);
+        assertEquals(20, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, bp.getMissCount());
+
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        Tuple victim = null;
+        while (it.hasNext()) {
+            Tuple next = it.next();
+            if (next.getRecordId().getPageId().getPageNumber() == 5) {
+                victim = next;
+                break;
+            }
+        }
+        it.close();
+        bp.deleteTuple(tid, victim);
+
+        t = Utility.getHeapTuple(2, 2);
+        bp.insertTuple(tid, f.getId(), t);
+        assertEquals(victim.getRecordId(), t.getRecordId());
+    }
+
+    /**
+     * The free space map is kept next to the heap file, one entry per page
+     */
+    @Test public void freeSpaceMapPersisted() throws Exception {
+        for (int i = 0; i < 505; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().flushAllPages();
+        File fsm = new File(empty.getFile().getPath() + FreeSpaceMap.SUFFIX);
+        fsm.deleteOnExit();
+        assertTrue(fsm.exists());
+        assertEquals(2 * empty.numPages(), fsm.length());
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fsm))) {
+            assertEquals(0, in.readShort());
+            assertEquals(503, in.readShort());
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -12,8 +12,10 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.storage.Field;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -131,6 +133,29 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples of a page read the page's bytes, keep their values once
+     * deleted, and copy them off the page when changed, leaving the page
+     * and its before image alone
+     */
+    @Test public void tuplesBackedByPage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        Field original = first.getField(0);
+        int value = ((IntField) first.getField(1)).getValue();
+
+        first.setField(0, new IntField(-7));
+        assertEquals(new IntField(-7), first.getField(0));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData());
+        assertEquals(original, page.iterator().next().getField(0));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        assertEquals(new IntField(-7), first.getField(0));
+        assertEquals(new IntField(value), first.getField(1));
+    }
+
     /**
      * JUnit suite target
      */
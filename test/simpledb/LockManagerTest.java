@@ -0,0 +1,67 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    /** Time to wait for a blocked request to queue up, in ms */
+    private static final int TIMEOUT = 100;
+
+    /**
+     * A lock that would be compatible with its holders is not granted to a
+     * new request ahead of a transaction already waiting for it, but a
+     * holder may still upgrade
+     */
+    @Test public void tryAcquireDoesNotBargeAheadOfWaiters() throws Exception {
+        LockManager lm = new LockManager();
+        PageId pid = new HeapPageId(1, 0);
+        TransactionId holder = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        assertTrue(lm.tryAcquire(holder, pid, Permissions.READ_ONLY));
+
+        AtomicBoolean granted = new AtomicBoolean();
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(writer, pid, Permissions.READ_WRITE);
+                granted.set(true);
+            } catch (Exception e) {
+                // left ungranted
+            }
+        });
+        t.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(granted.get());
+
+        assertFalse(lm.tryAcquire(reader, pid, Permissions.READ_ONLY));
+        assertFalse(lm.holdsLock(reader, pid));
+        assertTrue(lm.tryAcquire(holder, pid, Permissions.READ_WRITE));
+
+        lm.releaseAll(holder);
+        t.join();
+        assertTrue(granted.get());
+        assertTrue(lm.holdsLock(writer, pid));
+        lm.releaseAll(writer);
+        assertTrue(lm.tryAcquire(reader, pid, Permissions.READ_ONLY));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
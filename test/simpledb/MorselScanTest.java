@@ -0,0 +1,89 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static simpledb.TestUtil.drain;
+import static simpledb.TestUtil.drainBatches;
+import static simpledb.TestUtil.sorted;
+
+public class MorselScanTest extends SimpleDbTestBase {
+    private HeapFile f;
+    private TransactionId tid;
+
+    @Before public void createTable() throws Exception {
+        // a few dozen morsels and a partial one at the end
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * 40 + 100, 1000, null, null);
+        tid = new TransactionId();
+    }
+
+    private OpIterator gather(int fragments) {
+        return new Gather(MorselScan.fragments(tid, f.getId(), "t", fragments));
+    }
+
+    /**
+     * The fragments of a scan together return what SeqScan does, each
+     * tuple once, whether read a tuple or a batch at a time
+     */
+    @Test public void fragmentsMatchSeqScan() throws Exception {
+        List<List<Integer>> expected = sorted(drain(new SeqScan(tid, f.getId(), "t")));
+        OpIterator scan = gather(4);
+        assertEquals(new SeqScan(tid, f.getId(), "t").getTupleDesc(), scan.getTupleDesc());
+        assertEquals(expected, sorted(drain(scan)));
+        assertEquals(expected, sorted(drainBatches(scan)));
+    }
+
+    /**
+     * A filter over each fragment returns the tuples a filtered SeqScan does
+     */
+    @Test public void filteredFragments() throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(300));
+        List<List<Integer>> expected = drain(new Filter(p, new SeqScan(tid, f.getId(), "t")));
+        MorselScan[] scans = MorselScan.fragments(tid, f.getId(), "t", 4);
+        OpIterator[] filters = new OpIterator[scans.length];
+        for (int i = 0; i < scans.length; i++)
+            filters[i] = new Filter(p, scans[i]);
+        List<List<Integer>> actual = drainBatches(new Gather(filters));
+        assertFalse(expected.isEmpty());
+        assertEquals(sorted(expected), sorted(actual));
+    }
+
+    /**
+     * A scan closed early waits for its fragments and can be opened again
+     */
+    @Test public void closeEarlyAndRewind() throws Exception {
+        OpIterator scan = gather(8);
+        scan.open();
+        for (int i = 0; i < 10; i++)
+            scan.next();
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertNotNull(t);
+            count++;
+        }
+        scan.close();
+        assertEquals(504 * 40 + 100, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MorselScanTest.class);
+    }
+}
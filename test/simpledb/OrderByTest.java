@@ -0,0 +1,106 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.SpillFile;
+import simpledb.storage.StringField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static simpledb.TestUtil.drain;
+import static simpledb.TestUtil.readAll;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    /** c1 descending, then c0 ascending, ties kept in scan order */
+    private static final Comparator<List<Integer>> C1_DESC_C0 =
+            Comparator.<List<Integer>>comparingInt(r -> -r.get(1)).thenComparingInt(r -> r.get(0));
+
+    /**
+     * Sorting on two keys in memory orders by the first key, then the
+     * second, keeping rows equal on both in the order they were read
+     */
+    @Test public void multiKeyInMemory() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 20, null, null);
+        List<List<Integer>> expected = drain(new SeqScan(tid, f.getId(), "t"));
+        expected.sort(C1_DESC_C0);
+        OrderBy o = new OrderBy(new int[]{1, 0}, new boolean[]{false, true}, new SeqScan(tid, f.getId(), "t"));
+        assertEquals(expected, drain(o));
+        assertEquals(0, o.getSpilledTuples());
+    }
+
+    /**
+     * A child much larger than the memory budget is sorted in spilled runs
+     * merged over several passes, with the same result as in memory, and
+     * can be rewound; the runs are gone once the sort closes
+     */
+    @Test public void spillsAndMerges() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, 1000, null, null);
+        List<List<Integer>> expected = drain(new OrderBy(new int[]{1, 0}, new boolean[]{false, true},
+                                                         new SeqScan(tid, f.getId(), "t")));
+        int files = SpillFile.openFiles();
+        OrderBy o = new OrderBy(new int[]{1, 0}, new boolean[]{false, true}, new SeqScan(tid, f.getId(), "t"));
+        o.setMemoryPages(1);
+        o.open();
+        assertEquals(expected, readAll(o));
+        o.rewind();
+        assertEquals(expected, readAll(o));
+        o.close();
+        // every tuple is written by the first pass and again by the merges
+        assertTrue(o.getSpilledTuples() > 20000);
+        assertEquals(files, SpillFile.openFiles());
+
+        List<List<Integer>> byC1 = new ArrayList<>(expected);
+        byC1.sort(C1_DESC_C0);
+        assertEquals(byC1, expected);
+    }
+
+    /**
+     * String keys that share their first characters, the part sorted on
+     * first, are still ordered on the rest
+     */
+    @Test public void stringKeys() throws Exception {
+        String[] keys = {"abd", "b", "", "abc", "ab", "a", "abc", "zz", "aa"};
+        Object[] data = new Object[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            data[2 * i] = keys[i];
+            data[2 * i + 1] = i;
+        }
+        for (boolean asc : new boolean[]{true, false}) {
+            OrderBy o = new OrderBy(0, asc, TestUtil.createTupleList(2, data));
+            o.open();
+            List<String> actual = new ArrayList<>();
+            while (o.hasNext())
+                actual.add(((StringField) o.next().getField(0)).getValue());
+            o.close();
+            String[] expected = keys.clone();
+            Arrays.sort(expected, asc ? Comparator.naturalOrder() : Comparator.reverseOrder());
+            assertEquals(Arrays.asList(expected), actual);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PrefetchTest extends SimpleDbTestBase {
+
+    private static int scan(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * A cold sequential scan finds the pages after the first already read
+     */
+    @Test public void scanReadsAhead() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, tuples);
+        BufferPool bp = Database.resetBufferPool(16);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(bp.getPrefetchHitCount() > 0);
+        assertEquals(f.numPages(), bp.getMissCount());
+
+        bp = Database.resetBufferPool(16);
+        bp.setPrefetchPages(0);
+        assertEquals(504 * 20, scan(f, new TransactionId()));
+        assertEquals(0, bp.getPrefetchHitCount());
+    }
+
+    /**
+     * A page read ahead is dropped when its page is discarded, so a file
+     * changed behind the pool's back is read again
+     */
+    @Test public void discardDropsPrefetchedPage() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(16);
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        bp.prefetch(pid);
+        f.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        bp.discardPage(pid);
+
+        HeapPage p = (HeapPage) bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertEquals(504, p.getNumEmptySlots());
+    }
+
+    /**
+     * Pages read ahead take frames of the pool, and at most an eighth of
+     * it; reading ahead more drops only the pages read ahead longest ago
+     */
+    @Test public void prefetchedPagesBoundedAndCounted() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+        BufferPool bp = Database.resetBufferPool(16);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 16; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        assertEquals(0, bp.getEvictionCount());
+
+        for (int i = 16; i < 26; i++)
+            bp.prefetch(new HeapPageId(f.getId(), i));
+        assertEquals(2, bp.getEvictionCount());
+
+        bp.getPage(tid, new HeapPageId(f.getId(), 25), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(f.getId(), 24), Permissions.READ_ONLY);
+        assertEquals(2, bp.getPrefetchHitCount());
+        assertEquals(3, bp.getEvictionCount());
+        bp.getPage(tid, new HeapPageId(f.getId(), 16), Permissions.READ_ONLY);
+        assertEquals(2, bp.getPrefetchHitCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetchTest.class);
+    }
+}
@@ -0,0 +1,162 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class RecordLockingTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setLockGranularity(LockManager.Granularity.RECORD);
+
+    // one committed tuple on page 0
+    TransactionId tid = new TransactionId();
+    bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+    bp.transactionComplete(tid);
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  private Set<Integer> contents(TransactionId tid) throws Exception {
+    Set<Integer> values = new HashSet<>();
+    DbFileIterator it = empty.iterator(tid);
+    it.open();
+    while (it.hasNext())
+      values.add(((IntField) it.next().getField(0)).getValue());
+    it.close();
+    return values;
+  }
+
+  /**
+   * Two transactions inserting into the same page do not block each other,
+   * and an abort removes only the aborting transaction's tuple.
+   */
+  @Test public void concurrentInsertsSamePage() throws Exception {
+    Tuple t1 = Utility.getHeapTuple(1, 2);
+    Tuple t2 = Utility.getHeapTuple(2, 2);
+    bp.insertTuple(tid1, empty.getId(), t1);
+    bp.insertTuple(tid2, empty.getId(), t2);
+    assertEquals(p0, t1.getRecordId().getPageId());
+    assertEquals(p0, t2.getRecordId().getPageId());
+    assertNotEquals(t1.getRecordId(), t2.getRecordId());
+    assertTrue(bp.holdsRecordLock(tid1, t1.getRecordId()));
+    assertFalse(bp.holdsRecordLock(tid1, t2.getRecordId()));
+
+    bp.transactionComplete(tid1, true);
+    bp.transactionComplete(tid2, false);
+
+    TransactionId reader = new TransactionId();
+    Set<Integer> expected = new HashSet<>();
+    expected.add(0);
+    expected.add(1);
+    assertEquals(expected, contents(reader));
+    bp.transactionComplete(reader);
+
+    // and the same holds on disk
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    reader = new TransactionId();
+    assertEquals(expected, contents(reader));
+    bp.transactionComplete(reader);
+  }
+
+  /**
+   * A commit does not write a page that still holds another transaction's
+   * uncommitted insert; the page reaches disk when that transaction ends.
+   */
+  @Test public void commitLeavesSharedPageUnwritten() throws Exception {
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(1, 2));
+    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(2, 2));
+
+    bp.transactionComplete(tid1, true);
+    Set<Integer> onDisk = new HashSet<>();
+    ((HeapPage) empty.readPage(p0)).iterator().forEachRemaining(
+        t -> onDisk.add(((IntField) t.getField(0)).getValue()));
+    assertFalse(onDisk.contains(2));
+    assertNotNull(bp.getPage(tid2, p0, Permissions.READ_ONLY).isDirty());
+
+    bp.transactionComplete(tid2, true);
+    onDisk.clear();
+    ((HeapPage) empty.readPage(p0)).iterator().forEachRemaining(
+        t -> onDisk.add(((IntField) t.getField(0)).getValue()));
+    Set<Integer> expected = new HashSet<>();
+    expected.add(0);
+    expected.add(1);
+    expected.add(2);
+    assertEquals(expected, onDisk);
+  }
+
+  /**
+   * The slot of an uncommitted delete is not reused by other inserters,
+   * and aborting the delete puts the tuple back.
+   */
+  @Test public void abortedDeleteRestoresTuple() throws Exception {
+    TransactionId reader = new TransactionId();
+    DbFileIterator it = empty.iterator(reader);
+    it.open();
+    Tuple victim = it.next();
+    it.close();
+    bp.transactionComplete(reader);
+
+    RecordId rid = victim.getRecordId();
+    bp.deleteTuple(tid1, victim);
+    Tuple t2 = Utility.getHeapTuple(2, 2);
+    bp.insertTuple(tid2, empty.getId(), t2);
+    assertNotEquals(rid, t2.getRecordId());
+
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, true);
+
+    reader = new TransactionId();
+    Set<Integer> expected = new HashSet<>();
+    expected.add(0);
+    expected.add(2);
+    assertEquals(expected, contents(reader));
+    bp.transactionComplete(reader);
+  }
+
+  /**
+   * A page-level reader waits for a transaction updating records of the
+   * page, since its shared lock conflicts with the writer's intention lock.
+   */
+  @Test public void pageReaderBlocksOnRecordWriter() throws Exception {
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(1, 2));
+
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_ONLY);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(t.acquired());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(TIMEOUT);
+    assertTrue(t.acquired());
+    t.join();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RecordLockingTest.class);
+  }
+}
@@ -0,0 +1,233 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class RecoveryTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + PageLsnMap.SUFFIX).deleteOnExit();
+        new File(file.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+    }
+
+    private int count(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            if (((IntField) scan.next().getField(0)).getValue() == v)
+                count++;
+        }
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A logged change stamps the page with its LSN, which is written and
+     * read back with the page
+     */
+    @Test public void pageLsnFollowsLog() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        long lsn = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY).getLsn();
+        assertTrue(lsn > 0);
+        insert(t, 2);
+        long later = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY).getLsn();
+        assertTrue(later > lsn);
+        t.commit();
+        assertEquals(later, hf.readPage(pid).getLsn());
+    }
+
+    /**
+     * Records keep their LSNs when a checkpoint truncates the log, so
+     * recovery still undoes a loser whose updates reached disk
+     */
+    @Test public void recoverAfterTruncate() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        Database.getBufferPool().flushAllPages();
+        long stolen = hf.readPage(new HeapPageId(hf.getId(), 0)).getLsn();
+        Database.getLogFile().logCheckpoint();
+        insert(t2, 3);
+
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+        assertEquals(0, count(3));
+        // the undo was logged after the update, so the page got newer
+        assertTrue(hf.readPage(new HeapPageId(hf.getId(), 0)).getLsn() > stolen);
+    }
+
+    /**
+     * A checkpoint leaves a page dirtied since the previous checkpoint in
+     * the buffer pool; the next one writes it, and recovery starting from
+     * the checkpoint still undoes the running transaction's change
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+        long committed = hf.readPage(pid).getLsn();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(committed, hf.readPage(pid).getLsn());
+        Database.getLogFile().logCheckpoint();
+        assertTrue(hf.readPage(pid).getLsn() > committed);
+
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+    }
+
+    /**
+     * A checkpoint writes no more old pages than its limit; the rest stay
+     * dirty, the log is kept for them, and a later checkpoint writes them
+     */
+    @Test public void checkpointPageLimit() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+        long committed = hf.readPage(pid).getLsn();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        Database.getLogFile().setCheckpointPages(0);
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(committed, hf.readPage(pid).getLsn());
+
+        Database.getLogFile().setCheckpointPages(LogFile.DEFAULT_CHECKPOINT_PAGES);
+        Database.getLogFile().logCheckpoint();
+        assertTrue(hf.readPage(pid).getLsn() > committed);
+
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+    }
+
+    /**
+     * Only the first change to a page after a checkpoint logs the whole
+     * page; later changes log just the slot they changed
+     */
+    @Test public void deltaRecords() throws Exception {
+        File log = new File("log");
+        Transaction t = new Transaction();
+        t.start();
+        long begun = log.length();
+        insert(t, 1);
+        long first = log.length() - begun;
+        insert(t, 2);
+        long second = log.length() - begun - first;
+        t.commit();
+        assertTrue(first > BufferPool.getPageSize());
+        assertTrue(second < BufferPool.getPageSize() / 16);
+    }
+
+    /**
+     * A change logged as the byte ranges that differ redoes and undoes to
+     * the exact pages
+     */
+    @Test public void byteRangeChange() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(7, 2));
+        after.insertTuple(Utility.getHeapTuple(9, 2));
+
+        PageChange change = PageChange.diff(before.getPageData(), after.getPageData());
+        assertFalse(change.isEmpty());
+        Page redone = change.apply(before);
+        assertArrayEquals(after.getPageData(), redone.getPageData());
+        Page undone = change.inverse().apply(redone);
+        assertArrayEquals(before.getPageData(), undone.getPageData());
+        assertTrue(PageChange.diff(after.getPageData(), after.getPageData()).isEmpty());
+    }
+
+    /**
+     * Under record locking an abort undoes only its own slots of a page
+     * that other transactions changed too, and so does recovery
+     */
+    @Test public void recordLockedRollback() throws Exception {
+        Database.getBufferPool().setLockGranularity(LockManager.Granularity.RECORD);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        Transaction t3 = new Transaction();
+        Transaction t4 = new Transaction();
+        t2.start();
+        t3.start();
+        t4.start();
+        insert(t2, 2);
+        insert(t3, 3);
+        insert(t4, 4);
+        t2.abort();
+        t3.commit();
+        // t4 is still running, so its insert reaches disk only as a steal
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+        assertEquals(1, count(3));
+        assertEquals(0, count(4));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
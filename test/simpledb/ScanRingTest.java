@@ -0,0 +1,62 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ScanRingTest extends SimpleDbTestBase {
+
+    /**
+     * Scans that fit in the pool go through the replacement policy
+     */
+    @Test public void smallScanHasNoRing() {
+        BufferPool bp = Database.resetBufferPool(16);
+        assertNull(bp.newScanRing(16));
+        assertNotNull(bp.newScanRing(17));
+        assertEquals(4, bp.newScanRing(1000).capacity());
+    }
+
+    /**
+     * A large sequential scan should not push hot pages out of the pool
+     */
+    @Test public void scanKeepsHotSet() throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool bp = Database.resetBufferPool(16);
+        TransactionId tid = new TransactionId();
+
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 40, count);
+
+        long misses = bp.getMissCount();
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        assertEquals(misses, bp.getMissCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.SpillFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SpillingAggregateTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private HeapFile f;
+
+    @Before public void setUp() throws Exception {
+        tid = new TransactionId();
+        f = SystemTestUtil.createRandomHeapFile(2, 20000, 1 << 20, null, null, "c");
+    }
+
+    @After public void resetParallelism() {
+        LogicalPlan.setParallelism(WorkerPool.size());
+    }
+
+    private OpIterator scan() {
+        return new SeqScan(tid, f.getId(), "t");
+    }
+
+    /** Read the groups of an aggregate, each of which must come once */
+    private static Set<List<Integer>> groups(OpIterator it) throws Exception {
+        List<List<Integer>> rows = TestUtil.drain(it);
+        Set<List<Integer>> groups = new HashSet<>(rows);
+        assertEquals(rows.size(), groups.size());
+        return groups;
+    }
+
+    /**
+     * With a budget of a page, every aggregate spills its groups and still
+     * matches the aggregate computed in memory, leaving no spill files
+     */
+    @Test public void spillsAndMatchesInMemory() throws Exception {
+        int before = SpillFile.openFiles();
+        for (Aggregator.Op op : new Aggregator.Op[]{
+                Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX}) {
+            SpillingAggregate agg = new SpillingAggregate(scan(), 1, 0, op);
+            agg.setMemoryPages(1);
+            Set<List<Integer>> spilled = groups(agg);
+            assertTrue(agg.getSpilledGroups() > 0);
+            assertEquals(groups(new Aggregate(scan(), 1, 0, op)), spilled);
+        }
+        assertEquals(before, SpillFile.openFiles());
+    }
+
+    /**
+     * Rewinding, or closing before the last group, starts over or deletes
+     * the partitions not yet read
+     */
+    @Test public void rewindAndEarlyClose() throws Exception {
+        int before = SpillFile.openFiles();
+        SpillingAggregate agg = new SpillingAggregate(scan(), 1, 0, Aggregator.Op.SUM);
+        agg.setMemoryPages(1);
+        Set<List<Integer>> all = groups(agg);
+
+        agg.open();
+        for (int i = 0; i < 10; i++)
+            agg.next();
+        agg.rewind();
+        Set<List<Integer>> again = new HashSet<>();
+        while (agg.hasNext())
+            again.add(SystemTestUtil.tupleToList(agg.next()));
+        assertEquals(all, again);
+
+        agg.rewind();
+        agg.next();
+        agg.close();
+        assertEquals(before, SpillFile.openFiles());
+    }
+
+    /**
+     * The planner picks a spilling aggregate when the statistics say the
+     * groups do not fit in the memory of the query, and a plain one when
+     * they do
+     */
+    @Test public void plannedFromStatistics() throws Exception {
+        LogicalPlan.setParallelism(1);
+        String name = "spillagg";
+        Database.getCatalog().addTable(f, name);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        String query = "SELECT t.c0, SUM(t.c1) FROM " + name + " t GROUP BY t.c0;";
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        lp.setMemoryPages(1);
+        Operator plan = (Operator) lp.physicalPlan(tid, stats, false);
+        assertTrue(plan.getChildren()[0] instanceof SpillingAggregate);
+        Set<List<Integer>> spilled = groups(plan);
+
+        lp = new Parser().generateLogicalPlan(tid, query);
+        plan = (Operator) lp.physicalPlan(tid, stats, false);
+        assertFalse(plan.getChildren()[0] instanceof SpillingAggregate);
+        assertEquals(groups(plan), spilled);
+    }
+
+    /**
+     * Over a parallel scan, the planner repartitions the input by group
+     * and spills each partition in its own fragment, within the memory of
+     * the query
+     */
+    @Test public void plannedParallel() throws Exception {
+        String name = "parspillagg";
+        Database.getCatalog().addTable(f, name);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        String query = "SELECT t.c0, COUNT(t.c1) FROM " + name + " t GROUP BY t.c0;";
+
+        LogicalPlan.setParallelism(4);
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        lp.setMemoryPages(4);
+        Operator plan = (Operator) lp.physicalPlan(tid, stats, false);
+        Gather gather = (Gather) plan.getChildren()[0];
+        OpIterator[] fragments = gather.getFragments();
+        assertEquals(4, fragments.length);
+        for (OpIterator fragment : fragments) {
+            assertTrue(fragment instanceof SpillingAggregate);
+            assertEquals(1, ((SpillingAggregate) fragment).getMemoryPages());
+            assertTrue(((Operator) fragment).getChildren()[0] instanceof Exchange.Reader);
+        }
+        int before = SpillFile.openFiles();
+        Set<List<Integer>> rows = groups(plan);
+        long spilled = 0;
+        for (OpIterator fragment : fragments)
+            spilled += ((SpillingAggregate) fragment).getSpilledGroups();
+        assertTrue(spilled > 0);
+        assertEquals(groups(new Aggregate(scan(), 1, 0, Aggregator.Op.COUNT)), rows);
+        assertEquals(before, SpillFile.openFiles());
+    }
+
+    /**
+     * Several aggregates over a composite key are parsed into one aggregate
+     * that spills when the groups do not fit, serial or parallel, and each
+     * matches the aggregate computed on its own
+     */
+    @Test public void parsedMultipleAggregatesOverCompositeKey() throws Exception {
+        String name = "multiagg";
+        Database.getCatalog().addTable(f, name);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+
+        // (c0, c1) -> MAX(c1), COUNT(c0), SUM(c1), computed one aggregate at a time
+        Aggregator.Op[] ops = {Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.SUM};
+        Map<List<Integer>, List<Integer>> expected = new HashMap<>();
+        for (Aggregator.Op op : ops) {
+            int afield = op == Aggregator.Op.COUNT ? 0 : 1;
+            OpIterator single = new Aggregate(scan(), new int[]{afield}, new int[]{0, 1}, new Aggregator.Op[]{op});
+            for (List<Integer> row : groups(single))
+                expected.computeIfAbsent(row.subList(0, 2), k -> new ArrayList<>()).add(row.get(2));
+        }
+
+        for (int parallelism : new int[]{1, 4}) {
+            LogicalPlan.setParallelism(parallelism);
+            LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                    "SELECT MAX(t.c1), t.c1, COUNT(t.c0), t.c0, SUM(t.c1) FROM " + name + " t GROUP BY t.c0, t.c1;");
+            lp.setMemoryPages(4);
+            Operator plan = (Operator) lp.physicalPlan(tid, stats, false);
+            OpIterator agg = plan.getChildren()[0];
+            OpIterator[] aggs = agg instanceof Gather ? ((Gather) agg).getFragments() : new OpIterator[]{agg};
+            assertEquals(parallelism, aggs.length);
+            for (OpIterator a : aggs) {
+                SpillingAggregate spilling = (SpillingAggregate) a;
+                assertArrayEquals(new int[]{0, 1}, spilling.groupFields());
+                assertArrayEquals(ops, spilling.aggregateOps());
+            }
+
+            Set<List<Integer>> rows = groups(plan);
+            assertEquals(expected.size(), rows.size());
+            long spilled = 0;
+            for (OpIterator a : aggs)
+                spilled += ((SpillingAggregate) a).getSpilledGroups();
+            assertTrue(spilled > 0);
+            for (List<Integer> row : rows) {
+                List<Integer> aggregates = expected.get(Arrays.asList(row.get(3), row.get(1)));
+                assertEquals(aggregates, Arrays.asList(row.get(0), row.get(2), row.get(4)));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SpillingAggregateTest.class);
+    }
+}
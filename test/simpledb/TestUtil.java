@@ -2,7 +2,9 @@ package simpledb;
 
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
+import simpledb.execution.TupleBatch;
 import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -192,6 +194,77 @@ public class TestUtil {
         return buf;
     }
 
+    /**
+     * Read the remaining tuples of an open iterator.
+     *
+     * @return the tuples as lists of their int fields, in the order read
+     */
+    public static List<List<Integer>> readAll(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        return rows;
+    }
+
+    /**
+     * Open an iterator, read all its tuples a tuple at a time and close it.
+     *
+     * @return the tuples as lists of their int fields, in the order read
+     */
+    public static List<List<Integer>> drain(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        List<List<Integer>> rows = readAll(it);
+        it.close();
+        return rows;
+    }
+
+    /**
+     * Open an iterator, read all its tuples a batch at a time and close it.
+     *
+     * @return the tuples as lists of their int fields, in the order read
+     */
+    public static List<List<Integer>> drainBatches(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        it.open();
+        TupleBatch batch = new TupleBatch(100);
+        while (it.nextBatch(batch)) {
+            for (int i = 0; i < batch.size(); i++)
+                rows.add(SystemTestUtil.tupleToList(batch.get(i)));
+        }
+        it.close();
+        return rows;
+    }
+
+    /**
+     * Sort rows of int fields with {@link RowOrder}, to compare the
+     * results of operators that return them in no particular order.
+     *
+     * @return the rows
+     */
+    public static List<List<Integer>> sorted(List<List<Integer>> rows) {
+        rows.sort(new RowOrder());
+        return rows;
+    }
+
+    /**
+     * Orders rows of int fields by their first field, then their second,
+     * and so on.
+     */
+    public static class RowOrder implements Comparator<List<Integer>> {
+        @Override
+        public int compare(List<Integer> a, List<Integer> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int c = Integer.compare(a.get(i), b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    }
+
     /**
      * Stub DbFile class for unit testing.
      */
@@ -0,0 +1,119 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static simpledb.TestUtil.drain;
+
+public class TopNTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private HeapFile f;
+
+    @Before public void setUp() throws Exception {
+        tid = new TransactionId();
+        f = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null, null, "c");
+    }
+
+    private OpIterator scan() {
+        return new SeqScan(tid, f.getId(), "t");
+    }
+
+    /**
+     * The top n tuples are the first n a stable sort on the same fields
+     * returns, including which of several equal tuples make the cut
+     */
+    @Test public void matchesSortedPrefix() throws Exception {
+        int[] fields = {1, 2};
+        boolean[] asc = {false, true};
+        List<List<Integer>> sorted = drain(new OrderBy(fields, asc, scan()));
+        for (int n : new int[]{0, 1, 20, 2999, 5000}) {
+            List<List<Integer>> expected = sorted.subList(0, Math.min(n, sorted.size()));
+            assertEquals(expected, drain(new TopN(fields, asc, n, scan())));
+        }
+    }
+
+    /**
+     * Limit skips the offset, stops at the limit, and starts over when
+     * rewound
+     */
+    @Test public void limitAndOffset() throws Exception {
+        List<List<Integer>> all = drain(scan());
+        Limit l = new Limit(5, 3, scan());
+        assertEquals(all.subList(3, 8), drain(l));
+        l.open();
+        l.next();
+        l.rewind();
+        int count = 0;
+        while (l.hasNext()) {
+            l.next();
+            count++;
+        }
+        l.close();
+        assertEquals(5, count);
+        assertEquals(all.subList(2990, 3000), drain(new Limit(20, 2990, scan())));
+    }
+
+    /**
+     * A query with ORDER BY and LIMIT is planned as a top n, and its
+     * OFFSET skips the first tuples in order
+     */
+    @Test public void parsedLimitUsesTopN() throws Exception {
+        String name = "topn";
+        Database.getCatalog().addTable(f, name);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + name + " t ORDER BY t.c1 DESC, t.c0 LIMIT 10 OFFSET 5;");
+        Operator plan = (Operator) lp.physicalPlan(tid, stats, false);
+        Operator limit = (Operator) plan.getChildren()[0];
+        assertTrue(limit instanceof Limit);
+        assertTrue(limit.getChildren()[0] instanceof TopN);
+        assertEquals(15, ((TopN) limit.getChildren()[0]).getN());
+
+        List<List<Integer>> sorted = drain(new OrderBy(new int[]{1, 0}, new boolean[]{false, true}, scan()));
+        assertEquals(sorted.subList(5, 15), drain(plan));
+    }
+
+    /**
+     * A LIMIT and OFFSET whose sum overflows a long are sorted in full
+     * rather than planned as a top n of a wrapped-around size
+     */
+    @Test public void hugeLimitFallsBackToSort() throws Exception {
+        String name = "topnhuge";
+        Database.getCatalog().addTable(f, name);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + name + " t ORDER BY t.c1 DESC, t.c0 LIMIT " + Long.MAX_VALUE + " OFFSET 1;");
+        Operator plan = (Operator) lp.physicalPlan(tid, stats, false);
+        Operator limit = (Operator) plan.getChildren()[0];
+        assertTrue(limit instanceof Limit);
+        assertTrue(limit.getChildren()[0] instanceof OrderBy);
+
+        List<List<Integer>> sorted = drain(new OrderBy(new int[]{1, 0}, new boolean[]{false, true}, scan()));
+        assertEquals(sorted.subList(1, sorted.size()), drain(plan));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
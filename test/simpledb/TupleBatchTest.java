@@ -0,0 +1,151 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TupleBatch;
+import simpledb.common.Type;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  /**
+   * Drain an open iterator through nextBatch
+   */
+  private static TupleIterator drain(OpIterator op, int capacity) throws Exception {
+    List<Tuple> tuples = new ArrayList<>();
+    TupleBatch batch = new TupleBatch(capacity);
+    while (op.nextBatch(batch)) {
+      assertTrue(batch.size() <= capacity);
+      for (int i = 0; i < batch.size(); i++)
+        tuples.add(batch.get(i));
+    }
+    assertTrue(batch.isEmpty());
+    TupleIterator it = new TupleIterator(op.getTupleDesc(), tuples);
+    it.open();
+    return it;
+  }
+
+  /**
+   * The selection vector hides filtered rows without moving the others
+   */
+  @Test public void selection() {
+    TupleBatch batch = new TupleBatch(4);
+    for (int i = 0; i < 4; i++)
+      batch.add(Utility.getHeapTuple(i, 1));
+    assertTrue(batch.isFull());
+    batch.filter(new Predicate(0, Predicate.Op.NOT_EQUALS, TestUtil.getField(1)));
+    assertEquals(3, batch.size());
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(2, 1), batch.get(1)));
+    assertTrue(batch.isFull());
+    batch.clear();
+    assertTrue(batch.isEmpty());
+    assertFalse(batch.isFull());
+  }
+
+  /**
+   * Filter and Project give the same tuples a batch at a time as one at a
+   * time, including over a tuple-at-a-time child
+   */
+  @Test public void filterProject() throws Exception {
+    Predicate pred = new Predicate(1, Predicate.Op.GREATER_THAN, TestUtil.getField(-2));
+    OpIterator expected = new Project(Arrays.asList(2, 0), new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+        new Filter(pred, new TestUtil.MockScan(-5, 5, 3)));
+    OpIterator actual = new Project(Arrays.asList(2, 0), new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+        new Filter(pred, new TestUtil.MockScan(-5, 5, 3)));
+    expected.open();
+    actual.open();
+    TestUtil.compareDbIterators(expected, drain(actual, 2));
+  }
+
+  /**
+   * A join whose matches for one probe tuple do not fit in the batch
+   * carries them over to the next batch
+   */
+  @Test public void hashJoin() throws Exception {
+    int[] left = new int[40];
+    for (int i = 0; i < 20; i++) {
+      left[2 * i] = i % 4;
+      left[2 * i + 1] = i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    OpIterator expected = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(1, new int[] { 0, 1, 2, 3, 9 }));
+    OpIterator actual = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(1, new int[] { 0, 1, 2, 3, 9 }));
+    expected.open();
+    actual.open();
+    TestUtil.compareDbIterators(expected, drain(actual, 3));
+  }
+
+  /**
+   * A tuple read ahead by hasNext comes out of the next batch
+   */
+  @Test public void mixedStyles() throws Exception {
+    OpIterator op = new Aggregate(TestUtil.createTupleList(2, new int[] { 1, 2, 1, 3, 2, 4 }),
+        1, 0, Aggregator.Op.SUM);
+    op.open();
+    assertTrue(op.hasNext());
+    TupleBatch batch = new TupleBatch();
+    assertTrue(op.nextBatch(batch));
+    assertEquals(1, batch.size());
+    assertTrue(op.nextBatch(batch));
+    assertEquals(1, batch.size());
+    assertFalse(op.nextBatch(batch));
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * A scan hands out batches only while it is open
+   */
+  @Test public void seqScanBatchesOnlyWhileOpen() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    SeqScan scan = new SeqScan(new TransactionId(), f.getId(), "t");
+    TupleBatch batch = new TupleBatch();
+    try {
+      scan.nextBatch(batch);
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    scan.open();
+    assertTrue(scan.nextBatch(batch));
+    assertEquals(10, batch.size());
+    scan.close();
+    try {
+      scan.nextBatch(batch);
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}